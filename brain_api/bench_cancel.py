@@ -0,0 +1,98 @@
+"""
+Measures the generation controls from generation_control.py on a local checkpoint: how long a cancel takes to free the
+model, how much generation it saves, and what the per-token stopping check costs.
+
+    python bench_speculative.py --make-tiny ./tiny --tokenizer ./SmolLM2-135M-Instruct   # no real checkpoint at hand
+    python bench_cancel.py --model ./tiny/target --budget 200 --cancel-after 100,250,500
+
+Every reply is forced to its full --budget (min_new_tokens), so "saved" is exact: the tokens - and seconds - a full reply
+would have taken minus what ran before the cancel took effect. The cancel itself comes from another thread, the way
+/cancel or a closed stream reaches a generate() running in its worker thread. For the stub (no model at all) use
+StubAskServer with LoadGenerator cancelRate=... instead.
+"""
+import argparse
+import statistics
+import threading
+import time
+
+PROMPT = [{"role": "user", "content": "I have had a dry cough and shortness of breath for two weeks. What could it be?"}]
+
+
+def generate(model, tokenizer, encoded, generation, with_criteria=True):
+    import torch
+    from transformers import StoppingCriteriaList
+
+    prompt_len = encoded["input_ids"].shape[1]
+    criteria = StoppingCriteriaList([generation.criteria(tokenizer, prompt_len)]) if with_criteria else None
+    with torch.no_grad():
+        output = model.generate(**encoded, max_new_tokens=generation.max_new_tokens, min_new_tokens=generation.max_new_tokens,
+                                do_sample=False, stopping_criteria=criteria,
+                                pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id)
+    generation.tokens = output.shape[1] - prompt_len
+    return generation.tokens
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Benchmark cancellation and early stopping of generate()")
+    parser.add_argument("--model", default="./chat_lung_model")
+    parser.add_argument("--mode", default="fp32", help="INFERENCE_MODE")
+    parser.add_argument("--threads", type=int, default=None)
+    parser.add_argument("--budget", type=int, default=200, help="max_new_tokens of every reply")
+    parser.add_argument("--cancel-after", default="100,250,500", help="Milliseconds after the start to cancel")
+    parser.add_argument("--repeats", type=int, default=5)
+    args = parser.parse_args()
+
+    from inference import load_model, warm_up
+    from generation_control import GenerationRegistry
+
+    tokenizer, model = load_model(args.model, args.mode, args.threads)
+    warm_up(model, tokenizer, rounds=1)
+    encoded = tokenizer.apply_chat_template(PROMPT, add_generation_prompt=True, return_tensors="pt", return_dict=True)
+
+    # 1. Full replies - the cost a cancel saves a share of, with and without the per-token check
+    registry = GenerationRegistry()
+    full = {}
+    for with_criteria, label in ((False, "no criteria"), (True, "criteria")):
+        seconds = []
+        for i in range(args.repeats):
+            generation = registry.start("bench", f"full-{label}-{i}", args.budget, ["User:"] if with_criteria else [], None)
+            start = time.perf_counter()
+            generate(model, tokenizer, encoded, generation, with_criteria)
+            seconds.append(time.perf_counter() - start)
+            registry.finish(generation)
+        full[label] = statistics.median(seconds)
+    overhead = 100 * (full["criteria"] / full["no criteria"] - 1)
+    print(f"\nFull {args.budget}-token reply: {1000 * full['no criteria']:.0f} ms, {1000 * full['criteria']:.0f} ms with the "
+          f"stopping check and one stop sequence ({overhead:+.1f}%)")
+
+    # 2. Cancelled replies
+    print(f"\n{'cancel at':>9} {'tokens':>7} {'saved':>7} {'saved ms':>9} {'cancel p50':>11} {'cancel max':>11}")
+    per_token = full["criteria"] / args.budget
+    for cancel_ms in (int(ms) for ms in args.cancel_after.split(",")):
+        registry = GenerationRegistry()
+        tokens, latencies = [], []
+        for i in range(args.repeats):
+            generation = registry.start("bench", f"cancel-{cancel_ms}-{i}", args.budget, [], None)
+            done = threading.Event()
+            worker = threading.Thread(target=lambda g=generation: (generate(model, tokenizer, encoded, g), done.set()))
+            worker.start()
+
+            if not done.wait(cancel_ms / 1000):
+                generation.cancel()
+                worker.join()
+                latencies.append(time.perf_counter() - generation.cancelled_at)
+            worker.join()
+            registry.finish(generation)
+            tokens.append(generation.tokens)
+
+        stats = registry.stats()
+        saved = stats["saved_tokens"] / args.repeats
+        cancel_p50 = f"{1000 * statistics.median(latencies):.1f} ms" if latencies else "-"
+        cancel_max = f"{1000 * max(latencies):.1f} ms" if latencies else "-"
+        print(f"{cancel_ms:>7} ms {statistics.median(tokens):>7.0f} {saved:>7.0f} {1000 * saved * per_token:>9.0f} "
+              f"{cancel_p50:>11} {cancel_max:>11}")
+    print(f"\nA cancel takes effect at the next token - about {1000 * per_token:.1f} ms here (one forward pass).")
+
+
+if __name__ == "__main__":
+    main()
@@ -0,0 +1,170 @@
+"""
+Concurrency benchmark for db_manager.py: the old path (mysql-connector, pool of 5, every query in the default thread
+pool) against the native async one (aiomysql), under the same load.
+
+    docker run -d --name bench-mariadb -p 3307:3306 -e MARIADB_ALLOW_EMPTY_ROOT_PASSWORD=1 -e MARIADB_DATABASE=bench_db mariadb:11
+    DB_NAME=bench_db python bench_db.py --port 3307 --requests 2000 --concurrency 100 --streams 16
+
+Every request is what /activate does: a SELECT by email and an UPDATE of the same row, on a scratch table
+(bench_db_users) - never point it at the real database. A request fails when either query returns nothing - the old
+pool doesn't wait for a free connection, so under load that is how it fails.
+--streams runs that many fake token streams next to it, each waiting on asyncio.to_thread() like /ask/stream does, so
+the old path competes with generation for the default executor.
+--query-ms adds SLEEP() to every SELECT to stand in for a slower or busier server.
+"text" is the async path with DB_PREPARED=0 - compare it with "async" for what the reused prepared statements save:
+    DB_NAME=bench_db python bench_db.py --port 3307 --paths async,text --streams 0
+"""
+import argparse
+import asyncio
+import os
+import statistics
+import time
+
+USERS = 1000
+
+
+def percentile(values, p):
+    values = sorted(values)
+    return values[min(len(values) - 1, int(len(values) * p / 100))] if values else 0.0
+
+
+def legacy_path(host, port):
+    """db_manager.py as it was: a fixed pool of 5 and run_in_executor(None, ...) around every blocking call."""
+    import mysql.connector
+    from mysql.connector import pooling
+    from db_manager import DB_USER, DB_PASSWORD, DB_NAME
+
+    pool = pooling.MySQLConnectionPool(pool_name="bench_legacy", pool_size=5, host=host, port=port, user=DB_USER,
+                                       password=DB_PASSWORD, database=DB_NAME, connection_timeout=60)
+
+    def run(query, params, fetch):
+        connection = cursor = None
+        try:
+            connection = pool.get_connection() # Raises PoolError when all 5 are taken - the old code returned None / [] then
+            cursor = connection.cursor(dictionary=True)
+            cursor.execute(query, params)
+            if fetch:
+                return cursor.fetchone()
+            connection.commit()
+            return cursor.lastrowid
+        except mysql.connector.Error:
+            return None
+        finally:
+            if cursor: cursor.close()
+            if connection: connection.close()
+
+    async def fetch_one(query, params):
+        return await asyncio.get_event_loop().run_in_executor(None, run, query, params, True)
+
+    async def execute(query, params):
+        return await asyncio.get_event_loop().run_in_executor(None, run, query, params, False)
+
+    return fetch_one, execute, (lambda: None), (lambda: None)
+
+
+def async_path(host, port, prepared=True):
+    import db_manager
+    from db_manager import create_db_pool, fetch_query, execute_query
+
+    db_manager.PREPARED = prepared # Read on every query - the paths run one after the other
+    pool = create_db_pool(host, port, pool_name="bench_async" if prepared else "bench_text")
+
+    async def fetch_one(query, params):
+        return await fetch_query(pool, query, params, fetch_one=True)
+
+    async def execute(query, params):
+        return await execute_query(pool, query, params)
+
+    return fetch_one, execute, pool.stats, pool.close
+
+
+async def prepare(host, port):
+    from db_manager import create_db_pool, execute_query, fetch_query
+
+    pool = create_db_pool(host, port, pool_name="bench_setup")
+    await execute_query(pool, "CREATE TABLE IF NOT EXISTS bench_db_users (email VARCHAR(100) PRIMARY KEY, "
+                              "verification_token VARCHAR(255), is_verified BOOLEAN DEFAULT FALSE)")
+    rows = await fetch_query(pool, "SELECT COUNT(*) AS n FROM bench_db_users", fetch_one=True)
+    if not rows or rows["n"] < USERS:
+        for i in range(USERS):
+            await execute_query(pool, "INSERT IGNORE INTO bench_db_users (email, verification_token) VALUES (%s, %s)",
+                                (f"bench-{i}@example.com", f"token-{i}"))
+    await pool.close()
+
+
+async def fake_stream(stop: asyncio.Event, token_seconds: float):
+    # /ask/stream waits for every token with asyncio.to_thread(next, streamer) - one executor thread per waiting stream
+    while not stop.is_set():
+        await asyncio.to_thread(time.sleep, token_seconds)
+
+
+async def run(name, path, args):
+    fetch_one, execute, stats, close = path
+    select = "SELECT email, verification_token FROM bench_db_users WHERE email = %s"
+    if args.query_ms:
+        select = f"SELECT email, verification_token, SLEEP({args.query_ms / 1000}) AS s FROM bench_db_users WHERE email = %s"
+    update = "UPDATE bench_db_users SET is_verified = 1 - is_verified WHERE email = %s AND verification_token = %s"
+
+    latencies, failures = [], 0
+    gate = asyncio.Semaphore(args.concurrency)
+
+    async def request(i):
+        nonlocal failures
+        async with gate:
+            email = f"bench-{i % USERS}@example.com"
+            start = time.perf_counter()
+            user = await fetch_one(select, (email,))
+            result = await execute(update, (email, user["verification_token"])) if user else None
+            latencies.append(time.perf_counter() - start)
+            if result is None:
+                failures += 1
+
+    stop = asyncio.Event()
+    streams = [asyncio.create_task(fake_stream(stop, args.token_ms / 1000)) for _ in range(args.streams)]
+    await asyncio.gather(*(request(i) for i in range(args.warmup))) # Connections opened, caches warm
+    latencies.clear()
+
+    start = time.perf_counter()
+    await asyncio.gather(*(request(i) for i in range(args.requests)))
+    elapsed = time.perf_counter() - start
+    stop.set()
+    await asyncio.gather(*streams)
+
+    pool = stats()
+    if asyncio.iscoroutinefunction(close):
+        await close()
+    return {
+        "path": name, "seconds": elapsed, "rps": args.requests / elapsed, "failures": failures,
+        "p50_ms": 1000 * statistics.median(latencies), "p99_ms": 1000 * percentile(latencies, 99),
+        "max_ms": 1000 * max(latencies), "pool": pool,
+    }
+
+
+async def main():
+    parser = argparse.ArgumentParser(description="Benchmark db_manager.py's async pool against the old executor-based one")
+    parser.add_argument("--host", default=os.getenv("DB_HOST", "127.0.0.1"))
+    parser.add_argument("--port", type=int, default=3306)
+    parser.add_argument("--requests", type=int, default=2000)
+    parser.add_argument("--concurrency", type=int, default=100, help="Requests in flight at once")
+    parser.add_argument("--streams", type=int, default=16, help="Fake token streams holding executor threads")
+    parser.add_argument("--token-ms", type=float, default=50, help="Time per fake token")
+    parser.add_argument("--query-ms", type=float, default=0, help="Extra server-side time per SELECT")
+    parser.add_argument("--warmup", type=int, default=100)
+    parser.add_argument("--paths", default="legacy,async")
+    args = parser.parse_args()
+
+    await prepare(args.host, args.port)
+    paths = {"legacy": legacy_path, "async": async_path, "text": lambda host, port: async_path(host, port, prepared=False)}
+    results = [await run(name, paths[name](args.host, args.port), args) for name in args.paths.split(",")]
+
+    print(f"\n{args.requests} requests, {args.concurrency} concurrent, {args.streams} token streams, +{args.query_ms:g} ms per SELECT")
+    print(f"{'path':<8} {'seconds':>8} {'req/s':>8} {'p50 ms':>8} {'p99 ms':>8} {'max ms':>8} {'failed':>7}")
+    for r in results:
+        print(f"{r['path']:<8} {r['seconds']:>8.2f} {r['rps']:>8.0f} {r['p50_ms']:>8.1f} {r['p99_ms']:>8.1f} {r['max_ms']:>8.1f} {r['failures']:>7}")
+    for r in results:
+        if r["pool"]:
+            print(f"{r['path']} pool: {r['pool']}")
+
+
+if __name__ == "__main__":
+    asyncio.run(main())
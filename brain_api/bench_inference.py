@@ -0,0 +1,94 @@
+"""
+Compares the CPU inference modes from inference.py on a local checkpoint.
+
+    python bench_inference.py --model ./chat_lung_model --modes fp32,bf16,int8 --threads 8
+
+For a quick run, point --model at a small checkpoint (e.g. a local copy of SmolLM2-135M-Instruct).
+Every mode runs in a fresh process so resident memory is measured without the previous model still loaded.
+"""
+import argparse
+import multiprocessing as mp
+import time
+
+PROMPT = [{"role": "user", "content": "I have had a dry cough and shortness of breath for two weeks. What could it be?"}]
+
+
+def _run_mode(model_path, mode, threads, new_tokens, repeats, results):
+    import psutil
+    import torch
+    from transformers import LogitsProcessor, LogitsProcessorList
+    from inference import load_model, warm_up
+
+    class FirstTokenTimer(LogitsProcessor):
+        def __init__(self):
+            self.start = time.perf_counter()
+            self.first = None
+
+        def __call__(self, input_ids, scores):
+            if self.first is None:
+                self.first = time.perf_counter() - self.start
+            return scores
+
+    process = psutil.Process()
+    rss_before = process.memory_info().rss
+
+    start = time.perf_counter()
+    tokenizer, model = load_model(model_path, mode, threads)
+    load_seconds = time.perf_counter() - start
+    rss_loaded = process.memory_info().rss
+
+    warm_up(model, tokenizer, rounds=1)
+    encoded = tokenizer.apply_chat_template(PROMPT, add_generation_prompt=True, return_tensors="pt", return_dict=True)
+    prompt_len = encoded["input_ids"].shape[1]
+
+    first_token, tokens_per_sec = [], []
+    for _ in range(repeats):
+        timer = FirstTokenTimer()
+        with torch.no_grad():
+            output = model.generate(**encoded, max_new_tokens=new_tokens, min_new_tokens=new_tokens, do_sample=False,
+                                    logits_processor=LogitsProcessorList([timer]),
+                                    pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id)
+        total = time.perf_counter() - timer.start
+        generated = output.shape[1] - prompt_len
+        first_token.append(timer.first)
+        tokens_per_sec.append((generated - 1) / max(total - timer.first, 1e-9)) # Decode speed, excluding the prefill
+
+    results.put({
+        "mode": mode,
+        "load_s": load_seconds,
+        "rss_mb": (rss_loaded - rss_before) / 2**20,
+        "peak_rss_mb": process.memory_info().rss / 2**20,
+        "first_token_ms": 1000 * sorted(first_token)[len(first_token) // 2],
+        "tokens_per_s": sorted(tokens_per_sec)[len(tokens_per_sec) // 2],
+    })
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Benchmark CPU inference modes")
+    parser.add_argument("--model", default="./chat_lung_model")
+    parser.add_argument("--modes", default="fp32,bf16,int8")
+    parser.add_argument("--threads", type=int, default=None)
+    parser.add_argument("--new-tokens", type=int, default=32)
+    parser.add_argument("--repeats", type=int, default=3)
+    args = parser.parse_args()
+
+    ctx = mp.get_context("spawn") # Fresh interpreter per mode - no memory left over from the previous model
+    rows = []
+    for mode in args.modes.split(","):
+        results = ctx.Queue()
+        proc = ctx.Process(target=_run_mode, args=(args.model, mode, args.threads, args.new_tokens, args.repeats, results))
+        proc.start()
+        proc.join()
+        if proc.exitcode != 0:
+            print(f"[{mode}] failed with exit code {proc.exitcode}")
+            continue
+        rows.append(results.get())
+
+    print(f"\n{'mode':<6} {'load s':>8} {'model MB':>9} {'peak MB':>9} {'1st tok ms':>11} {'tok/s':>8}")
+    for r in rows:
+        print(f"{r['mode']:<6} {r['load_s']:>8.2f} {r['rss_mb']:>9.0f} {r['peak_rss_mb']:>9.0f} "
+              f"{r['first_token_ms']:>11.1f} {r['tokens_per_s']:>8.2f}")
+
+
+if __name__ == "__main__":
+    main()
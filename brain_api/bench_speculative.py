@@ -0,0 +1,121 @@
+"""
+Compares standard decoding with assisted (speculative) decoding from inference.py on local checkpoints.
+
+    python bench_speculative.py --target ./chat_lung_model --draft ./chat_lung_draft_model --mode int8 --threads 8
+
+Without the real checkpoints, build a tiny pair first (needs only a local tokenizer, e.g. a copy of SmolLM2-135M-Instruct):
+
+    python bench_speculative.py --make-tiny ./tiny --tokenizer ./SmolLM2-135M-Instruct
+    python bench_speculative.py --target ./tiny/target --draft ./tiny/draft
+
+The tiny draft is the tiny target cut down to its first layer, so the two agree often enough to exercise the whole path -
+its acceptance rate says nothing about the real 135M draft. Decoding is greedy, so both modes must produce the same reply;
+the "same" column checks that. Every run uses a fresh process, like bench_inference.py.
+"""
+import argparse
+import hashlib
+import multiprocessing as mp
+
+PROMPTS = [
+    [{"role": "user", "content": "I have had a dry cough and shortness of breath for two weeks. What could it be?"}],
+    [{"role": "user", "content": "Is wheezing at night a sign of asthma?"}],
+    [{"role": "user", "content": "How do I use an inhaler correctly?"}],
+]
+
+
+def _run(target_path, draft_path, mode, draft_tokens, threads, new_tokens, repeats, results):
+    import torch
+    from inference import load_model, load_draft_model, warm_up
+    from speculative import DecodingStats
+
+    tokenizer, model = load_model(target_path, mode, threads)
+    draft_model = load_draft_model(draft_path, tokenizer, mode) if draft_tokens else None
+    extra = {"assistant_model": draft_model, "num_assistant_tokens": draft_tokens} if draft_model is not None else {}
+    warm_up(model, tokenizer, rounds=1, **extra)
+
+    stats = DecodingStats("assisted" if draft_model is not None else "standard", model, draft_model)
+    replies, latencies = [], []
+    for prompt in PROMPTS:
+        encoded = tokenizer.apply_chat_template(prompt, add_generation_prompt=True, return_tensors="pt", return_dict=True)
+        prompt_len = encoded["input_ids"].shape[1]
+        for _ in range(repeats):
+            with torch.no_grad(), stats.run() as run:
+                output = model.generate(**encoded, max_new_tokens=new_tokens, do_sample=False,
+                                        pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id, **extra)
+            run.finish(output.shape[1] - prompt_len)
+            latencies.append(run.seconds)
+        replies.append(output[0, prompt_len:].tolist())
+
+    row = stats.stats()
+    row["draft_tokens"] = draft_tokens
+    row["p50_ms"] = 1000 * sorted(latencies)[len(latencies) // 2]
+    row["replies"] = hashlib.sha1(repr(replies).encode()).hexdigest() # Only compared - keep what goes through the queue small
+    results.put(row)
+
+
+def make_tiny(out_dir, tokenizer_path):
+    """Random-weight target (4 layers) and draft (its first layer, same embeddings and head) sharing one tokenizer."""
+    import copy
+    import torch
+    from transformers import AutoTokenizer, LlamaConfig, LlamaForCausalLM
+
+    tokenizer = AutoTokenizer.from_pretrained(tokenizer_path)
+    config = LlamaConfig(vocab_size=len(tokenizer), hidden_size=256, intermediate_size=768, num_hidden_layers=4,
+                         num_attention_heads=4, num_key_value_heads=4, max_position_embeddings=2048,
+                         bos_token_id=tokenizer.bos_token_id, eos_token_id=tokenizer.eos_token_id, tie_word_embeddings=True)
+    torch.manual_seed(0)
+    target = LlamaForCausalLM(config)
+
+    draft = copy.deepcopy(target)
+    draft.model.layers = draft.model.layers[:1]
+    draft.config.num_hidden_layers = 1
+
+    for name, model in (("target", target), ("draft", draft)):
+        model.save_pretrained(f"{out_dir}/{name}")
+        tokenizer.save_pretrained(f"{out_dir}/{name}")
+    print(f"Wrote {out_dir}/target and {out_dir}/draft")
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Benchmark assisted decoding against standard decoding")
+    parser.add_argument("--target", default="./chat_lung_model")
+    parser.add_argument("--draft", default="./chat_lung_draft_model")
+    parser.add_argument("--mode", default="fp32", help="INFERENCE_MODE for both models")
+    parser.add_argument("--draft-tokens", default="3,5,8", help="DRAFT_TOKENS values to try")
+    parser.add_argument("--threads", type=int, default=None)
+    parser.add_argument("--new-tokens", type=int, default=60)
+    parser.add_argument("--repeats", type=int, default=3)
+    parser.add_argument("--make-tiny", metavar="DIR", help="Write a tiny random target/draft pair to DIR and exit")
+    parser.add_argument("--tokenizer", default="HuggingFaceTB/SmolLM2-135M-Instruct", help="Tokenizer for --make-tiny")
+    args = parser.parse_args()
+
+    if args.make_tiny:
+        make_tiny(args.make_tiny, args.tokenizer)
+        return
+
+    ctx = mp.get_context("spawn")
+    rows = []
+    for draft_tokens in [0] + [int(n) for n in args.draft_tokens.split(",")]: # 0 = standard decoding, the baseline
+        results = ctx.Queue()
+        proc = ctx.Process(target=_run, args=(args.target, args.draft, args.mode, draft_tokens, args.threads,
+                                              args.new_tokens, args.repeats, results))
+        proc.start()
+        proc.join()
+        if proc.exitcode != 0:
+            print(f"[draft_tokens={draft_tokens}] failed with exit code {proc.exitcode}")
+            continue
+        rows.append(results.get())
+
+    if not rows:
+        return
+    baseline = rows[0] if rows[0]["mode"] == "standard" else None
+    print(f"\n{'decoding':<9} {'draft':>5} {'accept':>7} {'tok/pass':>9} {'tok/s':>8} {'p50 ms':>8} {'speedup':>8} {'same':>5}")
+    for r in rows:
+        speedup = r["tokens_per_second"] / baseline["tokens_per_second"] if baseline and baseline["tokens_per_second"] else 0.0
+        same = "-" if not baseline or r is baseline else ("yes" if r["replies"] == baseline["replies"] else "NO")
+        print(f"{r['mode']:<9} {r['draft_tokens']:>5} {r['acceptance_rate']:>7.2f} {r['tokens_per_target_pass']:>9.2f} "
+              f"{r['tokens_per_second']:>8.2f} {r['p50_ms']:>8.0f} {speedup:>7.2f}x {same:>5}")
+
+
+if __name__ == "__main__":
+    main()
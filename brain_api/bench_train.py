@@ -0,0 +1,100 @@
+"""
+Smoke benchmark for the training loop in train.py: one epoch of a tiny random model per setting, CPU is enough.
+
+    python bench_train.py --examples 400
+    python bench_train.py --tokenizer ./SmolLM2-135M-Instruct   # real tokenizer instead of the built-in word-level one
+
+Compares the old setup (every example padded to 512) with dynamic padding + length buckets, gradient accumulation and
+bf16 autocast. The data is synthetic Q&A with a long-tailed answer length, like medical_data.jsonl: many short answers,
+a few long ones. Losses of different settings are not comparable - the max_length run also trains on its pad tokens.
+"""
+import argparse
+import random
+
+QUESTION_WORDS = "cough breath wheezing chest mucus asthma inhaler fever night stairs allergies lungs weeks smoke".split()
+ANSWER_WORDS = ("the airways may be inflamed which can cause a persistent cough and shortness of breath please see a "
+                "doctor if symptoms last more than three weeks or you notice blood fever or chest pain").split()
+
+
+def synthetic_data(n: int, seed: int = 0) -> list:
+    rng = random.Random(seed)
+    rows = []
+    for _ in range(n):
+        question = " ".join(rng.choices(QUESTION_WORDS, k=rng.randint(5, 20)))
+        answer_len = min(350, int(rng.lognormvariate(3.6, 0.7))) # Median ~35 words, long tail
+        rows.append({"instruction": question + "?", "response": " ".join(rng.choices(ANSWER_WORDS, k=answer_len)) + "."})
+    return rows
+
+
+def word_level_tokenizer(rows):
+    """A throwaway tokenizer built from the data itself, so the benchmark needs no download."""
+    from tokenizers import Tokenizer, models, pre_tokenizers, trainers
+    from transformers import PreTrainedTokenizerFast
+
+    specials = ["<pad>", "<unk>", "<|im_start|>", "<|im_end|>"]
+    raw = Tokenizer(models.WordLevel(unk_token="<unk>"))
+    raw.pre_tokenizer = pre_tokenizers.WhitespaceSplit()
+    raw.train_from_iterator((r["instruction"] + " " + r["response"] + " user assistant" for r in rows),
+                            trainers.WordLevelTrainer(special_tokens=specials))
+
+    tokenizer = PreTrainedTokenizerFast(tokenizer_object=raw, pad_token="<pad>", unk_token="<unk>", eos_token="<|im_end|>",
+                                        model_input_names=["input_ids", "attention_mask"])
+    tokenizer.chat_template = ("{% for m in messages %}<|im_start|> {{ m['role'] }} {{ m['content'] }} <|im_end|> {% endfor %}"
+                               "{% if add_generation_prompt %}<|im_start|> assistant {% endif %}")
+    return tokenizer
+
+
+def main():
+    parser = argparse.ArgumentParser(description="Benchmark train.py's padding, bucketing, accumulation and bf16 options")
+    parser.add_argument("--examples", type=int, default=400)
+    parser.add_argument("--batch-size", type=int, default=2)
+    parser.add_argument("--accum", type=int, default=4)
+    parser.add_argument("--tokenizer", default=None, help="Local tokenizer path (default: built-in word-level tokenizer)")
+    parser.add_argument("--threads", type=int, default=None)
+    args = parser.parse_args()
+
+    import torch
+    from datasets import Dataset
+    from transformers import AutoTokenizer, LlamaConfig, LlamaForCausalLM
+    from torch.optim import AdamW
+    from train import tokenize_fn, make_loader, train_epoch
+
+    if args.threads:
+        torch.set_num_threads(args.threads)
+    rows = synthetic_data(args.examples)
+    tokenizer = AutoTokenizer.from_pretrained(args.tokenizer) if args.tokenizer else word_level_tokenizer(rows)
+    if tokenizer.pad_token is None:
+        tokenizer.pad_token = tokenizer.eos_token
+
+    config = LlamaConfig(vocab_size=len(tokenizer), hidden_size=128, intermediate_size=384, num_hidden_layers=2,
+                         num_attention_heads=4, num_key_value_heads=4, max_position_embeddings=1024)
+    torch.manual_seed(0)
+    initial = LlamaForCausalLM(config).state_dict() # Every setting starts from the same weights
+
+    settings = [ # (name, padding, accumulation steps, bf16)
+        ("max_length (old)", "max_length", 1, False),
+        ("dynamic + buckets", "dynamic", 1, False),
+        (f"+ accum x{args.accum}", "dynamic", args.accum, False),
+        ("+ bf16 autocast", "dynamic", args.accum, True),
+    ]
+    device = torch.device("cpu")
+    results = []
+    for name, padding, accum, bf16 in settings:
+        dataset = Dataset.from_list(rows).map(tokenize_fn, batched=True, fn_kwargs={"tokenizer": tokenizer, "padding": padding},
+                                              remove_columns=["instruction", "response"])
+        loader = make_loader(dataset, tokenizer, args.batch_size, padding, shuffle=True)
+
+        model = LlamaForCausalLM(config)
+        model.load_state_dict(initial)
+        optimizer = AdamW(model.parameters(), lr=5e-4)
+        results.append((name, train_epoch(model, loader, optimizer, device, accum, bf16, desc=name)))
+
+    baseline = results[0][1]["seconds"]
+    print(f"\n{'setting':<20} {'epoch s':>8} {'tokens/s':>9} {'padding eff':>12} {'speedup':>8} {'loss':>7}")
+    for name, r in results:
+        print(f"{name:<20} {r['seconds']:>8.1f} {r['tokens_per_sec']:>9.0f} {r['padding_efficiency']:>12.1%} "
+              f"{baseline / r['seconds']:>7.2f}x {r['loss']:>7.3f}")
+
+
+if __name__ == "__main__":
+    main()
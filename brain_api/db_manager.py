@@ -1,8 +1,11 @@
-import mysql.connector
-from mysql.connector import Error, pooling
+import aiomysql
 import os
 import logging
-import asyncio # New import for run_in_executor
+import asyncio
+import itertools
+import time
+from collections import OrderedDict
+from contextlib import asynccontextmanager
 # Database credentials (store securely, e.g., in environment variables)
 # IMPORTANT: Replace "your_mysql_password" with your actual MySQL root password or a dedicated user's password.
 DB_HOST = os.getenv("DB_HOST", "localhost")
@@ -10,140 +13,288 @@ DB_USER = os.getenv("DB_USER", "root") # Use 'root'
 DB_PASSWORD = os.getenv("DB_PASSWORD", "") # Leave empty or None, as there's no password
 DB_NAME = os.getenv("DB_NAME", "telegram_bot_db") # Ensure this matches what you created
 
+# Native async driver: a query waits on the socket inside the event loop instead of holding a thread of the default
+# executor - the same executor asyncio.to_thread() uses to stream tokens, so DB calls no longer queue behind generation.
+#   DB_POOL_MIN=1  DB_POOL_MAX=10       connections per pool (the primary and every history shard have their own)
+#   DB_ACQUIRE_TIMEOUT_MS=2000          longest wait for a free connection before the call fails
+#   DB_QUERY_TIMEOUT_MS=5000            longest a single statement may run - the connection is dropped, not reused
+POOL_MIN = int(os.getenv("DB_POOL_MIN", "1"))
+POOL_MAX = int(os.getenv("DB_POOL_MAX", "10"))
+ACQUIRE_TIMEOUT = int(os.getenv("DB_ACQUIRE_TIMEOUT_MS", "2000")) / 1000
+QUERY_TIMEOUT = int(os.getenv("DB_QUERY_TIMEOUT_MS", "5000")) / 1000
+WAIT_BUCKETS = (0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 2) # Seconds, for the pool wait histogram in /metrics
+
+# Prepared-statement reuse. aiomysql only speaks the text protocol, so this is MariaDB's SQL-level PREPARE and
+# EXECUTE ... USING <values>: a query is parsed once per connection, every later call only sends the short EXECUTE with
+# its (client-escaped) values. MariaDB has no plan cache - the saving is the parse; bench_db.py --paths async,text
+# measures it. DB_PREPARED=0 sends every query as plain text, as before.
+PREPARED = os.getenv("DB_PREPARED", "1") == "1"
+PREPARED_PER_CONNECTION = 32 # LRU per connection - brain_api has far fewer distinct queries (server limit: max_prepared_stmt_count)
+ER_UNKNOWN_STMT_HANDLER = 1243
+_statement_names = itertools.count(1)
+_unpreparable = set() # Queries the server refused to PREPARE - sent as text from then on
+
 
 logger = logging.getLogger(__name__)
+POOLS = {} # pool_name -> DbPool, for /metrics
 
-def create_db_pool():
-    """Establishes a MySQL database connection pool."""
-    try:
-        pool = mysql.connector.pooling.MySQLConnectionPool(
-            pool_name="telegram_bot_pool",
-            pool_size=5,  # Adjust as needed
-            host=DB_HOST,
-            user=DB_USER,
-            password=DB_PASSWORD,
-            database=DB_NAME,
-            connection_timeout=60
-        )
 
+class DbPool:
+    """aiomysql pool plus wait metrics. Built synchronously (ShardRouter makes its pools in __init__); the connections
+    open in open(), or on first use."""
+
+    def __init__(self, pool_name: str, host: str, port: int):
+        self.name = pool_name
+        self.host = host
+        self.port = port
+        self._pool = None
+        self._opening = asyncio.Lock()
+
+        self.acquires = 0
+        self.wait_seconds = 0.0
+        self.max_wait = 0.0
+        self.buckets = [0] * len(WAIT_BUCKETS)
+        self.acquire_timeouts = 0
+        self.query_timeouts = 0
+        self.errors = 0
+        self.in_use = 0
+        self.prepares = 0
+        self.prepared_executes = 0
+
+    async def open(self):
+        async with self._opening:
+            if self._pool is None:
+                self._pool = await aiomysql.create_pool(
+                    host=self.host, port=self.port, user=DB_USER, password=DB_PASSWORD, db=DB_NAME,
+                    minsize=POOL_MIN, maxsize=POOL_MAX, connect_timeout=60,
+                    autocommit=True, # A SELECT doesn't leave a transaction (and a stale snapshot) open - transactions use BEGIN
+                    pool_recycle=3600, # Well inside the server's wait_timeout - never hand out a connection it already closed
+                    charset="utf8mb4",
+                )
+        return self._pool
+
+    @asynccontextmanager
+    async def connection(self):
+        pool = self._pool or await self.open()
+        start = time.perf_counter()
+        try:
+            connection = await asyncio.wait_for(pool.acquire(), ACQUIRE_TIMEOUT)
+        except asyncio.TimeoutError:
+            self.acquire_timeouts += 1
+            raise asyncio.TimeoutError(f"No free connection in pool {self.name} after {ACQUIRE_TIMEOUT:g} s") from None
+        self._record_wait(time.perf_counter() - start)
+
+        self.in_use += 1
+        try:
+            yield connection
+        except asyncio.CancelledError:
+            connection.close() # The request went away mid-query - the connection's state is unknown, don't hand it out again
+            raise
+        finally:
+            self.in_use -= 1
+            pool.release(connection) # A closed connection is dropped and replaced
+
+    def _record_wait(self, seconds: float):
+        self.acquires += 1
+        self.wait_seconds += seconds
+        self.max_wait = max(self.max_wait, seconds)
+        for i, bound in enumerate(WAIT_BUCKETS):
+            if seconds <= bound:
+                self.buckets[i] += 1
+
+    def stats(self) -> dict:
+        pool = self._pool
+        return {
+            "size": pool.size if pool else 0,
+            "free": pool.freesize if pool else 0,
+            "in_use": self.in_use,
+            "max_size": POOL_MAX,
+            "acquires": self.acquires,
+            "avg_wait_ms": round(1000 * self.wait_seconds / self.acquires, 3) if self.acquires else 0.0,
+            "max_wait_ms": round(1000 * self.max_wait, 3),
+            "acquire_timeouts": self.acquire_timeouts,
+            "query_timeouts": self.query_timeouts,
+            "errors": self.errors,
+            "prepares": self.prepares,
+            "prepared_executes": self.prepared_executes,
+        }
+
+    async def close(self):
+        if self._pool:
+            self._pool.close()
+            await self._pool.wait_closed()
+
+
+def create_db_pool(host: str = DB_HOST, port: int = 3306, pool_name: str = "telegram_bot_pool"):
+    """Creates a database connection pool (the primary by default, or one history shard - see shards.py).
+    Call `await pool.open()` at startup to connect right away; otherwise the first query does."""
+    pool = DbPool(pool_name, host, port)
+    POOLS[pool_name] = pool
+    return pool
+
+async def open_db_pool(pool: DbPool):
+    """Connects a pool made by create_db_pool. Returns None (and logs) if the database is unreachable."""
+    try:
+        await pool.open()
         logger.info("Database connection pool established successfully! ✅")
         return pool
-    except mysql.connector.Error as err: # Use mysql.connector.Error for specific DB errors
-        logger.critical(f"FATAL ERROR: Could not connect to the database or establish pool. Details: {err}", exc_info=True)
+    except Exception as e:
+        logger.critical(f"FATAL ERROR: Could not connect to the database or establish pool. Details: {e}", exc_info=True)
         return None
-    except Exception as e: # Catch any other unexpected errors
-        logger.critical(f"FATAL ERROR: An unexpected error occurred during database pool creation. Details: {e}", exc_info=True)
+
+def pool_metrics() -> str:
+    """Prometheus text format: connections in use, waits for a free connection, timeouts - per pool."""
+    lines = []
+    for metric, kind, value in (("db_pool_connections", "gauge", lambda s: s["size"]),
+                                ("db_pool_in_use", "gauge", lambda s: s["in_use"]),
+                                ("db_pool_acquire_timeouts_total", "counter", lambda s: s["acquire_timeouts"]),
+                                ("db_query_timeouts_total", "counter", lambda s: s["query_timeouts"]),
+                                ("db_query_errors_total", "counter", lambda s: s["errors"]),
+                                ("db_statement_prepares_total", "counter", lambda s: s["prepares"]),
+                                ("db_prepared_executes_total", "counter", lambda s: s["prepared_executes"])):
+        lines.append(f"# TYPE doctorbot_{metric} {kind}")
+        lines += [f'doctorbot_{metric}{{pool="{name}"}} {value(p.stats())}' for name, p in POOLS.items()]
+
+    lines.append("# TYPE doctorbot_db_pool_wait_seconds histogram")
+    for name, p in POOLS.items():
+        for bound, count in zip(WAIT_BUCKETS, p.buckets):
+            lines.append(f'doctorbot_db_pool_wait_seconds_bucket{{pool="{name}",le="{bound}"}} {count}')
+        lines.append(f'doctorbot_db_pool_wait_seconds_bucket{{pool="{name}",le="+Inf"}} {p.acquires}')
+        lines.append(f'doctorbot_db_pool_wait_seconds_sum{{pool="{name}"}} {p.wait_seconds:.6f}')
+        lines.append(f'doctorbot_db_pool_wait_seconds_count{{pool="{name}"}} {p.acquires}')
+    return "\n".join(lines) + "\n"
+
+async def _execute(db_pool: DbPool, cursor, query: str, params):
+    try:
+        await asyncio.wait_for(_run(db_pool, cursor, query, params), QUERY_TIMEOUT)
+    except asyncio.TimeoutError:
+        db_pool.query_timeouts += 1
+        cursor.connection.close() # The statement may still be running - this connection can't be reused
+        raise asyncio.TimeoutError(f"Query took longer than {QUERY_TIMEOUT:g} s") from None
+
+
+async def _run(db_pool: DbPool, cursor, query: str, params):
+    if not PREPARED or not params or query in _unpreparable: # Without parameters there is nothing to reuse the parse for
+        await cursor.execute(query, params or ())
+        return
+
+    statements = _statements(cursor.connection)
+    name = statements.get(query)
+    if name is None:
+        name = await _prepare(db_pool, cursor, statements, query)
+        if name is None:
+            await cursor.execute(query, params)
+            return
+    else:
+        statements.move_to_end(query)
+
+    try:
+        await cursor.execute(f"EXECUTE {name} USING {', '.join(['%s'] * len(params))}", params)
+        db_pool.prepared_executes += 1
+    except Exception as e:
+        if _errno(e) != ER_UNKNOWN_STMT_HANDLER:
+            raise
+        statements.clear() # The server no longer has this connection's statements - prepare again next time
+        await cursor.execute(query, params)
+
+
+def _statements(connection) -> OrderedDict:
+    # query -> statement name, kept on the connection itself: prepared statements live and die with the server session
+    statements = getattr(connection, "_doctorbot_statements", None)
+    if statements is None:
+        statements = OrderedDict()
+        connection._doctorbot_statements = statements
+    return statements
+
+
+async def _prepare(db_pool: DbPool, cursor, statements: OrderedDict, query: str):
+    if len(statements) >= PREPARED_PER_CONNECTION:
+        _, oldest = statements.popitem(last=False)
+        await cursor.execute(f"DEALLOCATE PREPARE {oldest}")
+
+    name = f"doctorbot_{next(_statement_names)}"
+    try:
+        await cursor.execute(f"PREPARE {name} FROM %s", (query.replace("%s", "?"),))
+    except Exception as e:
+        errno = _errno(e)
+        if errno is None or errno >= 2000: # Client side (lost connection...) - not the statement's fault
+            raise
+        _unpreparable.add(query)
+        logger.warning(f"Query can't be prepared ({e}), sending it as text: {query}")
         return None
+    db_pool.prepares += 1
+    statements[query] = name
+    return name
 
-async def execute_transaction_query(db_pool: pooling.MySQLConnectionPool, queries: list, params_list: list = None):
-    loop = asyncio.get_event_loop()
-    return await loop.run_in_executor(
-        None, # Use the default thread pool executor
-        _execute_transaction_query_sync, # The synchronous function to run
-        db_pool, queries, params_list
-    )
 
+def _errno(error):
+    code = error.args[0] if getattr(error, "args", None) else None
+    return code if isinstance(code, int) else None
 
-def _execute_transaction_query_sync(db_pool, queries: list, params_list: list = None):
-    connection = None
-    cursor = None
+
+async def execute_transaction_query(db_pool: DbPool, queries: list, params_list: list = None):
+    i = 0
     try:
-        connection = db_pool.get_connection()
-        cursor = connection.cursor(dictionary=True)
-        
-        # Start transaction explicitly via the driver
-        connection.start_transaction()
-        
-        summaries = []
-        # Loop through the list of queries
-        for i, sql in enumerate(queries):
-            params = params_list[i] if params_list else ()
-            cursor.execute(sql, params)
-            summaries.append({"query_index": i, "affected": cursor.rowcount})
-            
-        connection.commit()
-        return summaries
+        async with db_pool.connection() as connection, connection.cursor() as cursor:
+            await connection.begin()
+            try:
+                summaries = []
+                # Loop through the list of queries
+                for i, sql in enumerate(queries):
+                    params = params_list[i] if params_list else ()
+                    await _execute(db_pool, cursor, sql, params)
+                    summaries.append({"query_index": i, "affected": cursor.rowcount})
+
+                await connection.commit()
+                return summaries
+            except Exception:
+                if not connection.closed:
+                    await connection.rollback()
+                raise
 
     except Exception as e:
-        if connection:
-            connection.rollback()
+        db_pool.errors += 1
         print(f"Transaction failed at query {i}: {e}")
         return None
-    finally:
-        if cursor: cursor.close()
-        if connection: connection.close()
 
 
-async def execute_query(db_pool: pooling.MySQLConnectionPool, query: str, params: tuple = None) -> int | None:
+async def execute_query(db_pool: DbPool, query: str, params: tuple = None) -> int | None:
     """
-    Executes a single query (INSERT, UPDATE, DELETE) in a separate thread.
+    Executes a single query (INSERT, UPDATE, DELETE) on the event loop.
     Returns lastrowid for INSERT, or None on failure.
     """
-    loop = asyncio.get_event_loop()
-    return await loop.run_in_executor(
-        None, # Use the default thread pool executor
-        _execute_query_sync, # The synchronous function to run
-        db_pool, query, params
-    )
-
-def _execute_query_sync(db_pool: pooling.MySQLConnectionPool, query: str, params: tuple) -> int | None:
-    """Synchronous helper for execute_query to be run in a thread pool."""
-    connection = None
-    cursor = None
     try:
-        connection = db_pool.get_connection()
-        cursor = connection.cursor()
-        cursor.execute(query, params or ())
-        connection.commit()
-        return cursor.lastrowid # Returns ID for INSERT
-    except Error as e:
+        async with db_pool.connection() as connection, connection.cursor() as cursor:
+            await _execute(db_pool, cursor, query, params) # Autocommit - one statement is its own transaction
+            return cursor.lastrowid # Returns ID for INSERT
+    except Exception as e:
+        db_pool.errors += 1
         logger.error(f"Error executing query: {e}. Query: {query}", exc_info=True)
-        if connection:
-            connection.rollback() # Rollback on error
         return None
-    finally:
-        if cursor:
-            cursor.close()
-        if connection and connection.is_connected():
-            connection.close() # Release connection back to the pool
 
-async def fetch_query(db_pool: pooling.MySQLConnectionPool, query: str, params: tuple = None, fetch_one: bool = False):
+async def fetch_query(db_pool: DbPool, query: str, params: tuple = None, fetch_one: bool = False, raise_errors: bool = False):
     """
-    Fetches data from a query (SELECT) in a separate thread.
+    Fetches data from a query (SELECT) on the event loop.
     Args:
         db_pool: The database connection pool.
         query: The SQL query string.
         params: Tuple of parameters for the query.
         fetch_one: If True, fetches a single row; otherwise, fetches all rows.
+        raise_errors: If True, a failed query raises (after being counted and logged) instead of looking like "no rows".
     Returns:
         A dictionary (if fetch_one) or a list of dictionaries, or None/empty list on error/no results.
     """
-    loop = asyncio.get_event_loop()
-    return await loop.run_in_executor(
-        None, # Use the default thread pool executor
-        _fetch_query_sync, # The synchronous function to run
-        db_pool, query, params, fetch_one
-    )
-
-def _fetch_query_sync(db_pool: pooling.MySQLConnectionPool, query: str, params: tuple, fetch_one: bool):
-    """Synchronous helper for fetch_query to be run in a thread pool."""
-    connection = None
-    cursor = None
     try:
-        connection = db_pool.get_connection()
-        cursor = connection.cursor(dictionary=True) # Returns rows as dictionaries
-        cursor.execute(query, params or ())
-        if fetch_one:
-            result = cursor.fetchone()
-        else:
-            result = cursor.fetchall()
-        return result
-    except Error as e:
+        async with db_pool.connection() as connection, connection.cursor(aiomysql.DictCursor) as cursor: # Rows as dictionaries
+            await _execute(db_pool, cursor, query, params)
+            if fetch_one:
+                result = await cursor.fetchone()
+            else:
+                result = list(await cursor.fetchall())
+            return result
+    except Exception as e:
+        db_pool.errors += 1
         logger.error(f"Error fetching data: {e}. Query: {query}", exc_info=True)
-        # No rollback needed for SELECTs typically, unless transaction management is complex
+        if raise_errors:
+            raise
         return None if fetch_one else []
-    finally:
-        if cursor:
-            cursor.close()
-        if connection and connection.is_connected():
-            connection.close() # Release connection back to the pool
@@ -0,0 +1,205 @@
+import os
+import threading
+import time
+
+import torch
+from transformers import StoppingCriteria
+
+# Per-request limits for generate(): how many tokens, when to stop early, and a way to stop on demand.
+#   length       "short" | "normal" | "long" - presets for clients without their own number; normal = the old fixed 60
+#   max_new_tokens  explicit budget, capped at MAX_NEW_TOKENS
+#   stop         up to 4 strings; the reply ends before the first one
+#   deadline_ms  wall-clock limit from the moment the request arrived (queueing included), capped at GENERATION_DEADLINE_MS
+# A generation is also stopped by POST /cancel, by a newer message in the same conversation, or by the client going away.
+# generate() checks the flag between two tokens, so the model's slot is free again one forward pass after the cancel.
+
+LENGTH_PRESETS = {"short": 40, "normal": 60, "long": 200}
+MAX_NEW_TOKENS = int(os.getenv("MAX_NEW_TOKENS", "400"))
+MAX_DEADLINE_MS = int(os.getenv("GENERATION_DEADLINE_MS", "60000")) # Also the deadline when the request doesn't set one
+MAX_STOP_SEQUENCES = 4
+MAX_STOP_CHARS = 40 # A token is at least one character, so the last MAX_STOP_CHARS tokens always contain a whole stop string
+CANCEL_BUCKETS = (0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2) # Seconds from cancel to a free slot, for /metrics
+
+
+def token_budget(length: str = None, max_new_tokens: int = None) -> int:
+    if max_new_tokens:
+        return max(1, min(MAX_NEW_TOKENS, max_new_tokens))
+    return min(MAX_NEW_TOKENS, LENGTH_PRESETS.get(length or "normal", LENGTH_PRESETS["normal"]))
+
+
+def stop_sequences(stop) -> list:
+    return [s[:MAX_STOP_CHARS] for s in (stop or []) if s][:MAX_STOP_SEQUENCES]
+
+
+class Generation:
+    """One reply being generated: its budget, and the flag that ends it early."""
+
+    def __init__(self, key, max_new_tokens: int, stop: list, deadline_ms: int):
+        self.key = key
+        self.max_new_tokens = max_new_tokens
+        self.stop = stop
+        self.deadline = time.monotonic() + min(deadline_ms or MAX_DEADLINE_MS, MAX_DEADLINE_MS) / 1000
+        self.flag = threading.Event()
+        self.reason = None # cancelled | stop | deadline | error - None while running and for natural ends (eos, budget)
+        self.cancelled_at = None
+        self.tokens = 0
+
+    @property
+    def cancelled(self) -> bool:
+        return self.reason == "cancelled"
+
+    @property
+    def failed(self) -> bool:
+        return self.reason == "error"
+
+    @property
+    def outcome(self) -> str:
+        return self.reason or ("length" if self.tokens >= self.max_new_tokens else "eos")
+
+    def cancel(self, reason: str = "cancelled"):
+        if not self.flag.is_set():
+            self.reason = reason
+            self.cancelled_at = time.perf_counter()
+            self.flag.set()
+
+    def criteria(self, tokenizer, prompt_len: int) -> StoppingCriteria:
+        return _Criteria(self, tokenizer, prompt_len)
+
+    def trim(self, text: str) -> str:
+        """Cuts a finished reply before its first stop sequence."""
+        cut = min((i for i in (text.find(s) for s in self.stop) if i >= 0), default=-1)
+        return text if cut < 0 else text[:cut]
+
+    def stream_filter(self) -> "StopFilter":
+        return StopFilter(self.stop)
+
+
+class _Criteria(StoppingCriteria):
+    # Runs after every generated token (or every accepted block, with assisted decoding)
+    def __init__(self, generation: Generation, tokenizer, prompt_len: int):
+        self.generation = generation
+        self.tokenizer = tokenizer
+        self.prompt_len = prompt_len
+
+    def __call__(self, input_ids, scores, **kwargs):
+        g = self.generation
+        g.tokens = input_ids.shape[1] - self.prompt_len
+        stop = g.flag.is_set()
+
+        if not stop and time.monotonic() > g.deadline:
+            g.reason, stop = "deadline", True
+        if not stop and g.stop:
+            tail = self.tokenizer.decode(input_ids[0, max(self.prompt_len, input_ids.shape[1] - MAX_STOP_CHARS):], skip_special_tokens=True)
+            if any(s in tail for s in g.stop):
+                g.reason, stop = "stop", True
+        return torch.full((input_ids.shape[0],), stop, dtype=torch.bool, device=input_ids.device)
+
+
+class StopFilter:
+    """For streamed replies: passes text through, but holds back anything that may be the start of a stop sequence,
+    so the client never sees a stop string (or half of one)."""
+
+    def __init__(self, stop: list):
+        self.stop = stop
+        self.pending = ""
+        self.hit = False
+
+    def feed(self, chunk: str) -> str:
+        if self.hit:
+            return ""
+        if not self.stop:
+            return chunk
+
+        self.pending += chunk
+        cut = min((i for i in (self.pending.find(s) for s in self.stop) if i >= 0), default=-1)
+        if cut >= 0:
+            self.hit = True
+            out, self.pending = self.pending[:cut], ""
+            return out
+
+        hold = max((n for s in self.stop for n in range(1, len(s)) if self.pending.endswith(s[:n])), default=0)
+        out = self.pending[:len(self.pending) - hold]
+        self.pending = self.pending[len(out):]
+        return out
+
+    def flush(self) -> str:
+        out, self.pending = ("" if self.hit else self.pending), ""
+        return out
+
+
+class GenerationRegistry:
+    """Generations in flight, by (user, conversation or request id) - what /cancel and a newer message stop.
+    Also counts how every generation ended and how much work cancelling saved."""
+
+    def __init__(self):
+        self._lock = threading.Lock()
+        self.active = {}
+        self.outcomes = {"eos": 0, "length": 0, "stop": 0, "deadline": 0, "cancelled": 0, "error": 0}
+        self.generated_tokens = 0
+        self.saved_tokens = 0 # Budget left over when a generation ended early - tokens we didn't compute
+        self.cancel_seconds = 0.0
+        self.cancel_max = 0.0
+        self.cancel_buckets = [0] * len(CANCEL_BUCKETS)
+
+    def start(self, user_id: str, scope: str, max_new_tokens: int, stop: list, deadline_ms: int) -> Generation:
+        generation = Generation((user_id, scope), max_new_tokens, stop, deadline_ms)
+        with self._lock:
+            previous = self.active.get(generation.key)
+            self.active[generation.key] = generation
+        if previous:
+            previous.cancel() # A newer message in the same conversation - nobody is waiting for the old reply any more
+        return generation
+
+    def cancel(self, user_id: str, scope: str = None) -> int:
+        with self._lock:
+            found = [g for key, g in self.active.items() if key[0] == user_id and scope in (None, key[1])]
+        for generation in found:
+            generation.cancel()
+        return len(found)
+
+    def finish(self, generation: Generation):
+        outcome = generation.outcome
+        with self._lock:
+            if self.active.get(generation.key) is generation:
+                del self.active[generation.key]
+            self.outcomes[outcome] += 1
+            self.generated_tokens += generation.tokens
+            if generation.reason and not generation.failed: # A failed generation didn't save anything, it just stopped
+                self.saved_tokens += max(0, generation.max_new_tokens - generation.tokens)
+            if generation.cancelled:
+                seconds = time.perf_counter() - generation.cancelled_at
+                self.cancel_seconds += seconds
+                self.cancel_max = max(self.cancel_max, seconds)
+                for i, bound in enumerate(CANCEL_BUCKETS):
+                    if seconds <= bound:
+                        self.cancel_buckets[i] += 1
+
+    def stats(self) -> dict:
+        with self._lock:
+            cancelled = self.outcomes["cancelled"]
+            return {
+                "in_flight": len(self.active),
+                "outcomes": dict(self.outcomes),
+                "generated_tokens": self.generated_tokens,
+                "saved_tokens": self.saved_tokens,
+                "avg_cancel_ms": round(1000 * self.cancel_seconds / cancelled, 1) if cancelled else 0.0,
+                "max_cancel_ms": round(1000 * self.cancel_max, 1),
+            }
+
+    def metrics(self) -> str:
+        """Prometheus text format: how generations ended, tokens generated and saved, cancel-to-free-slot latency."""
+        with self._lock:
+            lines = ["# TYPE doctorbot_generations_total counter"]
+            lines += [f'doctorbot_generations_total{{outcome="{outcome}"}} {count}' for outcome, count in self.outcomes.items()]
+            lines.append("# TYPE doctorbot_generation_tokens_total counter")
+            lines.append(f"doctorbot_generation_tokens_total {self.generated_tokens}")
+            lines.append("# TYPE doctorbot_generation_saved_tokens_total counter")
+            lines.append(f"doctorbot_generation_saved_tokens_total {self.saved_tokens}")
+
+            lines.append("# TYPE doctorbot_generation_cancel_seconds histogram")
+            for bound, count in zip(CANCEL_BUCKETS, self.cancel_buckets):
+                lines.append(f'doctorbot_generation_cancel_seconds_bucket{{le="{bound}"}} {count}')
+            lines.append(f'doctorbot_generation_cancel_seconds_bucket{{le="+Inf"}} {self.outcomes["cancelled"]}')
+            lines.append(f"doctorbot_generation_cancel_seconds_sum {self.cancel_seconds:.4f}")
+            lines.append(f'doctorbot_generation_cancel_seconds_count {self.outcomes["cancelled"]}')
+        return "\n".join(lines) + "\n"
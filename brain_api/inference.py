@@ -0,0 +1,85 @@
+import os
+import time
+import torch
+from transformers import AutoModelForCausalLM, AutoTokenizer
+
+# How the model is loaded for serving. Production hosts are CPU-only, where plain float32 is the slowest
+# and biggest option, so the mode is selectable per deployment:
+#   auto - float16 on GPU, float32 on CPU (the old behaviour)
+#   fp32 - float32 on CPU
+#   bf16 - bfloat16 weights on CPU (half the memory, fast on CPUs with AVX512-BF16/AMX)
+#   int8 - float32 model with every nn.Linear dynamically quantized to int8 (smallest, fastest on most x86 CPUs)
+INFERENCE_MODES = ("auto", "fp32", "bf16", "int8")
+
+# How replies are decoded:
+#   standard - one full forward pass of the served model per new token (the old behaviour)
+#   assisted - a small draft model (e.g. SmolLM2-135M fine-tuned with train.py) guesses a few tokens ahead and the
+#              served model checks all of them in ONE forward pass, keeping the longest prefix it agrees with.
+#              Output follows the served model's distribution; it is only faster when the draft is right often enough.
+DECODING_MODES = ("standard", "assisted")
+
+
+def configure_threads(num_threads: int | None):
+    # Default torch picks one thread per core including hyper-threads, which usually hurts matmul throughput
+    if num_threads:
+        torch.set_num_threads(num_threads)
+        torch.set_num_interop_threads(max(1, min(4, num_threads // 2)))
+
+
+def load_model(model_path: str, mode: str = "auto", num_threads: int | None = None):
+    if mode not in INFERENCE_MODES:
+        raise ValueError(f"Unknown INFERENCE_MODE '{mode}', expected one of {INFERENCE_MODES}")
+
+    configure_threads(num_threads)
+    tokenizer = AutoTokenizer.from_pretrained(model_path)
+
+    if mode == "auto":
+        model = AutoModelForCausalLM.from_pretrained(
+            model_path,
+            torch_dtype=torch.float16 if torch.cuda.is_available() else torch.float32, # Use float16 for faster inference on compatible GPUs, otherwise fall back to float32 for CPU
+            device_map="auto" # Automatically place model layers on available devices (GPU if available, otherwise CPU)
+        )
+    elif mode == "bf16":
+        model = AutoModelForCausalLM.from_pretrained(model_path, torch_dtype=torch.bfloat16)
+    else:
+        model = AutoModelForCausalLM.from_pretrained(model_path, torch_dtype=torch.float32)
+        if mode == "int8":
+            # Weights are stored as int8, activations are quantized on the fly - no calibration data needed
+            model = torch.ao.quantization.quantize_dynamic(model, {torch.nn.Linear}, dtype=torch.qint8)
+
+    model.eval()
+    return tokenizer, model
+
+
+def load_draft_model(draft_path: str, tokenizer, mode: str = "auto"):
+    """Loads the draft model for assisted decoding. It must use the served model's tokenizer - the candidate token ids are
+    handed to the served model as they are."""
+    draft_tokenizer, draft_model = load_model(draft_path, mode) # Threads are process-wide and already set by the served model
+    if draft_tokenizer.get_vocab() != tokenizer.get_vocab():
+        raise ValueError(f"Draft model '{draft_path}' has a different tokenizer than the served model")
+    return draft_model
+
+
+def warm_up(model, tokenizer, rounds: int = 2, **generate_kwargs):
+    """Runs a couple of tiny generations so the first real user doesn't pay for kernel selection and allocator growth."""
+    encoded = tokenizer.apply_chat_template([{"role": "user", "content": "Hello doctor"}],
+                                            add_generation_prompt=True, return_tensors="pt", return_dict=True)
+    start = time.perf_counter()
+    with torch.no_grad():
+        for _ in range(rounds):
+            model.generate(**encoded.to(model.device), max_new_tokens=8, do_sample=False,
+                           pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id, **generate_kwargs)
+    return time.perf_counter() - start
+
+
+def settings_from_env():
+    num_threads = os.getenv("TORCH_THREADS")
+    return os.getenv("INFERENCE_MODE", "auto"), int(num_threads) if num_threads else None
+
+
+def decoding_from_env():
+    # DECODING_MODE=assisted DRAFT_MODEL_PATH=./chat_lung_draft_model DRAFT_TOKENS=5
+    mode = os.getenv("DECODING_MODE", "standard")
+    if mode not in DECODING_MODES:
+        raise ValueError(f"Unknown DECODING_MODE '{mode}', expected one of {DECODING_MODES}")
+    return mode, os.getenv("DRAFT_MODEL_PATH", "./chat_lung_draft_model"), int(os.getenv("DRAFT_TOKENS", "5"))
@@ -1,13 +1,25 @@
-from fastapi import FastAPI, HTTPException
+from fastapi import FastAPI, HTTPException, Request, Header, Depends
 import smtplib
 from email.message import EmailMessage
 from fastapi.concurrency import asynccontextmanager
 from fastapi.responses import HTMLResponse
 from pydantic import BaseModel
-from transformers import AutoModelForCausalLM, AutoTokenizer, pipeline
+from fastapi.responses import StreamingResponse, PlainTextResponse
+from transformers import TextIteratorStreamer, LogitsProcessor, LogitsProcessorList, StoppingCriteriaList
 import torch
-from db_manager import create_db_pool, execute_query, fetch_query, execute_transaction_query
+from db_manager import create_db_pool, open_db_pool, pool_metrics, POOLS, execute_query, fetch_query, execute_transaction_query
 import asyncio
+import queue
+import threading
+import time
+import os
+import uuid
+from prefix_cache import SHARED_USER
+from shards import ShardRouter
+from inference import settings_from_env, decoding_from_env
+from model_router import ModelRouter, RouterBusy
+from generation_control import GenerationRegistry, token_budget, stop_sequences, MAX_DEADLINE_MS
+from sessions import Session, verifier, bearer_token
 from datetime import datetime, timedelta
 from fastapi.middleware.cors import CORSMiddleware
 
@@ -19,24 +31,36 @@ SENDER_PASSWORD = "" # For security, you should use environment variables or a s
 # 1. Load your CUSTOM "Lung AI" model
 MODEL_PATH = "./chat_lung_model" 
 
-print("Loading your fine-tuned Lung AI...")
-tokenizer = AutoTokenizer.from_pretrained(MODEL_PATH) 
-model = AutoModelForCausalLM.from_pretrained(
-    MODEL_PATH,
-    torch_dtype=torch.float16 if torch.cuda.is_available() else torch.float32, # Use float16 for faster inference on compatible GPUs, otherwise fall back to float32 for CPU
-    device_map="auto" # Automatically place model layers on available devices (GPU if available, otherwise CPU)
-)
+INFERENCE_MODE, TORCH_THREADS = settings_from_env() # e.g. INFERENCE_MODE=int8 TORCH_THREADS=8 on the CPU hosts
+
+DECODING_MODE, DRAFT_MODEL_PATH, DRAFT_TOKENS = decoding_from_env() # Assisted decoding: a draft model proposes, the served model verifies
+
+# KV-cache of conversation prefixes - each new turn only runs the NEW tokens through the model
+PREFIX_CACHE_MB = int(os.getenv("PREFIX_CACHE_MB", "512")) # Memory budget for cached past-key-values, shared by all models
 
-# Use the pipeline for easier chat handling
-generator = pipeline("text-generation", model=model, tokenizer=tokenizer) # No need for 'device' argument when using device_map="auto"
+# Every checkpoint we serve and the rules for picking one per request - see model_router.py
+print(f"Loading your fine-tuned Lung AI (mode={INFERENCE_MODE}, threads={TORCH_THREADS or torch.get_num_threads()})...")
+router = ModelRouter(os.getenv("ROUTER_MODELS") or f"default={MODEL_PATH}", INFERENCE_MODE, TORCH_THREADS,
+                     PREFIX_CACHE_MB * 2**20, DECODING_MODE, DRAFT_MODEL_PATH, DRAFT_TOKENS)
+generations = GenerationRegistry() # Budget, stop sequences and deadline of every reply in flight - and how to cancel it (generation_control.py)
 # chat_histories = {} # In a real app, you'd use a database. For now, we use a global dictionary.
 
 @asynccontextmanager
 async def lifespan(app: FastAPI):
     # --- STARTUP LOGIC ---
     # Initialize the global pool once
-    global db_pool
+    global db_pool, history_shards
     db_pool = create_db_pool()
+    await open_db_pool(db_pool) # Fails loudly at startup, but keeps the pool - the next query tries to connect again
+    history_shards = ShardRouter(db_pool) # DB_SHARDS unset = history stays in db_pool, as before
+    await history_shards.open()
+    if history_shards.sharded:
+        try:
+            await history_shards.refresh_overrides() # Know the users being moved BEFORE the first save_turn
+        except Exception as e:
+            print(f"Could not load shard overrides, routing by the ring until the primary answers: {e}") # Same as DbRouter
+        asyncio.create_task(history_shards.keep_overrides_fresh())
+    prime_shared_prefix()
     
     # Run the cleanup task in the background
     asyncio.create_task(cleanup_expired_accounts(db_pool))
@@ -47,11 +71,14 @@ async def lifespan(app: FastAPI):
     
     # --- SHUTDOWN LOGIC ---
     if db_pool:
-        db_pool._remove_connections()
+        await db_pool.close()
+    if history_shards:
+        await history_shards.close()
     print("Server stopping: Database pool closed.")
 
 app = FastAPI(lifespan=lifespan) # We will define the lifespan function later to handle startup and shutdown events
 db_pool = None # We'll initialize this in the lifespan function
+history_shards = None # chat_history pools per shard, also created in lifespan
 
 app.add_middleware(
     CORSMiddleware,
@@ -61,25 +88,308 @@ app.add_middleware(
     allow_headers=["*"],
 )
 
+MASTER_PROMPT = {"role": "system", "content": "You are AI Doctor bot, a professional Pulmonologist."} # This structure matches the SmolLM2-Instruct format
+GENERATION_ARGS = {"do_sample": True, "temperature": 0.7} # max_new_tokens comes from the request - see token_budget()
+DISCONNECT_POLL_SECONDS = 0.25 # How often /ask checks whether its client is still there
+STREAM_STALL_SECONDS = MAX_DEADLINE_MS / 1000 # No token for longer than any deadline allows = generate() is stuck or gone
+
+class _PrefillTimer(LogitsProcessor):
+    # Called once per generated token - the first call marks the end of prompt processing (prefill)
+    def __init__(self):
+        self.start = time.perf_counter()
+        self.prefill_seconds = None
+
+    def __call__(self, input_ids, scores):
+        if self.prefill_seconds is None:
+            self.prefill_seconds = time.perf_counter() - self.start
+        return scores
+
+def generate_reply(lease, user_id: str, conversation: list, generation, streamer=None) -> str:
+    """Runs the model the router picked on a chat, reusing the cached KV prefix of this user's previous turns when possible."""
+    with lease as slot: # Frees the model's slot and records the latency, even if generate() fails
+        try:
+            if generation.flag.is_set(): # Cancelled while it waited - don't run the model at all
+                if streamer: streamer.end()
+                return ""
+            return _generate(slot, user_id, conversation, generation, streamer)
+        except Exception:
+            generation.cancel("error") # Out of memory, a cache or draft error... - the partial reply isn't kept
+            if streamer: streamer.end() # generate() never got to it - without this the stream would wait for the next token forever
+            raise
+        finally:
+            generations.finish(generation)
+
+def _generate(slot, user_id: str, conversation: list, generation, streamer=None) -> str:
+    tokenizer, model, prefix_cache = slot.tokenizer, slot.model, slot.prefix_cache
+    encoded = tokenizer.apply_chat_template(conversation, add_generation_prompt=True, return_tensors="pt", return_dict=True)
+    input_ids = encoded["input_ids"].to(model.device)
+    prompt_ids = input_ids[0].tolist()
+
+    reused_len, kv_cache = prefix_cache.lookup(user_id, prompt_ids)
+    timer = _PrefillTimer()
+
+    with torch.no_grad(), slot.decoding_stats.run() as run:
+        output = model.generate(
+            input_ids,
+            attention_mask=encoded["attention_mask"].to(model.device),
+            past_key_values=kv_cache, # None = cache miss, generate() builds a fresh cache
+            return_dict_in_generate=True,
+            logits_processor=LogitsProcessorList([timer]),
+            streamer=streamer,
+            stopping_criteria=StoppingCriteriaList([generation.criteria(tokenizer, len(prompt_ids))]), # Cancel, deadline, stop sequences
+            pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id,
+            max_new_tokens=generation.max_new_tokens,
+            **GENERATION_ARGS,
+            **slot.generate_args # Empty unless assisted decoding is on
+        )
+
+    run.finish(output.sequences.shape[1] - len(prompt_ids))
+    prefix_cache.record(reused_len, len(prompt_ids) - reused_len, timer.prefill_seconds or 0.0)
+    prefix_cache.store(user_id, output.sequences[0].tolist(), output.past_key_values) # Next turn starts with this exact sequence
+
+    reply = tokenizer.decode(output.sequences[0, len(prompt_ids):], skip_special_tokens=True)
+    return generation.trim(reply).strip()
+
+def prime_shared_prefix():
+    # The system prompt is the same for everyone - cache it once per model so even a user's first turn skips it
+    for slot in router.slots.values():
+        encoded = slot.tokenizer.apply_chat_template([MASTER_PROMPT], return_tensors="pt", return_dict=True)
+        input_ids = encoded["input_ids"].to(slot.model.device)
+        with torch.no_grad():
+            output = slot.model(input_ids, use_cache=True)
+        slot.prefix_cache.store(SHARED_USER, input_ids[0].tolist(), output.past_key_values)
+
+async def reserve_model(conversation: list):
+    # Waiting for a free model blocks, so it happens off the event loop. All of them busy = try again later.
+    try:
+        return await asyncio.to_thread(router.acquire, conversation)
+    except RouterBusy as e:
+        raise HTTPException(status_code=503, detail=str(e))
+
+def start_generation(request: "ChatRequest"):
+    # The deadline counts from here. A newer message in the same conversation cancels the reply still being generated for it.
+    scope = request.conversation_id or request.request_id or uuid.uuid4().hex
+    return generations.start(request.userid, scope, token_budget(request.length, request.max_new_tokens),
+                             stop_sequences(request.stop), request.deadline_ms)
+CONTEXT_TURNS = 20 # How many previous rows of a conversation we feed back to the model in server-side mode
+BOT_SENDER = "DoctorBot" # Same sender name the Java client has always used for the bot's rows
+# Which user column chat_history is read/written by - same phases as the Java side's -Ddb.keys (see KeyBackfill.java):
+#   string (write user_id + user_key, read user_id) -> binary (read user_key) -> binary-only (user_id column dropped)
+HISTORY_KEYS = os.getenv("HISTORY_KEYS", "string")
+
+SESSION_CHECK_SECONDS = 30 # How long a user's sessions_valid_after is cached - a password change logs out everywhere within this
+_sessions_valid_after = {} # user id -> (epoch seconds, fetched at)
+
+async def current_session(authorization: str | None = Header(default=None)) -> Session:
+    # "Authorization: Bearer <token>" from the Java SessionStore - the only thing that says who the user is
+    session = verifier.verify(bearer_token(authorization))
+    if session is None or not await _issued_after_password_change(session):
+        raise HTTPException(status_code=401, detail="Invalid or expired session")
+    return session
+
+async def _issued_after_password_change(session: Session) -> bool:
+    cached = _sessions_valid_after.get(session.user_id)
+    if cached is None or time.monotonic() - cached[1] > SESSION_CHECK_SECONDS:
+        query = "SELECT UNIX_TIMESTAMP(sessions_valid_after) AS valid_after FROM chat_users WHERE user_uuid = %s"
+        try:
+            row = await fetch_query(db_pool, query, (session.user_id,), fetch_one=True, raise_errors=True)
+        except Exception:
+            # The database is down - not the user's fault, so no 401 ("session expired, restart the app"); try again later
+            raise HTTPException(status_code=503, detail="Session check unavailable")
+        if row is None: # No such user (deleted)
+            return False
+        cached = (int(row["valid_after"] or 0), time.monotonic())
+        _sessions_valid_after[session.user_id] = cached
+    return session.issued_at >= cached[0]
+
+def authorize(request, session: Session):
+    # Old clients still send userid - it has to be the session's own, and from here on it is
+    if request.userid is not None and request.userid != session.user_id:
+        raise HTTPException(status_code=403, detail="userid does not match the session")
+    request.userid = session.user_id
+
 class ChatRequest(BaseModel): # Define the expected structure of the incoming request for the /ask endpoint
-    userid: str # To track conversations per user (optional, but useful for context)
-    messages: list # The user's input message
+    userid: str | None = None # Optional - the user is the one in the Authorization token; if sent, it must match
+    messages: list = [] # Client-side mode: the full history, sent by the client every turn (Flutter)
+    conversation_id: str | None = None # Server-side mode: which conversation (tab) this message belongs to
+    message: str | None = None # Server-side mode: ONLY the new message - we load the context and save both turns ourselves
+    # Generation controls, all optional - see generation_control.py
+    length: str | None = None # short | normal | long
+    max_new_tokens: int | None = None # Overrides length
+    stop: list[str] = [] # The reply ends before the first of these
+    deadline_ms: int | None = None # Stop generating this long after the request arrived
+    request_id: str | None = None # Client-side mode has no conversation_id - this is what /cancel finds the request by
+
+class CancelRequest(BaseModel):
+    userid: str | None = None # Optional, like ChatRequest's - the user is the one in the Authorization token
+    conversation_id: str | None = None # Neither set = every generation of this user (the window was closed)
+    request_id: str | None = None
 
 @app.post("/ask")
-async def ask_ai(request: ChatRequest): 
-    # This structure matches the SmolLM2-Instruct format
-    master_prompt = {"role": "system", "content": "You are AI Doctor bot, a professional Pulmonologist."}
-    full_history = [master_prompt] # Start with the system prompt
-    full_conversation = full_history + request.messages # Add the user's messages to the conversation history 
-    
-    # print(f"{request.messages}\n") # Debug: See the incoming messages
-    print(full_conversation)
+async def ask_ai(request: ChatRequest, http_request: Request, session: Session = Depends(current_session)):
+    authorize(request, session)
+    generation = start_generation(request)
+    started = False # From here on generate_reply finishes the generation
+    try:
+        if request.message is not None: # Server-side mode - the client only sent the new message
+            full_conversation = await load_conversation(request.userid, request.conversation_id, request.message)
+        else:
+            full_conversation = [MASTER_PROMPT] + request.messages # Add the user's messages to the conversation history 
+        
+        # print(f"{request.messages}\n") # Debug: See the incoming messages
+
+        # Generate response based ONLY on this specific request (in a worker thread - generate() blocks)
+        lease = await reserve_model(full_conversation)
+        work = asyncio.ensure_future(asyncio.to_thread(generate_reply, lease, request.userid, full_conversation, generation))
+        started = True
+    finally:
+        if not started:
+            generations.finish(generation) # Never started (history or model unavailable) - nothing to cancel any more
+    while not work.done(): # A client that hung up doesn't need the rest of its reply - free the model for someone who does
+        await asyncio.wait({work}, timeout=DISCONNECT_POLL_SECONDS)
+        if not work.done() and await http_request.is_disconnected():
+            generation.cancel()
+    ai_response = work.result()
 
-    # Generate response based ONLY on this specific request
-    output = generator(full_conversation, max_new_tokens=60, do_sample=True, temperature=0.7, truncation=True)
-    ai_response = output[0]['generated_text'][-1]['content']
+    if request.message is not None and not generation.cancelled: # A cancelled reply is cut off - don't keep it in the history
+        await save_turn(request.userid, request.conversation_id, request.message, ai_response)
     
-    return {"reply": ai_response}
+    return {"reply": ai_response, "finish_reason": generation.outcome}
+
+@app.post("/ask/stream")
+async def ask_ai_stream(request: ChatRequest, session: Session = Depends(current_session)):
+    authorize(request, session)
+    # Server-side mode only: one indexed query for the context, tokens streamed back as plain text, both turns saved in one transaction
+    if request.message is None or request.conversation_id is None:
+        raise HTTPException(status_code=400, detail="Streaming requires conversation_id and message.")
+
+    generation = start_generation(request)
+    started = False # From here on generate_reply finishes the generation
+    try:
+        full_conversation = await load_conversation(request.userid, request.conversation_id, request.message)
+        lease = await reserve_model(full_conversation) # Before the response starts - a 503 can't be sent halfway through a stream
+        streamer = TextIteratorStreamer(lease.slot.tokenizer, skip_prompt=True, skip_special_tokens=True, timeout=STREAM_STALL_SECONDS)
+
+        # generate() blocks, so it runs in its own thread and feeds the streamer
+        threading.Thread(
+            target=generate_reply,
+            args=(lease, request.userid, full_conversation, generation),
+            kwargs={"streamer": streamer},
+            daemon=True
+        ).start()
+        started = True
+    finally:
+        if not started:
+            generations.finish(generation) # Never started (history or model unavailable) - nothing to cancel any more
+
+    async def token_stream():
+        chunks = []
+        stops = generation.stream_filter() # Holds back text that may turn out to be a stop sequence
+        completed = False
+        try:
+            while True:
+                try:
+                    chunk = await asyncio.to_thread(next, streamer, None) # Waiting on the next token must not block the event loop
+                except queue.Empty: # Stalled - free the reader thread and let the client see the error
+                    generation.cancel("error")
+                    raise
+                if chunk is None:
+                    break
+                text = stops.feed(chunk)
+                if stops.hit:
+                    generation.cancel("stop") # Seen in the stream before the criteria's own check - end generate() now
+                if text:
+                    chunks.append(text)
+                    yield text
+            if generation.failed: # generate() raised - end the response with an error, not as a complete reply
+                raise RuntimeError("Generation failed")
+            text = stops.flush()
+            if text:
+                chunks.append(text)
+                yield text
+            completed = True
+        finally:
+            if not completed:
+                generation.cancel() # The client disconnected mid-stream - stop the model at the next token
+
+        if not generation.cancelled and not generation.failed: # Cancelled by /cancel or a newer message - the partial reply isn't kept
+            await save_turn(request.userid, request.conversation_id, request.message, "".join(chunks).strip())
+
+    return StreamingResponse(token_stream(), media_type="text/plain; charset=utf-8")
+
+@app.post("/cancel")
+async def cancel_generation(request: CancelRequest, session: Session = Depends(current_session)):
+    # Stops the matching generations at their next token; their /ask calls return what was generated so far
+    authorize(request, session) # Only your own replies - the user comes from the token
+    return {"cancelled": generations.cancel(request.userid, request.conversation_id or request.request_id)}
+
+@app.post("/logout")
+async def logout(session: Session = Depends(current_session)):
+    verifier.revoke(session) # The app revokes its own copy (SessionStore.revoke) - this is brain_api's
+    return {"status": "success"}
+
+@app.get("/generation-stats")
+async def generation_stats():
+    # How replies ended (eos, length, stop, deadline, cancelled, error), tokens saved by ending early, cancel-to-free-slot latency
+    return generations.stats()
+
+@app.get("/cache-stats")
+async def cache_stats():
+    # Hit rate and how much prompt processing the KV prefix cache saved, per model
+    return {name: slot.prefix_cache.stats() for name, slot in router.slots.items()}
+
+@app.get("/decoding-stats")
+async def decoding_stats():
+    # Draft acceptance rate and effective tokens/sec of the current DECODING_MODE, per model
+    return {name: slot.decoding_stats.stats() for name, slot in router.slots.items()}
+
+@app.get("/metrics", response_class=PlainTextResponse)
+async def metrics():
+    return router.metrics() + pool_metrics() + generations.metrics() # Routing, per-model latency, DB pool waits, generation outcomes - Prometheus text format
+
+@app.get("/db-stats")
+async def db_stats():
+    # Connections in use and how long requests waited for one, per pool (primary + history shards)
+    return {name: pool.stats() for name, pool in POOLS.items()}
+
+def user_key(user_id: str):
+    # BINARY(16) form of a user id - the same bytes as UuidCodec.toBytes() in Java and UNHEX(REPLACE(id, '-', '')) in SQL
+    try:
+        key = uuid.UUID(user_id).bytes if len(user_id) == 36 else None
+    except ValueError:
+        key = None # Not a UUID (hand-made test ids) - the row keeps a NULL key, as on the Java side
+    if key is None and HISTORY_KEYS == "binary-only": # Nothing else identifies the row any more - Database.userKey refuses too
+        raise ValueError(f"User id is not a UUID, it has no user_key: {user_id}")
+    return key
+
+async def load_conversation(user_id: str, conversation_id: str, new_message: str) -> list:
+    # Newest rows first so LIMIT keeps the most recent context - served by idx_history_conversation
+    column, key = ("user_id", user_id) if HISTORY_KEYS == "string" else ("user_key", user_key(user_id))
+    query = f"""
+        SELECT sender, response FROM chat_history
+            WHERE {column} = %s AND conversation_id = %s
+            ORDER BY timestamp DESC, message_id DESC LIMIT %s
+    """
+    rows = await fetch_query(history_shards.pool_for(user_id), query, (key, conversation_id, CONTEXT_TURNS))
+    history = [{"role": "assistant" if row["sender"] == BOT_SENDER else "user", "content": row["response"]} for row in reversed(rows)]
+
+    return [MASTER_PROMPT] + history + [{"role": "user", "content": new_message}]
+
+async def save_turn(user_id: str, conversation_id: str, user_message: str, ai_response: str):
+    # Both rows in ONE transaction - either the whole turn is saved or none of it
+    if HISTORY_KEYS == "binary-only":
+        insert = "INSERT INTO chat_history (user_key, conversation_id, sender, response) VALUES (%s, %s, %s, %s)"
+        keys = (user_key(user_id),)
+    else:
+        insert = "INSERT INTO chat_history (user_id, user_key, conversation_id, sender, response) VALUES (%s, %s, %s, %s, %s)"
+        keys = (user_id, user_key(user_id))
+    result = await execute_transaction_query(history_shards.pool_for(user_id), [insert, insert], [
+        keys + (conversation_id, user_id, user_message), # The Java client stores the user's own id as the sender of their messages
+        keys + (conversation_id, BOT_SENDER, ai_response),
+    ])
+
+    if result is None:
+        print(f"Failed to save chat turn for user {user_id}, conversation {conversation_id}")
                             
 
 @app.post("/send-activation")
@@ -0,0 +1,211 @@
+import os
+import re
+import threading
+import time
+
+from inference import configure_threads, load_model, load_draft_model, warm_up
+from prefix_cache import PrefixCache
+from speculative import DecodingStats
+
+# Several checkpoints served side by side, with every request sent to the cheapest one that can handle it.
+# Greetings, thanks and short follow-ups don't need the 1.7B model; the 135M one answers them several times faster.
+#   ROUTER_MODELS="small=./chat_lung_draft_model|4>large,large=./chat_lung_model|2"
+#     name=path|max concurrent generations (0 = no limit)>fallback model when it is full
+#     Listed from smallest to largest: simple turns go to the first model, everything else to the last.
+# Unset = one model ("default", MODEL_PATH) with no limit, as before.
+# A request waits up to ROUTER_QUEUE_MS for its model, then for each fallback in turn; if all are full it gets a 503.
+
+SHORT_MESSAGE_WORDS = int(os.getenv("ROUTER_SHORT_WORDS", "12")) # At most this many words counts as a short follow-up
+MAX_SMALL_TURNS = int(os.getenv("ROUTER_MAX_SMALL_TURNS", "6")) # Longer conversations always go to the large model
+QUEUE_SECONDS = int(os.getenv("ROUTER_QUEUE_MS", "2000")) / 1000
+LATENCY_BUCKETS = (0.25, 0.5, 1, 2, 4, 8, 16, 32) # Seconds, for the /metrics histogram
+
+SMALL_TALK = re.compile(r"^(hi|hello|hey|good (morning|afternoon|evening)|thanks?( you)?( so much| a lot)?|thx|ok(ay)?|"
+                        r"got it|i see|great|cool|bye|goodbye|see you|have a nice day)( doctor| doc)?[\s!.,:)]*$", re.IGNORECASE)
+# Anything that may need the better model's judgement, however short the message is
+RED_FLAGS = re.compile(r"\b(blood|bleed\w*|chest pain|can'?t breathe|cannot breathe|faint\w*|unconscious|blue lips|"
+                       r"emergency|severe\w*|suicid\w*|overdose|pregnan\w*|baby|infant|child\w*|cancer|tumou?r|"
+                       r"dose|dosage|mg|medication\w*|antibiotic\w*|steroid\w*|interaction\w*)\b", re.IGNORECASE)
+
+
+class RouterBusy(Exception):
+    pass
+
+
+def parse_models(spec: str) -> list:
+    models = []
+    for entry in filter(None, (e.strip() for e in spec.split(","))):
+        name, path = entry.split("=", 1)
+        path, _, fallback = path.partition(">")
+        path, _, limit = path.partition("|")
+        models.append((name, path, int(limit or 0), fallback or None))
+    return models
+
+
+def classify(conversation: list) -> tuple:
+    """Returns (simple, reason) from cheap features of the chat: the new message, its length and the history depth."""
+    message = conversation[-1]["content"].strip()
+    words = len(message.split())
+    turns = sum(1 for m in conversation[:-1] if m["role"] != "system")
+
+    if RED_FLAGS.search(message):
+        return False, "red_flag"
+    if SMALL_TALK.match(message):
+        return True, "small_talk"
+    if words > SHORT_MESSAGE_WORDS:
+        return False, "long_message"
+    if turns > MAX_SMALL_TURNS:
+        return False, "long_history"
+    if turns > 0:
+        return True, "short_follow_up" # The earlier turns already set the topic
+    return False, "first_question" # A new topic deserves the best answer
+
+
+class ModelSlot:
+    """One loaded checkpoint with its own KV prefix cache, concurrency limit and numbers."""
+
+    def __init__(self, name, path, max_concurrent, fallback, tokenizer, model, cache_bytes):
+        self.name, self.path, self.fallback = name, path, fallback
+        self.tokenizer, self.model = tokenizer, model
+        self.max_concurrent = max_concurrent
+        self.free = threading.BoundedSemaphore(max_concurrent) if max_concurrent else None
+        self.prefix_cache = PrefixCache(max_bytes=cache_bytes) # KV caches only fit the model that made them
+        self.decoding_stats = DecodingStats("standard", model)
+        self.generate_args = {} # assistant_model etc. when assisted decoding is on
+
+        self.in_flight = 0
+        self.requests = 0
+        self.errors = 0
+        self.seconds = 0.0
+        self.buckets = [0] * len(LATENCY_BUCKETS)
+
+    def use_draft(self, draft_model, draft_tokens: int):
+        self.decoding_stats = DecodingStats("assisted", self.model, draft_model)
+        self.generate_args = {"assistant_model": draft_model, "num_assistant_tokens": draft_tokens}
+
+
+class Lease:
+    """A reserved generation slot on one model. Use as a context manager around generate() - it releases and times it."""
+
+    def __init__(self, router, slot: ModelSlot):
+        self.router, self.slot = router, slot
+
+    def __enter__(self):
+        self.start = time.perf_counter()
+        return self.slot
+
+    def __exit__(self, exc_type, *exc):
+        self.router._finish(self.slot, time.perf_counter() - self.start, exc_type is not None)
+        return False
+
+
+class ModelRouter:
+    def __init__(self, spec: str, mode: str, threads, cache_bytes: int,
+                 decoding_mode: str = "standard", draft_path: str = None, draft_tokens: int = 5):
+        models = parse_models(spec)
+        self._lock = threading.Lock()
+        self.slots = {}
+        self.decisions = {} # (model, reason) -> count
+        self.fallbacks = {} # (from, to) -> count
+        self.rejected = 0
+
+        configure_threads(threads) # Process-wide, and torch takes the interop setting only once, before any work
+        for name, path, limit, fallback in models:
+            print(f"Loading model '{name}' from {path} (mode={mode}, max concurrent={limit or 'unlimited'})...")
+            tokenizer, model = load_model(path, mode) # Threads already set above - warm_up() has run work by the second model
+            self.slots[name] = ModelSlot(name, path, limit, fallback, tokenizer, model, cache_bytes // len(models))
+            print(f"Model '{name}' warmed up in {warm_up(model, tokenizer):.2f}s")
+
+        for name, _, _, fallback in models:
+            if fallback and fallback not in self.slots:
+                raise ValueError(f"Model '{name}' falls back to unknown model '{fallback}'")
+
+        if decoding_mode == "assisted":
+            self._attach_draft(draft_path, draft_tokens, mode)
+
+        self.small = models[0][0]
+        self.large = models[-1][0]
+
+    def _attach_draft(self, draft_path: str, draft_tokens: int, mode: str):
+        is_draft = lambda slot: os.path.abspath(slot.path) == os.path.abspath(draft_path)
+        targets = [s for s in self.slots.values() if not is_draft(s)] # A model can't usefully draft for itself
+        served = [s for s in self.slots.values() if is_draft(s)]
+        if not targets:
+            return
+
+        if served:
+            draft_model, draft_vocab = served[0].model, served[0].tokenizer.get_vocab() # Already serving it - share the weights
+        else:
+            print(f"Loading draft model from {draft_path} for assisted decoding ({draft_tokens} tokens ahead)...")
+            draft_model, draft_vocab = load_draft_model(draft_path, targets[0].tokenizer, mode), targets[0].tokenizer.get_vocab()
+
+        for slot in targets:
+            if slot.tokenizer.get_vocab() != draft_vocab:
+                raise ValueError(f"Model '{slot.name}' has a different tokenizer than the draft model '{draft_path}'")
+            slot.use_draft(draft_model, draft_tokens)
+            print(f"Assisted decoding for '{slot.name}' warmed up in {warm_up(slot.model, slot.tokenizer, **slot.generate_args):.2f}s")
+
+    def route(self, conversation: list) -> tuple:
+        simple, reason = classify(conversation)
+        return (self.small if simple else self.large), reason
+
+    def acquire(self, conversation: list) -> Lease:
+        """Picks a model for the chat and reserves a slot on it. Blocks for up to ROUTER_QUEUE_MS per model tried."""
+        name, reason = self.route(conversation)
+        chosen, tried = name, set()
+
+        while name is not None and name not in tried:
+            tried.add(name)
+            slot = self.slots[name]
+            if slot.free is None or slot.free.acquire(timeout=QUEUE_SECONDS):
+                with self._lock:
+                    self.decisions[(chosen, reason)] = self.decisions.get((chosen, reason), 0) + 1
+                    if name != chosen:
+                        self.fallbacks[(chosen, name)] = self.fallbacks.get((chosen, name), 0) + 1
+                    slot.in_flight += 1
+                return Lease(self, slot)
+            name = slot.fallback
+
+        with self._lock:
+            self.rejected += 1
+        raise RouterBusy(f"All models are busy (routed to '{chosen}' for {reason})")
+
+    def _finish(self, slot: ModelSlot, seconds: float, failed: bool):
+        with self._lock:
+            slot.in_flight -= 1
+            slot.requests += 1
+            slot.errors += failed
+            slot.seconds += seconds
+            for i, bound in enumerate(LATENCY_BUCKETS):
+                if seconds <= bound:
+                    slot.buckets[i] += 1
+        if slot.free is not None:
+            slot.free.release()
+
+    def metrics(self) -> str:
+        """Prometheus text format: routing decisions, fallbacks, in-flight requests and per-model latency."""
+        lines = ["# TYPE doctorbot_route_decisions_total counter"]
+        with self._lock:
+            for (model, reason), count in sorted(self.decisions.items()):
+                lines.append(f'doctorbot_route_decisions_total{{model="{model}",reason="{reason}"}} {count}')
+            lines.append("# TYPE doctorbot_route_fallbacks_total counter")
+            for (chosen, used), count in sorted(self.fallbacks.items()):
+                lines.append(f'doctorbot_route_fallbacks_total{{from="{chosen}",to="{used}"}} {count}')
+            lines.append("# TYPE doctorbot_route_rejected_total counter")
+            lines.append(f"doctorbot_route_rejected_total {self.rejected}")
+
+            lines.append("# TYPE doctorbot_model_in_flight gauge")
+            lines += [f'doctorbot_model_in_flight{{model="{s.name}"}} {s.in_flight}' for s in self.slots.values()]
+            lines.append("# TYPE doctorbot_model_max_concurrent gauge")
+            lines += [f'doctorbot_model_max_concurrent{{model="{s.name}"}} {s.max_concurrent}' for s in self.slots.values()]
+            lines.append("# TYPE doctorbot_model_errors_total counter")
+            lines += [f'doctorbot_model_errors_total{{model="{s.name}"}} {s.errors}' for s in self.slots.values()]
+
+            lines.append("# TYPE doctorbot_generation_seconds histogram")
+            for s in self.slots.values():
+                for bound, count in zip(LATENCY_BUCKETS, s.buckets):
+                    lines.append(f'doctorbot_generation_seconds_bucket{{model="{s.name}",le="{bound}"}} {count}')
+                lines.append(f'doctorbot_generation_seconds_bucket{{model="{s.name}",le="+Inf"}} {s.requests}')
+                lines.append(f'doctorbot_generation_seconds_sum{{model="{s.name}"}} {s.seconds:.3f}')
+                lines.append(f'doctorbot_generation_seconds_count{{model="{s.name}"}} {s.requests}')
+        return "\n".join(lines) + "\n"
@@ -0,0 +1,133 @@
+import copy
+import hashlib
+import threading
+from collections import OrderedDict
+
+# Every /ask prompt starts with the same system prompt followed by the turns we already processed last time.
+# Instead of running that whole prefix through the model again, we keep its past-key-values (the attention KV cache)
+# and let generate() start from there, so each turn only pays for the tokens that are actually new.
+
+SHARED_USER = "*" # Entries under this "user" (the bare system prompt) can be reused by anyone
+
+
+def _layer_tensors(cache):
+    # DynamicCache changed shape between transformers releases - support both layouts
+    if hasattr(cache, "layers"):
+        for layer in cache.layers:
+            yield layer.keys
+            yield layer.values
+    else:
+        yield from cache.key_cache
+        yield from cache.value_cache
+
+
+def cache_nbytes(cache) -> int:
+    return sum(t.numel() * t.element_size() for t in _layer_tensors(cache) if t is not None)
+
+
+def _common_prefix_len(a: list, b: list) -> int:
+    n = min(len(a), len(b))
+    i = 0
+    while i < n and a[i] == b[i]:
+        i += 1
+    return i
+
+
+class PrefixCache:
+    """LRU cache of KV caches, keyed by user id + a hash of the token ids they cover, bounded by a memory budget."""
+
+    def __init__(self, max_bytes: int, max_entries_per_user: int = 4):
+        self.max_bytes = max_bytes
+        self.max_entries_per_user = max_entries_per_user
+        self._entries = OrderedDict() # (user_id, digest) -> (token_ids, kv_cache, nbytes) - oldest first
+        self._lock = threading.Lock() # generate() runs on worker threads, so lookups and inserts race
+        self.used_bytes = 0
+
+        # --- Stats ---
+        self.hits = 0
+        self.misses = 0
+        self.reused_tokens = 0
+        self.processed_tokens = 0
+        self.prefill_seconds_per_token = None # EMA of the measured prompt-processing cost per token
+        self.saved_seconds = 0.0
+
+    @staticmethod
+    def _digest(token_ids: list) -> str:
+        return hashlib.sha1(",".join(map(str, token_ids)).encode()).hexdigest()
+
+    def lookup(self, user_id: str, token_ids: list):
+        """Returns (reused_len, kv_cache_copy) for the longest cached prefix of token_ids, or (0, None)."""
+        best_key, best_len = None, 0
+
+        with self._lock:
+            for key, (cached_ids, _, _) in self._entries.items():
+                if key[0] not in (user_id, SHARED_USER):
+                    continue
+                common = _common_prefix_len(cached_ids, token_ids)
+                if common > best_len:
+                    best_key, best_len = key, common
+
+            # At least one token must be left over - generate() needs something to run the model on
+            best_len = min(best_len, len(token_ids) - 1)
+            if best_key is None or best_len <= 0:
+                self.misses += 1
+                return 0, None
+
+            self._entries.move_to_end(best_key) # Mark as recently used
+            kv_cache = copy.deepcopy(self._entries[best_key][1]) # generate() mutates the cache in place, so never hand out the stored one
+            self.hits += 1
+
+        kv_cache.crop(best_len) # Drop anything after the point where this prompt diverges
+        return best_len, kv_cache
+
+    def store(self, user_id: str, token_ids: list, kv_cache):
+        # The cache may be one token shorter than the sequence (the last sampled token is never fed back)
+        token_ids = token_ids[:kv_cache.get_seq_length()]
+        nbytes = cache_nbytes(kv_cache)
+        if nbytes > self.max_bytes:
+            return # A single conversation bigger than the whole budget is not worth keeping
+
+        key = (user_id, self._digest(token_ids))
+        with self._lock:
+            if key in self._entries:
+                self.used_bytes -= self._entries.pop(key)[2]
+            self._entries[key] = (token_ids, kv_cache, nbytes)
+            self.used_bytes += nbytes
+
+            # Only the newest few prefixes of a user are useful - older ones are prefixes of the newer ones anyway
+            user_keys = [k for k in self._entries if k[0] == user_id]
+            for old_key in user_keys[:-self.max_entries_per_user]:
+                self.used_bytes -= self._entries.pop(old_key)[2]
+
+            while self.used_bytes > self.max_bytes and self._entries: # LRU eviction until we are back under budget
+                _, (_, _, freed) = self._entries.popitem(last=False)
+                self.used_bytes -= freed
+
+    def record(self, reused_len: int, processed_len: int, prefill_seconds: float):
+        """Feed back how long prompt processing took so we can estimate the time the cache saved."""
+        with self._lock:
+            if processed_len > 0:
+                per_token = prefill_seconds / processed_len
+                self.prefill_seconds_per_token = per_token if self.prefill_seconds_per_token is None \
+                    else 0.9 * self.prefill_seconds_per_token + 0.1 * per_token
+            self.reused_tokens += reused_len
+            self.processed_tokens += processed_len
+            if self.prefill_seconds_per_token is not None:
+                self.saved_seconds += reused_len * self.prefill_seconds_per_token
+
+    def stats(self) -> dict:
+        with self._lock:
+            lookups = self.hits + self.misses
+            total_tokens = self.reused_tokens + self.processed_tokens
+            return {
+                "entries": len(self._entries),
+                "used_mb": round(self.used_bytes / 2**20, 2),
+                "budget_mb": round(self.max_bytes / 2**20, 2),
+                "hits": self.hits,
+                "misses": self.misses,
+                "hit_rate": round(self.hits / lookups, 3) if lookups else 0.0,
+                "reused_prompt_tokens": self.reused_tokens,
+                "processed_prompt_tokens": self.processed_tokens,
+                "token_reuse_rate": round(self.reused_tokens / total_tokens, 3) if total_tokens else 0.0,
+                "saved_prefill_seconds": round(self.saved_seconds, 3),
+            }
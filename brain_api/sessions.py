@@ -0,0 +1,79 @@
+import base64
+import hashlib
+import hmac
+import os
+import re
+import threading
+import time
+
+# Checks the session tokens the Java side issues after its one BCrypt login check (SessionStore.java) - same HMAC-SHA256,
+# same shared secret - so the user of a request comes from its token, never from the userid in the body.
+#   token = <sessionId>.<userUuid>.<issuedAt epoch seconds>.<base64url(HMAC-SHA256(secret, everything before the last dot))>
+#   SESSION_SECRET=...   must be the same as the app's / ChatGateway's -Dsession.secret. Unset = every token is refused.
+# Idle timeout and logout are tracked here per process (a token that stays unused for IDLE_TIMEOUT is dead, like in
+# SessionStore); a password change is seen through chat_users.sessions_valid_after - see main.py.
+
+IDLE_TIMEOUT = 30 * 60 # Same as SessionStore.IDLE_TIMEOUT / MAX_LIFETIME
+MAX_LIFETIME = 12 * 3600
+_ISSUED_AT = re.compile(r"\d{1,12}")
+
+
+class Session:
+    def __init__(self, session_id: str, user_id: str, issued_at: int):
+        self.session_id = session_id
+        self.user_id = user_id
+        self.issued_at = issued_at
+
+
+class SessionVerifier:
+    def __init__(self, secret: str):
+        self._key = secret.strip().encode() if secret and secret.strip() else None
+        self._lock = threading.Lock()
+        self._last_seen = {} # session id -> last request - the sliding idle window
+        self._revoked = {} # session id -> when the token would have expired anyway
+
+    def verify(self, token: str | None, now: float = None) -> Session | None:
+        """The session of a correctly signed, live, not revoked token - or None."""
+        if not self._key or not token:
+            return None
+        payload, dot, signature = token.rpartition(".")
+        parts = payload.split(".") if dot else []
+        if len(parts) != 3 or not parts[0] or not parts[1] or not _ISSUED_AT.fullmatch(parts[2]):
+            return None
+
+        expected = base64.urlsafe_b64encode(hmac.new(self._key, payload.encode(), hashlib.sha256).digest()).rstrip(b"=")
+        if not hmac.compare_digest(expected, signature.encode()): # Constant time, like MessageDigest.isEqual
+            return None
+
+        now = time.time() if now is None else now
+        session = Session(parts[0], parts[1], int(parts[2]))
+        if now - session.issued_at > MAX_LIFETIME:
+            return None
+        with self._lock:
+            if session.session_id in self._revoked:
+                return None
+            last = self._last_seen.get(session.session_id, now)
+            if now - last > IDLE_TIMEOUT:
+                return None
+            self._last_seen[session.session_id] = now
+            if len(self._last_seen) > 10_000:
+                self._prune(now)
+        return session
+
+    def revoke(self, session: Session):
+        with self._lock:
+            self._revoked[session.session_id] = session.issued_at + MAX_LIFETIME
+            self._last_seen.pop(session.session_id, None)
+
+    def _prune(self, now: float):
+        self._last_seen = {sid: seen for sid, seen in self._last_seen.items() if now - seen <= IDLE_TIMEOUT}
+        self._revoked = {sid: until for sid, until in self._revoked.items() if until > now}
+
+
+def bearer_token(authorization: str | None) -> str | None:
+    if authorization and authorization[:7].lower() == "bearer ":
+        return authorization[7:].strip()
+    return None
+
+
+verifier = SessionVerifier(os.getenv("SESSION_SECRET", ""))
@@ -0,0 +1,88 @@
+import asyncio
+import bisect
+import hashlib
+import os
+
+from db_manager import create_db_pool, open_db_pool, fetch_query
+
+# Python twin of ShardRing/DbRouter on the Java side - both MUST put a user on the same shard, or the turns saved here
+# end up where the app never looks. Same spec names, same MD5 points, same shard_overrides table.
+#   DB_SHARDS="s0=127.0.0.1:3307,s1=127.0.0.1:3308|2"   (database name = DB_NAME on every shard)
+# Unset = not sharded: everyone's history is in the primary database.
+
+VIRTUAL_NODES = 160 # Must match ShardRing.VIRTUAL_NODES
+PRIMARY = "primary"
+OVERRIDE_REFRESH_SECONDS = 5 # Must not be slower than DbRouter.OVERRIDE_REFRESH_MS - ShardRebalancer waits for it
+
+
+def ring_hash(key: str) -> int:
+    # First 8 bytes of MD5, big-endian, signed - the same as ByteBuffer.wrap(md5).getLong() in Java
+    return int.from_bytes(hashlib.md5(key.encode("utf-8")).digest()[:8], "big", signed=True)
+
+
+def parse_spec(spec: str) -> list:
+    shards = []
+    for entry in filter(None, (e.strip() for e in spec.split(","))):
+        name, address = entry.split("=", 1)
+        address, _, weight = address.partition("|")
+        host, _, port = address.partition(":")
+        shards.append((name, host, int(port or 3306), int(weight or 1)))
+    return shards
+
+
+class ShardRouter:
+    """Picks the connection pool that holds a user's chat_history."""
+
+    def __init__(self, primary_pool, spec: str = os.getenv("DB_SHARDS", "")):
+        self.primary_pool = primary_pool
+        self.pools = {}
+        points = {}
+
+        for name, host, port, weight in parse_spec(spec):
+            self.pools[name] = create_db_pool(host, port, pool_name=f"history_{name}")
+            for i in range(VIRTUAL_NODES * weight):
+                points.setdefault(ring_hash(f"{name}#{i}"), name) # First one wins on a collision, like TreeMap.putIfAbsent
+
+        self._keys = sorted(points)
+        self._owners = [points[k] for k in self._keys]
+        self.overrides = {} # user_id -> shard name, only users ShardRebalancer is moving right now
+
+    @property
+    def sharded(self) -> bool:
+        return bool(self._keys)
+
+    def shard_for(self, user_id: str) -> str:
+        if not self._keys:
+            return PRIMARY
+
+        pinned = self.overrides.get(user_id)
+        if pinned == PRIMARY or pinned in self.pools: # Like ShardRing.byName - "primary" is always known
+            return pinned # An override for a shard we don't know is ignored - the ring decides
+
+        i = bisect.bisect_left(self._keys, ring_hash(user_id)) # First point at or after the user's hash...
+        return self._owners[i % len(self._keys)] # ...wrapping around past the last one
+
+    def pool_for(self, user_id: str):
+        shard = self.shard_for(user_id)
+        return self.primary_pool if shard == PRIMARY else self.pools[shard]
+
+    async def refresh_overrides(self):
+        # Raises if the primary doesn't answer - an empty result must mean "nobody is pinned", never "query failed"
+        rows = await fetch_query(self.primary_pool, "SELECT user_id, shard FROM shard_overrides", raise_errors=True)
+        self.overrides = {row["user_id"]: row["shard"] for row in rows}
+
+    async def keep_overrides_fresh(self):
+        while True:
+            await asyncio.sleep(OVERRIDE_REFRESH_SECONDS)
+            try:
+                await self.refresh_overrides()
+            except Exception as e:
+                print(f"Could not refresh shard overrides: {e}") # Keep the last known map
+
+    async def open(self):
+        for pool in self.pools.values():
+            await open_db_pool(pool) # An unreachable shard is logged and retried on its first query
+
+    async def close(self):
+        for pool in self.pools.values():
+            await pool.close()
@@ -0,0 +1,89 @@
+import threading
+import time
+
+# Numbers for assisted (speculative) decoding. generate() doesn't report how many draft tokens the served model
+# accepted, so we count forward passes instead: every pass of the served model ends with one token of its own,
+# plus however many draft tokens it accepted, and every pass of the draft model proposes one candidate token.
+#   accepted draft tokens = generated tokens - served model passes
+#   acceptance rate       = accepted draft tokens / draft model passes
+
+
+class ForwardCounter:
+    """Counts forward passes of a model, per thread - several requests can generate at the same time."""
+
+    def __init__(self, model):
+        self._local = threading.local()
+        model.register_forward_hook(self._hook)
+
+    def _hook(self, module, inputs, output):
+        self._local.calls = getattr(self._local, "calls", 0) + 1
+
+    def reset(self):
+        self._local.calls = 0
+
+    @property
+    def calls(self) -> int:
+        return getattr(self._local, "calls", 0)
+
+
+class DecodingRun:
+    """Measures one generate() call. Use as a context manager around it, then call finish() with the token count."""
+
+    def __init__(self, stats: "DecodingStats"):
+        self.stats = stats
+
+    def __enter__(self):
+        self.stats.target_calls.reset()
+        if self.stats.draft_calls:
+            self.stats.draft_calls.reset()
+        self.start = time.perf_counter()
+        return self
+
+    def __exit__(self, *exc):
+        self.seconds = time.perf_counter() - self.start
+        return False
+
+    def finish(self, generated_tokens: int):
+        draft = self.stats.draft_calls.calls if self.stats.draft_calls else 0
+        self.stats.record(generated_tokens, self.stats.target_calls.calls, draft, self.seconds)
+
+
+class DecodingStats:
+    def __init__(self, mode: str, target_model, draft_model=None):
+        self.mode = mode
+        self.target_calls = ForwardCounter(target_model)
+        self.draft_calls = ForwardCounter(draft_model) if draft_model is not None else None
+        self._lock = threading.Lock()
+
+        self.replies = 0
+        self.generated_tokens = 0
+        self.target_passes = 0
+        self.draft_passes = 0
+        self.accepted_tokens = 0
+        self.seconds = 0.0
+
+    def run(self) -> DecodingRun:
+        return DecodingRun(self)
+
+    def record(self, generated: int, target_passes: int, draft_passes: int, seconds: float):
+        with self._lock:
+            self.replies += 1
+            self.generated_tokens += generated
+            self.target_passes += target_passes
+            self.draft_passes += draft_passes
+            if draft_passes:
+                self.accepted_tokens += max(0, generated - target_passes)
+            self.seconds += seconds
+
+    def stats(self) -> dict:
+        with self._lock:
+            return {
+                "mode": self.mode,
+                "replies": self.replies,
+                "generated_tokens": self.generated_tokens,
+                "target_forward_passes": self.target_passes,
+                "draft_forward_passes": self.draft_passes,
+                "acceptance_rate": round(self.accepted_tokens / self.draft_passes, 3) if self.draft_passes else 0.0,
+                "tokens_per_target_pass": round(self.generated_tokens / self.target_passes, 2) if self.target_passes else 0.0,
+                "tokens_per_second": round(self.generated_tokens / self.seconds, 2) if self.seconds else 0.0, # Wall clock, prefill included
+            }
@@ -0,0 +1,108 @@
+import asyncio
+import unittest
+from unittest import mock
+
+import db_manager
+
+
+class ServerError(Exception):
+    pass
+
+
+class FakeConnection:
+    pass
+
+
+class FakeCursor:
+    """Records statements; `refuse` lists SQL that fails with (errno, message) like PyMySQL's errors."""
+
+    def __init__(self, connection=None, refuse=None):
+        self.connection = connection or FakeConnection()
+        self.refuse = refuse or {}
+        self.sent = []
+
+    async def execute(self, query, params=()):
+        self.sent.append((query, tuple(params)))
+        for prefix, errno in self.refuse.items():
+            if query.startswith(prefix):
+                raise ServerError(errno, "refused")
+
+
+def run(cursor, query, params, pool=None):
+    asyncio.run(db_manager._run(pool or mock.Mock(prepares=0, prepared_executes=0), cursor, query, params))
+
+
+@mock.patch.object(db_manager, "PREPARED", True)
+class PreparedStatementTest(unittest.TestCase):
+    QUERY = "SELECT response FROM chat_history WHERE user_key = %s AND conversation_id = %s LIMIT %s"
+
+    def setUp(self):
+        db_manager._unpreparable.clear()
+
+    def test_prepared_once_per_connection_then_executed(self):
+        cursor = FakeCursor()
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        run(cursor, self.QUERY, (b"k", "c2", 20))
+
+        (prepare, text), (first, first_params), (second, second_params) = cursor.sent
+        self.assertRegex(prepare, r"^PREPARE doctorbot_\d+ FROM %s$")
+        self.assertEqual(text, ("SELECT response FROM chat_history WHERE user_key = ? AND conversation_id = ? LIMIT ?",))
+        name = prepare.split()[1]
+        self.assertEqual(first, f"EXECUTE {name} USING %s, %s, %s")
+        self.assertEqual(second, first)
+        self.assertEqual(second_params, (b"k", "c2", 20))
+
+    def test_other_connection_prepares_its_own(self):
+        first, second = FakeCursor(), FakeCursor()
+        run(first, self.QUERY, (b"k", "c1", 20))
+        run(second, self.QUERY, (b"k", "c1", 20))
+        self.assertTrue(second.sent[0][0].startswith("PREPARE"))
+
+    def test_queries_without_parameters_are_sent_as_text(self):
+        cursor = FakeCursor()
+        run(cursor, "SELECT user_id, shard FROM shard_overrides", None)
+        self.assertEqual(cursor.sent, [("SELECT user_id, shard FROM shard_overrides", ())])
+
+    def test_refused_prepare_falls_back_to_text_for_good(self):
+        cursor = FakeCursor(refuse={"PREPARE": 1295}) # ER_UNSUPPORTED_PS
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        sent = [query for query, _ in cursor.sent]
+        self.assertTrue(sent[0].startswith("PREPARE"))
+        self.assertEqual(sent[1:], [self.QUERY, self.QUERY]) # Not prepared a second time
+
+    def test_lost_connection_during_prepare_raises(self):
+        cursor = FakeCursor(refuse={"PREPARE": 2013}) # CR_SERVER_LOST - the caller's error handling decides
+        with self.assertRaises(ServerError):
+            run(cursor, self.QUERY, (b"k", "c1", 20))
+        self.assertNotIn(self.QUERY, db_manager._unpreparable)
+
+    def test_forgotten_statement_is_run_as_text_and_prepared_again(self):
+        cursor = FakeCursor()
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        cursor.refuse = {"EXECUTE": db_manager.ER_UNKNOWN_STMT_HANDLER}
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        self.assertEqual(cursor.sent[-1][0], self.QUERY)
+
+        cursor.refuse = {}
+        run(cursor, self.QUERY, (b"k", "c1", 20))
+        self.assertTrue(cursor.sent[-2][0].startswith("PREPARE"))
+
+    def test_least_recently_used_statement_is_deallocated(self):
+        cursor = FakeCursor()
+        with mock.patch.object(db_manager, "PREPARED_PER_CONNECTION", 2):
+            run(cursor, "SELECT 1 WHERE a = %s", (1,))
+            oldest = cursor.sent[0][0].split()[1]
+            run(cursor, "SELECT 2 WHERE a = %s", (1,))
+            run(cursor, "SELECT 3 WHERE a = %s", (1,))
+        self.assertIn((f"DEALLOCATE PREPARE {oldest}", ()), cursor.sent)
+
+    def test_disabled_sends_text(self):
+        cursor = FakeCursor()
+        with mock.patch.object(db_manager, "PREPARED", False):
+            run(cursor, self.QUERY, (b"k", "c1", 20))
+        self.assertEqual(cursor.sent, [(self.QUERY, (b"k", "c1", 20))])
+
+
+if __name__ == "__main__":
+    unittest.main()
@@ -0,0 +1,81 @@
+import unittest
+
+try:
+    import generation_control
+    from generation_control import StopFilter
+except ImportError: # generation_control's stopping criteria need torch and transformers
+    generation_control = None
+
+
+def stream(stop, chunks):
+    """What the client sees: every fed chunk's output, then the flush."""
+    stops = StopFilter(stop)
+    seen = [stops.feed(chunk) for chunk in chunks]
+    return seen, stops.flush(), stops.hit
+
+
+@unittest.skipIf(generation_control is None, "torch / transformers not installed")
+class StopFilterTest(unittest.TestCase):
+    def test_no_stop_sequences_passes_everything_through(self):
+        seen, rest, hit = stream([], ["Drink ", "water", "."])
+        self.assertEqual(["Drink ", "water", "."], seen)
+        self.assertEqual("", rest)
+        self.assertFalse(hit)
+
+    def test_stop_split_across_chunks_is_never_shown(self):
+        seen, rest, hit = stream(["\nUser:"], ["Rest well.", "\nUs", "er: thanks", " more"])
+        self.assertEqual(["Rest well.", "", "", ""], seen)
+        self.assertEqual("", rest)
+        self.assertTrue(hit)
+        self.assertNotIn("\n", "".join(seen))
+
+    def test_stop_inside_one_chunk_cuts_it(self):
+        seen, rest, hit = stream(["###"], ["Take ibuprofen.### Next question"])
+        self.assertEqual(["Take ibuprofen."], seen)
+        self.assertTrue(hit)
+
+    def test_possible_prefix_is_held_back_then_released(self):
+        stops = StopFilter(["END"])
+        self.assertEqual("See a doctor ", stops.feed("See a doctor E"))
+        self.assertEqual("", stops.feed("N")) # "EN" may still become "END"
+        self.assertEqual("ENough said", stops.feed("ough said"))
+        self.assertFalse(stops.hit)
+
+    def test_held_back_prefix_is_flushed_at_the_end(self):
+        seen, rest, hit = stream(["END"], ["Stay hydrated, E", "N"])
+        self.assertEqual(["Stay hydrated, ", ""], seen)
+        self.assertEqual("EN", rest) # The reply ended before the stop could complete - it's just text
+        self.assertFalse(hit)
+
+    def test_earliest_of_several_stops_wins(self):
+        seen, rest, hit = stream(["B", "A"], ["xxAyyB"])
+        self.assertEqual(["xx"], seen)
+        self.assertTrue(hit)
+
+    def test_nothing_after_a_hit(self):
+        stops = StopFilter(["!"])
+        self.assertEqual("Done", stops.feed("Done!"))
+        self.assertEqual("", stops.feed("more text"))
+        self.assertEqual("", stops.flush())
+
+
+@unittest.skipIf(generation_control is None, "torch / transformers not installed")
+class GenerationRegistryTest(unittest.TestCase):
+    def test_failed_generation_is_counted_but_saves_nothing(self):
+        registry = generation_control.GenerationRegistry()
+        generation = registry.start("user-1", "conversation-1", 60, [], None)
+        generation.tokens = 10
+        generation.cancel("error") # generate() raised
+        registry.finish(generation)
+
+        stats = registry.stats()
+        self.assertTrue(generation.failed)
+        self.assertFalse(generation.cancelled)
+        self.assertEqual(1, stats["outcomes"]["error"])
+        self.assertEqual(0, stats["saved_tokens"])
+        self.assertEqual(0, stats["in_flight"])
+        self.assertIn('doctorbot_generations_total{outcome="error"} 1', registry.metrics())
+
+
+if __name__ == "__main__":
+    unittest.main()
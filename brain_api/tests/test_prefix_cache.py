@@ -0,0 +1,96 @@
+import unittest
+
+from prefix_cache import SHARED_USER, PrefixCache
+
+
+class FakeTensor:
+    def __init__(self, nbytes):
+        self.nbytes = nbytes
+
+    def numel(self):
+        return self.nbytes
+
+    def element_size(self):
+        return 1
+
+
+class FakeCache:
+    """The parts of a transformers DynamicCache PrefixCache touches: one layer, nbytes split over keys and values."""
+
+    def __init__(self, seq_len, nbytes):
+        self.seq_len = seq_len
+        self.key_cache = [FakeTensor(nbytes // 2)]
+        self.value_cache = [FakeTensor(nbytes - nbytes // 2)]
+
+    def get_seq_length(self):
+        return self.seq_len
+
+    def crop(self, length):
+        self.seq_len = length
+
+
+def store(cache, user, token_ids, nbytes=100):
+    cache.store(user, token_ids, FakeCache(len(token_ids), nbytes))
+
+
+class PrefixCacheTest(unittest.TestCase):
+    def test_longest_prefix_is_reused_and_cropped(self):
+        cache = PrefixCache(max_bytes=1000)
+        store(cache, "u1", [1, 2, 3])
+        store(cache, "u1", [1, 2, 3, 4, 5])
+        reused, kv = cache.lookup("u1", [1, 2, 3, 4, 9, 9])
+        self.assertEqual(reused, 4)
+        self.assertEqual(kv.get_seq_length(), 4)
+
+    def test_hit_leaves_one_token_and_hands_out_a_copy(self):
+        cache = PrefixCache(max_bytes=1000)
+        store(cache, "u1", [1, 2, 3])
+        reused, kv = cache.lookup("u1", [1, 2, 3])
+        self.assertEqual(reused, 2)
+        self.assertEqual(cache.lookup("u1", [1, 2, 3, 4])[0], 3) # The stored entry was not cropped by the first hit
+
+    def test_users_do_not_see_each_other(self):
+        cache = PrefixCache(max_bytes=1000)
+        store(cache, "u1", [1, 2, 3])
+        self.assertEqual(cache.lookup("u2", [1, 2, 3, 4]), (0, None))
+        store(cache, SHARED_USER, [1, 2])
+        self.assertEqual(cache.lookup("u2", [1, 2, 3, 4])[0], 2)
+
+    def test_lru_eviction_keeps_budget(self):
+        cache = PrefixCache(max_bytes=300)
+        store(cache, "a", [1, 1])
+        store(cache, "b", [2, 2])
+        store(cache, "c", [3, 3])
+        cache.lookup("a", [1, 1, 0]) # "a" is now the most recently used - "b" is the oldest
+        store(cache, "d", [4, 4])
+
+        self.assertEqual(cache.used_bytes, 300)
+        self.assertEqual(cache.lookup("b", [2, 2, 0]), (0, None))
+        for user, ids in (("a", [1, 1, 0]), ("c", [3, 3, 0]), ("d", [4, 4, 0])):
+            self.assertEqual(cache.lookup(user, ids)[0], 2, user)
+
+    def test_per_user_limit_drops_oldest_prefixes(self):
+        cache = PrefixCache(max_bytes=10_000, max_entries_per_user=2)
+        store(cache, "u1", [1, 5])
+        store(cache, "u1", [1, 2, 3])
+        store(cache, "u1", [1, 2, 3, 4])
+        self.assertEqual(cache.stats()["entries"], 2)
+        self.assertEqual(cache.used_bytes, 200)
+        self.assertEqual(cache.lookup("u1", [1, 5, 0])[0], 1) # [1, 5] is gone - only the shared first token matches
+
+    def test_oversized_entry_is_not_stored(self):
+        cache = PrefixCache(max_bytes=100)
+        store(cache, "u1", [1, 2, 3], nbytes=101)
+        self.assertEqual(cache.used_bytes, 0)
+        self.assertEqual(cache.stats()["entries"], 0)
+
+    def test_storing_again_replaces_instead_of_double_counting(self):
+        cache = PrefixCache(max_bytes=1000)
+        store(cache, "u1", [1, 2, 3])
+        store(cache, "u1", [1, 2, 3])
+        self.assertEqual(cache.used_bytes, 100)
+        self.assertEqual(cache.stats()["entries"], 1)
+
+
+if __name__ == "__main__":
+    unittest.main()
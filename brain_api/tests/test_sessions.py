@@ -0,0 +1,55 @@
+import unittest
+
+from sessions import IDLE_TIMEOUT, MAX_LIFETIME, SessionVerifier, bearer_token
+
+# Same vector as chat_app/ai-chat-app/src/test/java/chat_ui/SessionStoreTest.java - a token SessionStore signed with "test-secret"
+USER = "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b"
+ISSUED_AT = 1760000000
+VECTOR = f"c2Vzc2lvbi1pZC1mb3ItdGVzdHM.{USER}.{ISSUED_AT}.Ees6zT07zPiGXsWxeXffv250nmYIcsXbBYtZZiVB-u4"
+
+
+class SessionVerifierTest(unittest.TestCase):
+    def setUp(self):
+        self.verifier = SessionVerifier("test-secret")
+
+    def test_java_token_is_accepted(self):
+        session = self.verifier.verify(VECTOR, now=ISSUED_AT + 1)
+        self.assertEqual(session.user_id, USER)
+        self.assertEqual(session.session_id, "c2Vzc2lvbi1pZC1mb3ItdGVzdHM")
+        self.assertEqual(session.issued_at, ISSUED_AT)
+
+    def test_tampered_tokens_are_rejected(self):
+        now = ISSUED_AT + 1
+        for token in (VECTOR.replace(USER, "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5c"),
+                      VECTOR.replace(f".{ISSUED_AT}.", f".{ISSUED_AT + 1}."),
+                      VECTOR[:-1] + "v",
+                      VECTOR.rpartition(".")[0],
+                      "", None):
+            self.assertIsNone(self.verifier.verify(token, now=now), token)
+
+    def test_other_secret_or_no_secret_rejects(self):
+        self.assertIsNone(SessionVerifier("other-secret").verify(VECTOR, now=ISSUED_AT + 1))
+        self.assertIsNone(SessionVerifier("").verify(VECTOR, now=ISSUED_AT + 1))
+
+    def test_max_lifetime(self):
+        self.assertIsNone(self.verifier.verify(VECTOR, now=ISSUED_AT + MAX_LIFETIME + 1))
+
+    def test_idle_timeout_slides(self):
+        self.assertIsNotNone(self.verifier.verify(VECTOR, now=ISSUED_AT + 1))
+        self.assertIsNotNone(self.verifier.verify(VECTOR, now=ISSUED_AT + IDLE_TIMEOUT))
+        self.assertIsNone(self.verifier.verify(VECTOR, now=ISSUED_AT + 2 * IDLE_TIMEOUT + 1))
+
+    def test_revoke(self):
+        session = self.verifier.verify(VECTOR, now=ISSUED_AT + 1)
+        self.verifier.revoke(session)
+        self.assertIsNone(self.verifier.verify(VECTOR, now=ISSUED_AT + 2))
+
+    def test_bearer_token(self):
+        self.assertEqual(bearer_token("Bearer abc"), "abc")
+        self.assertEqual(bearer_token("bearer  abc "), "abc")
+        self.assertIsNone(bearer_token("Basic abc"))
+        self.assertIsNone(bearer_token(None))
+
+
+if __name__ == "__main__":
+    unittest.main()
@@ -0,0 +1,75 @@
+import asyncio
+import unittest
+from unittest import mock
+
+import shards
+
+# Same spec, hashes and placements as chat_app/ai-chat-app/src/test/java/chat_ui/ShardRingTest.java
+SPEC = "s0=h:1,s1=h:2|2,s2=h:3"
+PRIMARY_POOL = object()
+
+
+def router(spec=SPEC):
+    with mock.patch.object(shards, "create_db_pool", side_effect=lambda host, port, pool_name: pool_name):
+        return shards.ShardRouter(PRIMARY_POOL, spec)
+
+
+class RingParityTest(unittest.TestCase):
+    def test_hash_matches_shard_ring(self):
+        self.assertEqual(shards.ring_hash(""), -3162216497309240828)
+        self.assertEqual(shards.ring_hash("primary"), 4065547985915017922)
+        self.assertEqual(shards.ring_hash("s0#0"), 852509149274686930)
+        self.assertEqual(shards.ring_hash("0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b"), 1419265261327824104)
+        self.assertEqual(shards.ring_hash("ünïcode"), -3668093054441986943)
+
+    def test_users_land_on_the_same_shard_as_in_java(self):
+        ring = router()
+        expected = {
+            "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b": "s2",
+            "00000000-0000-0000-0000-000000000000": "s1",
+            "ffffffff-ffff-ffff-ffff-ffffffffffff": "s1",
+            "user-1": "s1",
+            "user-2": "s0",
+            "user-3": "s2",
+            "user-4": "s2",
+            "user-5": "s0",
+        }
+        for user, shard in expected.items():
+            self.assertEqual(ring.shard_for(user), shard, user)
+
+    def test_overrides_resolve_like_db_router(self):
+        ring = router()
+        ring.overrides = {"user-1": "s0", "user-2": "primary", "user-3": "gone"}
+        self.assertEqual(ring.shard_for("user-1"), "s0")
+        self.assertEqual(ring.shard_for("user-2"), shards.PRIMARY) # Pinned back to the primary database
+        self.assertIs(ring.pool_for("user-2"), PRIMARY_POOL)
+        self.assertEqual(ring.shard_for("user-3"), "s2") # Unknown shard - the ring decides
+        self.assertEqual(ring.shard_for("user-4"), "s2") # Not pinned
+
+    def test_unsharded_is_the_primary(self):
+        ring = router("")
+        self.assertFalse(ring.sharded)
+        self.assertEqual(ring.shard_for("user-1"), shards.PRIMARY)
+        self.assertIs(ring.pool_for("user-1"), PRIMARY_POOL)
+
+
+class RefreshOverridesTest(unittest.TestCase):
+    def test_failed_refresh_keeps_the_previous_map(self):
+        ring = router()
+        ring.overrides = {"user-1": "s0"}
+        with mock.patch.object(shards, "fetch_query", side_effect=ConnectionError("primary down")):
+            with self.assertRaises(ConnectionError):
+                asyncio.run(ring.refresh_overrides())
+        self.assertEqual(ring.overrides, {"user-1": "s0"})
+
+    def test_empty_table_clears_the_map(self):
+        ring = router()
+        ring.overrides = {"user-1": "s0"}
+        with mock.patch.object(shards, "fetch_query", new=mock.AsyncMock(return_value=[])) as fetch:
+            asyncio.run(ring.refresh_overrides())
+        self.assertEqual(ring.overrides, {})
+        self.assertTrue(fetch.call_args.kwargs["raise_errors"])
+
+
+if __name__ == "__main__":
+    unittest.main()
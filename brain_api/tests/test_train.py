@@ -0,0 +1,62 @@
+import unittest
+
+try:
+    import torch
+    import train
+except ImportError: # The training stack (torch, transformers, datasets, nltk, sklearn...) is not installed
+    train = None
+
+
+class RecordingOptimizer:
+    """Keeps the gradient every optimizer step would have applied."""
+
+    def __init__(self, params):
+        self.params = list(params)
+        self.steps = []
+
+    def step(self):
+        self.steps.append([p.grad.clone() for p in self.params])
+
+    def zero_grad(self):
+        for p in self.params:
+            p.grad = None
+
+
+class TinyModel(torch.nn.Module if train else object):
+    def __init__(self):
+        super().__init__()
+        self.linear = torch.nn.Linear(2, 1, bias=False)
+
+    def forward(self, input_ids, attention_mask, labels):
+        loss = ((self.linear(input_ids.float()).squeeze(-1) - labels) ** 2).mean()
+        return type("Output", (), {"loss": loss})()
+
+
+def batch(x, y):
+    return {"input_ids": torch.tensor([x]), "attention_mask": torch.ones(1, 2, dtype=torch.long), "labels": torch.tensor([y])}
+
+
+@unittest.skipUnless(train, "needs the training requirements")
+class TrainEpochTest(unittest.TestCase):
+    def gradient(self, model, b):
+        model.zero_grad()
+        model(**b).loss.backward()
+        return model.linear.weight.grad.clone()
+
+    def test_partial_last_group_is_averaged_over_its_own_size(self):
+        torch.manual_seed(0)
+        model = TinyModel()
+        loader = [batch([1, 2], 1.0), batch([3, 4], 0.0), batch([5, 6], 2.0), batch([7, 8], 1.0), batch([9, 1], 0.5)]
+        grads = [self.gradient(model, b) for b in loader]
+
+        optimizer = RecordingOptimizer(model.parameters())
+        train.train_epoch(model, loader, optimizer, torch.device("cpu"), accum_steps=2)
+
+        self.assertEqual(len(optimizer.steps), 3)
+        torch.testing.assert_close(optimizer.steps[0][0], (grads[0] + grads[1]) / 2)
+        torch.testing.assert_close(optimizer.steps[1][0], (grads[2] + grads[3]) / 2)
+        torch.testing.assert_close(optimizer.steps[2][0], grads[4]) # Not grads[4] / 2
+
+
+if __name__ == "__main__":
+    unittest.main()
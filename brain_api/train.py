@@ -1,10 +1,13 @@
 import torch
 import math
+import os
+import random
+import time
 import numpy as np
 import pandas as pd
 import matplotlib.pyplot as plt
 import nltk # Add this
-from torch.utils.data import DataLoader
+from torch.utils.data import DataLoader, Sampler
 from torch.optim import AdamW # FIXED IMPORT
 from transformers import AutoModelForCausalLM, AutoTokenizer
 from datasets import load_dataset
@@ -13,11 +16,23 @@ from sklearn.feature_extraction.text import TfidfVectorizer
 from nltk.translate.bleu_score import sentence_bleu, SmoothingFunction
 from tqdm.auto import tqdm # Progress bar
 
-# Required for Colab to handle NLTK logic
-nltk.download('punkt')
+# The served model by default. For the assisted-decoding draft, fine-tune the small one on the same data:
+#   MODEL_NAME=HuggingFaceTB/SmolLM2-135M-Instruct OUTPUT_DIR=./chat_lung_draft_model python train.py
+MODEL_NAME = os.getenv("MODEL_NAME", "HuggingFaceTB/SmolLM2-1.7B-Instruct")
+OUTPUT_DIR = os.getenv("OUTPUT_DIR", "./chat_lung_model")
+
+# Throughput settings. Most Q&A pairs are far shorter than 512 tokens, so padding everything to 512 spends most of
+# the compute on pad tokens. "dynamic" pads each batch only to its longest example and batches similar lengths together.
+#   PADDING=dynamic|max_length  BATCH_SIZE=2  GRAD_ACCUM_STEPS=1  BF16=1 (autocast, also on CPU)
+PADDING = os.getenv("PADDING", "dynamic")
+BATCH_SIZE = int(os.getenv("BATCH_SIZE", "2"))
+GRAD_ACCUM_STEPS = int(os.getenv("GRAD_ACCUM_STEPS", "1")) # Optimizer step every N batches - effective batch = BATCH_SIZE * N
+USE_BF16 = os.getenv("BF16", "0") == "1"
+MAX_LENGTH = 512
+IGNORE_INDEX = -100 # Label value the loss skips
 
 # 1. Setup Tokenization
-def tokenize_fn(examples):
+def tokenize_fn(examples, tokenizer, padding="dynamic"):
     formatted_texts = []
     for instr, resp in zip(examples["instruction"], examples["response"]):
         # We wrap the Q&A in the actual chat format the model was born with
@@ -32,13 +47,65 @@ def tokenize_fn(examples):
     outputs = tokenizer(
         formatted_texts,
         truncation=True,
-        padding="max_length",
-        max_length=512
+        padding="max_length" if padding == "max_length" else False, # Dynamic: the collator pads per batch
+        max_length=MAX_LENGTH
     )
 
     outputs["labels"] = outputs["input_ids"].copy()
     return outputs
 
+class LengthBucketSampler(Sampler):
+    """Yields batches of indices with similar lengths, so dynamic padding has little to pad.
+    Shuffles, sorts within windows of `bucket_batches` batches, then shuffles the batch order - still random per epoch."""
+
+    def __init__(self, lengths, batch_size, bucket_batches=50, shuffle=True, seed=42):
+        self.lengths = lengths
+        self.batch_size = batch_size
+        self.window = batch_size * bucket_batches
+        self.shuffle = shuffle
+        self.rng = random.Random(seed)
+
+    def __iter__(self):
+        indices = list(range(len(self.lengths)))
+        if self.shuffle:
+            self.rng.shuffle(indices)
+
+        batches = []
+        for start in range(0, len(indices), self.window):
+            window = sorted(indices[start:start + self.window], key=lambda i: self.lengths[i])
+            batches += [window[i:i + self.batch_size] for i in range(0, len(window), self.batch_size)]
+
+        if self.shuffle:
+            self.rng.shuffle(batches) # Otherwise every window would run short-to-long
+        return iter(batches)
+
+    def __len__(self):
+        return math.ceil(len(self.lengths) / self.batch_size)
+
+def make_collator(pad_token_id):
+    def collate(examples):
+        width = max(len(e["input_ids"]) for e in examples)
+        input_ids = torch.full((len(examples), width), pad_token_id, dtype=torch.long)
+        attention_mask = torch.zeros((len(examples), width), dtype=torch.long)
+        labels = torch.full((len(examples), width), IGNORE_INDEX, dtype=torch.long) # Pad tokens add nothing to the loss
+
+        for row, e in enumerate(examples):
+            n = len(e["input_ids"])
+            input_ids[row, :n] = torch.as_tensor(e["input_ids"])
+            attention_mask[row, :n] = torch.as_tensor(e["attention_mask"])
+            labels[row, :n] = torch.as_tensor(e["labels"])
+        return {"input_ids": input_ids, "attention_mask": attention_mask, "labels": labels}
+    return collate
+
+def make_loader(dataset, tokenizer, batch_size, padding="dynamic", shuffle=True):
+    if padding == "max_length":
+        dataset.set_format("torch")
+        return DataLoader(dataset, batch_size=batch_size, shuffle=shuffle) # The old path: every row is already MAX_LENGTH long
+
+    lengths = [len(ids) for ids in dataset["input_ids"]]
+    sampler = LengthBucketSampler(lengths, batch_size, shuffle=shuffle)
+    return DataLoader(dataset, batch_sampler=sampler, collate_fn=make_collator(tokenizer.pad_token_id))
+
 # 2. Visualization
 def plot_results(history):
     epochs = range(1, len(history['train_loss']) + 1)
@@ -65,55 +132,82 @@ def plot_results(history):
     plt.tight_layout()
     plt.show()
 
+# 3. One pass over the training data
+def train_epoch(model, loader, optimizer, device, accum_steps=1, use_bf16=False, desc="Train"):
+    """Returns the mean loss plus throughput numbers: real (non-pad) tokens/sec and padding efficiency."""
+    model.train()
+    total_loss, real_tokens, batch_tokens = 0.0, 0, 0
+    optimizer.zero_grad()
+    start = time.perf_counter()
+    pbar = tqdm(loader, desc=desc)
+    last_group = len(loader) % accum_steps or accum_steps # The final optimizer step may cover fewer batches than accum_steps
+
+    for step, batch in enumerate(pbar, 1):
+        batch = {k: v.to(device) for k, v in batch.items()}
+        real_tokens += int(batch["attention_mask"].sum())
+        batch_tokens += batch["input_ids"].numel()
+
+        with torch.autocast(device_type=device.type, dtype=torch.bfloat16, enabled=use_bf16):
+            loss = model(**batch).loss
+        group = accum_steps if step <= len(loader) - last_group else last_group
+        (loss / group).backward() # Gradients add up over the group's batches, like one batch that many times bigger
+
+        if step % accum_steps == 0 or step == len(loader):
+            optimizer.step()
+            optimizer.zero_grad()
+
+        total_loss += loss.item()
+        pbar.set_postfix({'loss': f"{loss.item():.4f}"})
+
+    seconds = time.perf_counter() - start
+    return {
+        "loss": total_loss / len(loader),
+        "seconds": seconds,
+        "tokens_per_sec": real_tokens / seconds,
+        "padding_efficiency": real_tokens / batch_tokens, # 1.0 = no pad tokens at all
+    }
+
 # 4. Training Loop
-def train_model(model, train_loader, val_loader, optimizer, scheduler, epochs, patience):
+def train_model(model, tokenizer, train_loader, val_loader, optimizer, scheduler, epochs, patience, device,
+                accum_steps=1, use_bf16=False, output_dir=OUTPUT_DIR):
     best_val_loss = np.inf
     counter = 0
-    history = {'train_loss': [], 'val_loss': [], 'perplexity': []}
+    history = {'train_loss': [], 'val_loss': [], 'perplexity': [], 'tokens_per_sec': [], 'padding_efficiency': []}
 
     for epoch in range(epochs):
-        model.train()
-        train_loss = 0
-        train_pbar = tqdm(train_loader, desc=f"Epoch {epoch+1} [Train]")
-
-        for batch in train_pbar:
-            batch = {k: v.to(device) for k, v in batch.items()}
-            optimizer.zero_grad()
-            outputs = model(**batch)
-            loss = outputs.loss
-            loss.backward()
-            optimizer.step()
-            train_loss += loss.item()
-            train_pbar.set_postfix({'loss': f"{loss.item():.4f}"})
+        train = train_epoch(model, train_loader, optimizer, device, accum_steps, use_bf16, desc=f"Epoch {epoch+1} [Train]")
 
         model.eval()
         val_loss = 0
         val_pbar = tqdm(val_loader, desc=f"Epoch {epoch+1} [Val]")
 
-        with torch.no_grad():
+        with torch.no_grad(), torch.autocast(device_type=device.type, dtype=torch.bfloat16, enabled=use_bf16):
             for batch in val_pbar:
                 batch = {k: v.to(device) for k, v in batch.items()}
                 outputs = model(**batch)
                 val_loss += outputs.loss.item()
                 val_pbar.set_postfix({'val_loss': f"{outputs.loss.item():.4f}"})
 
-        avg_train_loss = train_loss / len(train_loader)
+        avg_train_loss = train["loss"]
         avg_val_loss = val_loss / len(val_loader)
         ppl = math.exp(avg_val_loss) if avg_val_loss < 20 else 1e6
 
         history['train_loss'].append(avg_train_loss)
         history['val_loss'].append(avg_val_loss)
         history['perplexity'].append(ppl)
+        history['tokens_per_sec'].append(train["tokens_per_sec"])
+        history['padding_efficiency'].append(train["padding_efficiency"])
 
-        print(f"Epoch {epoch+1}: Train Loss: {avg_train_loss:.4f} | Val Loss: {avg_val_loss:.4f} | PPL: {ppl:.2f}")
+        print(f"Epoch {epoch+1}: Train Loss: {avg_train_loss:.4f} | Val Loss: {avg_val_loss:.4f} | PPL: {ppl:.2f} | "
+              f"{train['tokens_per_sec']:.0f} tokens/s | Padding efficiency: {train['padding_efficiency']:.1%}")
 
         scheduler.step(avg_val_loss)
 
         if avg_val_loss < best_val_loss:
             best_val_loss = avg_val_loss
             counter = 0
-            model.save_pretrained("./chat_lung_model")
-            tokenizer.save_pretrained("./chat_lung_model")
+            model.save_pretrained(output_dir)
+            tokenizer.save_pretrained(output_dir)
             print("--> Model Saved")
         else:
             counter += 1
@@ -124,8 +218,11 @@ def train_model(model, train_loader, val_loader, optimizer, scheduler, epochs, p
     return history
 
 if __name__ == "__main__":
+    # Required for Colab to handle NLTK logic
+    nltk.download('punkt')
+
     device = torch.device("cuda" if torch.cuda.is_available() else "cpu")
-    model_name = "HuggingFaceTB/SmolLM2-1.7B-Instruct" # "HuggingFaceTB/SmolLM2-135M-Instruct"
+    model_name = MODEL_NAME
 
     tokenizer = AutoTokenizer.from_pretrained(model_name)
 
@@ -147,16 +244,18 @@ if __name__ == "__main__":
     dataset = load_dataset("json", data_files="medical_data.jsonl", split="train")
     split = dataset.train_test_split(test_size=0.2, seed=42)
 
-    train_set = split["train"].map(tokenize_fn, batched=True).remove_columns(dataset.column_names)
-    val_set = split["test"].map(tokenize_fn, batched=True).remove_columns(dataset.column_names)
-    train_set.set_format("torch"); val_set.set_format("torch")
+    tokenize_args = {"tokenizer": tokenizer, "padding": PADDING}
+    train_set = split["train"].map(tokenize_fn, batched=True, fn_kwargs=tokenize_args).remove_columns(dataset.column_names)
+    val_set = split["test"].map(tokenize_fn, batched=True, fn_kwargs=tokenize_args).remove_columns(dataset.column_names)
 
-    train_loader = DataLoader(train_set, batch_size=2, shuffle=True)
-    val_loader = DataLoader(val_set, batch_size=2)
+    train_loader = make_loader(train_set, tokenizer, BATCH_SIZE, PADDING, shuffle=True)
+    val_loader = make_loader(val_set, tokenizer, BATCH_SIZE, PADDING, shuffle=False)
 
     optimizer = AdamW(model.parameters(), lr=5e-5, weight_decay=5e-4)
     scheduler = ReduceLROnPlateau(optimizer, mode='min', factor=0.1, patience=2)
 
     # --- Execution ---
-    history = train_model(model, train_loader, val_loader, optimizer, scheduler, 5, 3)
+    print(f"Padding: {PADDING} | Batch: {BATCH_SIZE} x {GRAD_ACCUM_STEPS} accumulation steps | bf16 autocast: {USE_BF16}")
+    history = train_model(model, tokenizer, train_loader, val_loader, optimizer, scheduler, 5, 3, device,
+                          GRAD_ACCUM_STEPS, USE_BF16)
     plot_results(history)
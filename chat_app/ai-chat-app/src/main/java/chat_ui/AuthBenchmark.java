@@ -0,0 +1,47 @@
+package chat_ui;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * Compares the per-request cost of re-checking the password with BCrypt against validating a session token.
+ * Run: mvn compile exec:java -Dexec.mainClass=chat_ui.AuthBenchmark
+ */
+public class AuthBenchmark {
+    public static void main(String[] args) {
+        int bcryptRounds = args.length > 0 ? Integer.parseInt(args[0]) : 20; // BCrypt is slow, keep this small
+        int tokenRounds = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        String password = "correct horse battery staple";
+        String storedHash = Database.hashPw(password); // Same cost factor (12) the app stores
+        String token = SessionStore.issue("benchmark-user");
+
+        // Warm-up so we measure JIT-compiled code, not the interpreter
+        for (int i = 0; i < 3; i++) BCrypt.checkpw(password, storedHash);
+        for (int i = 0; i < 100_000; i++) SessionStore.validate(token);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < bcryptRounds; i++) {
+            if (!BCrypt.checkpw(password, storedHash)) throw new IllegalStateException("BCrypt check failed");
+        }
+        double bcryptNs = (System.nanoTime() - start) / (double) bcryptRounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < tokenRounds; i++) {
+            if (SessionStore.validate(token) == null) throw new IllegalStateException("Session check failed");
+        }
+        double tokenNs = (System.nanoTime() - start) / (double) tokenRounds;
+
+        // Forged tokens must be rejected by the HMAC alone, without a map lookup
+        String forged = token.substring(0, token.length() - 2) + "AA";
+        start = System.nanoTime();
+        for (int i = 0; i < tokenRounds; i++) {
+            if (SessionStore.validate(forged) != null) throw new IllegalStateException("Forged token accepted");
+        }
+        double forgedNs = (System.nanoTime() - start) / (double) tokenRounds;
+
+        System.out.printf("BCrypt.checkpw (cost 12): %,12.0f ns/op%n", bcryptNs);
+        System.out.printf("Session token validate:   %,12.0f ns/op%n", tokenNs);
+        System.out.printf("Forged token rejected:    %,12.0f ns/op%n", forgedNs);
+        System.out.printf("Speed-up per request:     %,12.0fx%n", bcryptNs / tokenNs);
+    }
+}
@@ -0,0 +1,181 @@
+package chat_ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/*
+ * The HTTP side of a chat turn, without any Swing in it - ConversationPanel uses it for the UI
+ * and LoadGenerator drives exactly the same code path headlessly.
+ */
+public class ChatClient implements ChatTransport {
+    public static final String AI_SERVER_URL = System.getProperty("ai.url", "http://127.0.0.1:8000"); // -Dai.url=... to point at another (or a stub) server
+
+    private static final ExecutorService STREAM_READERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "reply-stream-reader"); // Reading a stream blocks, so it gets its own threads instead of the common pool
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final HttpClient client;
+    private final Map<String, Call> inFlight = new ConcurrentHashMap<>(); // "user/conversation" -> the reply being streamed, for cancel()
+
+    // One streamed reply: the exchange, the body once it arrives, and the future ask() returned
+    private static final class Call {
+        volatile CompletableFuture<?> exchange;
+        volatile CompletableFuture<Void> result;
+        volatile InputStream body;
+        volatile boolean aborted;
+
+        void abort() {
+            this.aborted = true;
+            this.result.cancel(true); // The caller sees a CancellationException right away
+            this.exchange.cancel(true); // Still waiting for the response headers - the request is dropped
+            closeQuietly(this.body); // Already streaming - the reader thread stops and the connection is closed
+        }
+    }
+
+    public ChatClient(HttpClient client) {
+        this.client = client;
+    }
+
+    /*
+     * Sends ONE new message (the server owns the rest of the conversation) and feeds the reply to onChunk as it streams in.
+     * The future completes when the whole reply has arrived.
+     * A conversation's first question may be answered from the SemanticCache instead - then we save the turn ourselves.
+     */
+    @Override
+    public CompletableFuture<Void> ask(String userId, String sessionToken, String conversationId, String message, boolean firstTurn, Options options, Consumer<String> onChunk) {
+        SemanticCache cache = firstTurn ? SemanticCache.forUser(userId) : null;
+        String cached = (cache != null) ? cache.lookup(message) : null;
+        if (cached != null) {
+            return CompletableFuture.runAsync(() -> {
+                onChunk.accept(cached);
+                Database.saveTurn(userId, conversationId, message, cached); // The server never saw this turn - history and the next turn's context need it
+            }, STREAM_READERS);
+        }
+
+        String jsonBody = String.format("{\"userid\": \"%s\", \"conversation_id\": \"%s\", \"message\": \"%s\"%s}",
+            userId, conversationId, Database.jsonEscape(message), options.toJson());
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(AI_SERVER_URL + "/ask/stream"))
+            .header("Content-Type", "application/json")
+            .header("Authorization", SessionStore.authorizationHeader(sessionToken)) // brain_api reads the user from this, not from the body
+            .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
+            .build();
+
+        StringBuilder reply = new StringBuilder(); // Only filled for first turns, which are the ones we cache
+        Consumer<String> sink = (cache == null) ? onChunk : chunk -> {
+            reply.append(chunk);
+            onChunk.accept(chunk);
+        };
+
+        // sendAsync = no thread parked while the model thinks, so many conversations can wait on the LLM at the same time
+        Call call = new Call();
+        String key = userId + "/" + conversationId;
+        CompletableFuture<HttpResponse<InputStream>> exchange = this.client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream());
+        call.exchange = exchange;
+        call.result = exchange
+            .thenAcceptAsync(response -> streamReply(response, call, sink), STREAM_READERS)
+            .thenRun(() -> {
+                DbRouter.noteWrite(userId); // The server saved this turn on the primary - keep our next history sync there too
+                if (cache != null) cache.put(message, reply.toString());
+            });
+
+        Call previous = this.inFlight.put(key, call);
+        if (previous != null) previous.abort(); // The server cancels the older reply itself when the new message arrives
+        call.result.whenComplete((ignored, error) -> this.inFlight.remove(key, call));
+        return call.result;
+    }
+
+    @Override
+    public CompletableFuture<Void> cancel(String userId, String sessionToken, String conversationId) {
+        boolean found = false;
+        for (Map.Entry<String, Call> entry : this.inFlight.entrySet()) {
+            String key = entry.getKey();
+            boolean match = (conversationId == null) ? key.startsWith(userId + "/") : key.equals(userId + "/" + conversationId);
+            if (match && this.inFlight.remove(key, entry.getValue())) {
+                entry.getValue().abort();
+                found = true;
+            }
+        }
+        if (!found) return CompletableFuture.completedFuture(null);
+
+        // Closing the stream alone would only be noticed when the server writes its next token - tell it straight away
+        String jsonBody = (conversationId == null)
+            ? String.format("{\"userid\": \"%s\"}", userId)
+            : String.format("{\"userid\": \"%s\", \"conversation_id\": \"%s\"}", userId, conversationId);
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(AI_SERVER_URL + "/cancel"))
+            .header("Content-Type", "application/json")
+            .header("Authorization", SessionStore.authorizationHeader(sessionToken))
+            .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
+            .build();
+        return this.client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .<Void>thenApply(response -> {
+                if (response.statusCode() != 200) System.out.println("Cancel refused: HTTP " + response.statusCode()); // 401 = session ended, the closed stream still stops it
+                return null;
+            })
+            .exceptionally(error -> {
+                System.out.println("Cancel not delivered: " + error.getMessage()); // The closed stream still stops it, one token later
+                return null;
+            });
+    }
+
+    // Revokes the token on brain_api as well - best effort, an unused token dies after SessionStore.IDLE_TIMEOUT anyway
+    public CompletableFuture<Void> logout(String sessionToken) {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(AI_SERVER_URL + "/logout"))
+            .header("Authorization", SessionStore.authorizationHeader(sessionToken))
+            .POST(HttpRequest.BodyPublishers.noBody())
+            .build();
+        return this.client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .<Void>thenApply(response -> null)
+            .exceptionally(error -> null);
+    }
+
+    private static void streamReply(HttpResponse<InputStream> response, Call call, Consumer<String> onChunk) {
+        call.body = response.body();
+        if (call.aborted) closeQuietly(call.body); // cancel() came between the headers and here
+
+        if (response.statusCode() != 200) {
+            closeQuietly(call.body); // Nobody reads the error body - release the connection
+            if (response.statusCode() == 401) {
+                throw new IllegalStateException("Session expired"); // brain_api refused the token - same message the panel shows for a local expiry
+            }
+            throw new IllegalStateException("AI server returned HTTP " + response.statusCode());
+        }
+
+        try (Reader reader = new InputStreamReader(call.body, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[256];
+            int read;
+            while ((read = reader.read(buffer)) != -1 && !call.aborted) {
+                onChunk.accept(new String(buffer, 0, read));
+            }
+        } catch (IOException e) {
+            if (!call.aborted) throw new UncheckedIOException(e); // Closed by cancel() - the future is already cancelled
+        }
+    }
+
+    private static void closeQuietly(InputStream body) {
+        if (body == null) return;
+        try {
+            body.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
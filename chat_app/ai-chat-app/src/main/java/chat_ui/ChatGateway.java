@@ -0,0 +1,345 @@
+package chat_ui;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.websocket.WsConnectContext;
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsMessageContext;
+
+/*
+ * One persistent WebSocket per device instead of an HTTP request per turn. Clients send only the new message and get the reply
+ * streamed back as token frames, plus presence (how many of your devices are online) and typing events. Every turn of a user
+ * is fanned out to all of their devices, so the phone shows what was just asked on the desktop while it is being answered.
+ * Replies come from brain_api through ChatClient, so the semantic cache and the saved history work exactly as before.
+ *
+ *   POST /login   {"email": "...", "password": "..."} -> {"status": "success", "user_uuid", "user_name", "session_token"}
+ *   WS   /chat?token=<session_token>
+ *
+ *   client -> server  {"type": "ask", "id": "<client id>", "conversation": "<id>", "message": "...", "first": true}
+ *                       optional: "length": "short" | "normal" | "long", "max_tokens", "deadline_ms", "stop" (one sequence)
+ *                     {"type": "cancel", "conversation": "<id>"}      stops that reply on brain_api - no conversation = all of them
+ *                     {"type": "typing", "conversation": "<id>", "typing": true}
+ *                     {"type": "logout"}
+ *   server -> client  {"type": "token", "id", "conversation", "text"}   a piece of the reply, to every device of the user
+ *                     {"type": "done", "id", "conversation"[, "stopped": true]} / {"type": "error", "id", "message"}
+ *                     {"type": "message", "conversation", "text"}     the user's own message, sent from another device
+ *                     {"type": "typing", "conversation", "who": "user" | "DoctorBot", "typing"}
+ *                     {"type": "presence", "devices": 2}
+ *
+ * permessage-deflate is negotiated by Jetty whenever the client offers it (Flutter's dart:io does by default); token frames are
+ * tiny and repetitive, so they compress well. Every connection has a bounded send queue drained by its own virtual thread -
+ * a slow phone can't hold up anybody else's stream. A full queue drops typing/presence frames first; if a reply frame doesn't
+ * fit, the connection is closed (1013) and the client reloads the history - the turn is saved server-side either way.
+ *
+ *   java -cp <classpath> chat_ui.ChatGateway port=8090 queue=256
+ */
+public class ChatGateway {
+    private static final Pattern JSON_FIELD = Pattern.compile("\"(\\w+)\"\\s*:\\s*(?:\"((?:[^\"\\\\]|\\\\.)*)\"|(true|false|-?\\d+))");
+    private static final String CLOSE = new String("close"); // Compared by identity - tells a sender thread to stop
+    private static final int MAX_ASKS_PER_CONNECTION = 4;
+
+    private static final Map<String, Connection> BY_SESSION = new ConcurrentHashMap<>(); // WebSocket session id -> connection
+    private static final Map<String, Set<Connection>> BY_USER = new ConcurrentHashMap<>(); // User UUID -> all of their devices
+
+    private static final LongAdder FRAMES_SENT = new LongAdder();
+    private static final LongAdder CHARS_SENT = new LongAdder(); // Before compression
+    private static final LongAdder EVENTS_DROPPED = new LongAdder();
+    private static final LongAdder SLOW_CLOSED = new LongAdder();
+    private static final AtomicInteger DEFLATE_CONNECTIONS = new AtomicInteger();
+
+    private static ChatClient chat;
+    private static int queueCapacity;
+
+    public static void main(String[] args) {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.parse(args);
+        int port = settings.getInt("port", 8090);
+        queueCapacity = settings.getInt("queue", 256);
+        chat = new ChatClient(HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(3)).build());
+
+        Database.initialize();
+        Javalin app = Javalin.create(config -> {
+                config.useVirtualThreads = true; // /login runs BCrypt - a virtual thread per request is cheaper than a big pool
+                config.jetty.modifyWebSocketServletFactory(factory -> {
+                    factory.setMaxTextMessageSize(64 * 1024); // A chat message, not a file upload
+                    factory.setIdleTimeout(Duration.ofMinutes(5)); // Automatic pings keep healthy connections well inside this
+                    System.out.println("WebSocket extensions available: " + factory.getAvailableExtensionNames()); // Must list permessage-deflate
+                });
+            })
+            .post("/login", ChatGateway::login)
+            .get("/gateway-stats", ctx -> ctx.contentType("application/json").result(stats()))
+            .ws("/chat", ws -> {
+                ws.onConnect(ChatGateway::connect);
+                ws.onMessage(ChatGateway::receive);
+                ws.onClose(ChatGateway::disconnect);
+                ws.onError(ctx -> System.out.println("WebSocket error: " + ctx.error()));
+            })
+            .start(port);
+
+        System.out.printf("Chat gateway on port %d (send queue %d frames per connection), AI server %s%n", port, queueCapacity, ChatClient.AI_SERVER_URL);
+        Runtime.getRuntime().addShutdownHook(new Thread(app::stop));
+    }
+
+    private static void login(Context ctx) {
+        Map<String, String> body = fields(ctx.body());
+        Login.AuthResult result = Login.authenticate(body.getOrDefault("email", ""), body.getOrDefault("password", ""));
+
+        switch (result.status()) {
+            case SUCCESS -> ctx.contentType("application/json").result(frame("status", "success", "user_uuid", result.userUuid(),
+                "user_name", result.firstName(), "session_token", result.sessionToken()));
+            case NOT_VERIFIED -> ctx.status(403).contentType("application/json").result(frame("message", "Account not verified."));
+            default -> ctx.status(401).contentType("application/json").result(frame("message", "Invalid email or password."));
+        }
+    }
+
+    private static void connect(WsConnectContext ctx) {
+        String token = ctx.queryParam("token");
+        String userId = SessionStore.validate(token);
+        if (userId == null) {
+            ctx.closeSession(1008, "Session expired"); // Policy violation - the client has to log in again
+            return;
+        }
+
+        boolean deflate = ctx.session.getUpgradeResponse().getExtensions().stream().anyMatch(e -> "permessage-deflate".equals(e.getName()));
+        Connection conn = new Connection(userId, token, ctx, deflate);
+        BY_SESSION.put(ctx.sessionId(), conn);
+        BY_USER.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet()).add(conn);
+        if (deflate) DEFLATE_CONNECTIONS.incrementAndGet();
+
+        ctx.enableAutomaticPings(30, TimeUnit.SECONDS); // Keeps NAT/proxy mappings alive on idle phones
+        broadcastPresence(userId);
+    }
+
+    private static void receive(WsMessageContext ctx) {
+        Connection conn = BY_SESSION.get(ctx.sessionId());
+        if (conn == null) return; // Rejected in connect(), the close is on its way
+
+        Map<String, String> msg = fields(ctx.message());
+        switch (msg.getOrDefault("type", "")) {
+            case "ask" -> ask(conn, msg);
+            case "cancel" -> chat.cancel(conn.userId, conn.token, msg.get("conversation")); // The ask's own whenComplete tells every device
+            case "typing" -> broadcast(conn.userId, conn, true, frame("type", "typing", "conversation", msg.get("conversation"),
+                "who", "user", "typing", Boolean.parseBoolean(msg.getOrDefault("typing", "true"))));
+            case "logout" -> {
+                SessionStore.revoke(conn.token);
+                chat.logout(conn.token);
+                conn.close(1000, "Logged out");
+            }
+            default -> conn.offer(frame("type", "error", "message", "Unknown frame type"), false);
+        }
+    }
+
+    private static void ask(Connection conn, Map<String, String> msg) {
+        String id = msg.get("id");
+        String conversationId = msg.get("conversation");
+        String message = msg.get("message");
+
+        // 1. Same checks as one HTTP request would get: a live session (HMAC + map lookup, slides the idle timeout) and a sane request
+        if (!conn.userId.equals(SessionStore.validate(conn.token))) {
+            conn.offer(frame("type", "error", "id", id, "message", "Session expired"), false);
+            conn.close(1008, "Session expired");
+            return;
+        }
+        if (conversationId == null || message == null || message.isBlank()) {
+            conn.offer(frame("type", "error", "id", id, "message", "ask needs conversation and message"), false);
+            return;
+        }
+        if (conn.asks.incrementAndGet() > MAX_ASKS_PER_CONNECTION) {
+            conn.asks.decrementAndGet();
+            conn.offer(frame("type", "error", "id", id, "message", "Too many questions in flight"), false);
+            return;
+        }
+
+        // 2. Show the question on the user's other devices and tell all of them the bot is writing
+        broadcast(conn.userId, conn, false, frame("type", "message", "conversation", conversationId, "text", message));
+        broadcast(conn.userId, null, true, frame("type", "typing", "conversation", conversationId, "who", "DoctorBot", "typing", true));
+
+        // 3. Stream the reply to every device - ChatClient.ask is asynchronous, so this handler returns right away
+        boolean firstTurn = Boolean.parseBoolean(msg.getOrDefault("first", "false"));
+        ChatTransport.Options options = new ChatTransport.Options(msg.get("length"), parseInt(msg.get("max_tokens")),
+            parseInt(msg.get("deadline_ms")), (msg.get("stop") != null) ? List.of(msg.get("stop")) : List.of());
+        chat.ask(conn.userId, conn.token, conversationId, message, firstTurn, options,
+                chunk -> broadcast(conn.userId, null, false, frame("type", "token", "id", id, "conversation", conversationId, "text", chunk)))
+            .whenComplete((ignored, error) -> {
+                conn.asks.decrementAndGet();
+                broadcast(conn.userId, null, true, frame("type", "typing", "conversation", conversationId, "who", "DoctorBot", "typing", false));
+                if (error instanceof CancellationException) { // Stopped by the user - the partial reply is all there will be
+                    broadcast(conn.userId, null, false, frame("type", "done", "id", id, "conversation", conversationId, "stopped", true));
+                } else if (error != null) {
+                    System.out.println("Reply failed for " + conn.userId + ": " + error.getMessage());
+                    conn.offer(frame("type", "error", "id", id, "message", "AI server unavailable"), false);
+                } else {
+                    broadcast(conn.userId, null, false, frame("type", "done", "id", id, "conversation", conversationId));
+                }
+            });
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return (value != null) ? Integer.parseInt(value) : 0; // 0 = brain_api's default
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void disconnect(WsContext ctx) {
+        Connection conn = BY_SESSION.remove(ctx.sessionId());
+        if (conn == null) return;
+
+        conn.close(1000, null);
+        if (conn.deflate) DEFLATE_CONNECTIONS.decrementAndGet();
+        BY_USER.computeIfPresent(conn.userId, (id, devices) -> {
+            devices.remove(conn);
+            return devices.isEmpty() ? null : devices;
+        });
+        broadcastPresence(conn.userId);
+    }
+
+    // Queues a frame for every device of the user except `skip` - never blocks, the per-connection senders do the writing
+    private static void broadcast(String userId, Connection skip, boolean droppable, String frame) {
+        for (Connection conn : BY_USER.getOrDefault(userId, Set.of())) {
+            if (conn != skip) conn.offer(frame, droppable);
+        }
+    }
+
+    private static void broadcastPresence(String userId) {
+        Set<Connection> devices = BY_USER.getOrDefault(userId, Set.of());
+        broadcast(userId, null, true, frame("type", "presence", "devices", devices.size()));
+    }
+
+    private static String stats() {
+        return frame("connections", BY_SESSION.size(), "users", BY_USER.size(), "deflate_connections", DEFLATE_CONNECTIONS.get(),
+            "frames_sent", FRAMES_SENT.sum(), "chars_sent", CHARS_SENT.sum(), "events_dropped", EVENTS_DROPPED.sum(),
+            "slow_clients_closed", SLOW_CLOSED.sum(), "sessions", SessionStore.activeSessions());
+    }
+
+    // {"key": "value", ...} from alternating keys and values - strings are quoted, numbers and booleans are not
+    static String frame(Object... keyValues) {
+        StringBuilder json = new StringBuilder("{");
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            Object value = keyValues[i + 1];
+            if (value == null) continue;
+            if (json.length() > 1) json.append(',');
+            json.append('"').append(keyValues[i]).append("\":");
+            if (value instanceof String s) json.append('"').append(Database.jsonEscape(s)).append('"');
+            else json.append(value);
+        }
+        return json.append('}').toString();
+    }
+
+    // The top-level string/number/boolean fields of a flat JSON object - all our frames are flat
+    static Map<String, String> fields(String json) {
+        Map<String, String> fields = new HashMap<>();
+        Matcher m = JSON_FIELD.matcher(json == null ? "" : json);
+        while (m.find()) {
+            fields.put(m.group(1), m.group(2) != null ? unescape(m.group(2)) : m.group(3));
+        }
+        return fields;
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                out.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            switch (next) {
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 't' -> out.append('\t');
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'u' -> {
+                    out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                    i += 4;
+                }
+                default -> out.append(next); // \" \\ \/
+            }
+        }
+        return out.toString();
+    }
+
+    /*
+     * One device. Frames are queued by whoever produces them (reply streams, other devices' events) and written by a
+     * virtual thread of its own, so a blocking write to a slow client only ever parks that thread.
+     */
+    private static final class Connection {
+        private final String userId;
+        private final String token;
+        private final WsContext ctx;
+        private final boolean deflate;
+        private final BlockingQueue<String> outbox = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicInteger asks = new AtomicInteger();
+        private volatile boolean closed = false;
+
+        private Connection(String userId, String token, WsContext ctx, boolean deflate) {
+            this.userId = userId;
+            this.token = token;
+            this.ctx = ctx;
+            this.deflate = deflate;
+            Thread.ofVirtual().name("ws-send-" + ctx.sessionId()).start(this::drain);
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    String frame = this.outbox.take();
+                    if (frame == CLOSE || this.closed) return;
+
+                    this.ctx.send(frame); // Blocks until Jetty has written it - fine, we are a virtual thread
+                    FRAMES_SENT.increment();
+                    CHARS_SENT.add(frame.length());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                close(1011, "Send failed"); // The socket is gone - the close handler cleans up
+            }
+        }
+
+        private void offer(String frame, boolean droppable) {
+            if (this.closed) return;
+            if (droppable && this.outbox.remainingCapacity() < queueCapacity / 2) { // Half full: typing/presence can go, replies can't
+                EVENTS_DROPPED.increment();
+                return;
+            }
+            if (!this.outbox.offer(frame)) {
+                SLOW_CLOSED.increment();
+                close(1013, "Client too slow - reload the history"); // Try again later
+            }
+        }
+
+        private void close(int code, String reason) {
+            if (this.closed) return;
+            this.closed = true;
+            this.outbox.clear();
+            this.outbox.offer(CLOSE);
+            if (reason != null) {
+                try {
+                    this.ctx.closeSession(code, reason);
+                } catch (Exception e) {
+                    System.out.println("Close failed: " + e.getMessage()); // Already closed by the other side
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package chat_ui;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/*
+ * How a chat turn reaches the model: ChatClient posts it to brain_api, GatewayClient sends it over the ChatGateway WebSocket.
+ */
+public interface ChatTransport {
+    /*
+     * How long a reply may get and when it must end - brain_api's generation controls. Every field is optional
+     * (null / 0 / empty = the server's default). maxNewTokens overrides length; the server caps both.
+     */
+    record Options(String length, int maxNewTokens, int deadlineMs, List<String> stop) {
+        public static final Options DEFAULT = new Options(null, 0, 0, List.of());
+
+        public static Options ofLength(String length) { // "short" | "normal" | "long"
+            return new Options(length, 0, 0, List.of());
+        }
+
+        // The fields that are set, as the tail of a JSON object: , "length": "short", "max_new_tokens": 80 ...
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            if (length != null) json.append(", \"length\": \"").append(Database.jsonEscape(length)).append('"');
+            if (maxNewTokens > 0) json.append(", \"max_new_tokens\": ").append(maxNewTokens);
+            if (deadlineMs > 0) json.append(", \"deadline_ms\": ").append(deadlineMs);
+            if (!stop.isEmpty()) {
+                json.append(", \"stop\": [");
+                for (int i = 0; i < stop.size(); i++) {
+                    json.append(i > 0 ? ", \"" : "\"").append(Database.jsonEscape(stop.get(i))).append('"');
+                }
+                json.append(']');
+            }
+            return json.toString();
+        }
+    }
+
+    // Sends ONE new message and feeds the reply to onChunk as it streams in. Completes when the whole reply has arrived.
+    // sessionToken is the user's SessionStore token - brain_api takes the user from it, not from userId.
+    CompletableFuture<Void> ask(String userId, String sessionToken, String conversationId, String message, boolean firstTurn, Options options, Consumer<String> onChunk);
+
+    default CompletableFuture<Void> ask(String userId, String sessionToken, String conversationId, String message, boolean firstTurn, Consumer<String> onChunk) {
+        return ask(userId, sessionToken, conversationId, message, firstTurn, Options.DEFAULT, onChunk);
+    }
+
+    /*
+     * Stops the reply in flight for this conversation (null = every conversation of the user), here and on the server,
+     * so the model is free for the next question. Its ask() future completes with a CancellationException.
+     * The returned future completes once the server has been told - sessionToken says whose replies may be stopped.
+     */
+    CompletableFuture<Void> cancel(String userId, String sessionToken, String conversationId);
+}
@@ -8,7 +8,6 @@ import org.mindrot.jbcrypt.BCrypt;
 import java.awt.*;
 import java.net.URI;
 import java.net.http.*;
-import java.util.concurrent.CompletableFuture;
 import io.javalin.Javalin;
 import java.util.Map;
 
@@ -21,39 +20,38 @@ import java.util.Enumeration;
 */
 
 public class ChatWindow extends JFrame {
-    private JTextArea chatArea; // Where the conversation will be displayed
-    private JTextField inputField; // Where the user types their message
-    private JButton sendButton, clearButton, saveButton, historyButton; // Added historyButton to view past conversations
-    private HttpClient client; // For making HTTP requests to the Python server
+    private JTabbedPane tabs; // One tab per consultation topic - each tab talks to the AI independently
+    private JButton clearButton, saveButton, historyButton, newTopicButton; // Added historyButton to view past conversations
+    private HttpClient client; // Shared by every tab - one connection pool for all in-flight requests
     private String userId; // In a real app, you'd generate or manage unique user IDs properly - Temporary hardcoded user ID for demonstration
-    private JProgressBar progressBar; // To show when the AI is "thinking"
+    private String sessionToken; // Issued by Login after the one BCrypt check - validated (cheaply) before every request
+    private ChatTransport transport; // Straight to brain_api, or one WebSocket to ChatGateway with -Dchat.gateway
+    private String baseTitle;
 
-    public ChatWindow(String userId) {
+    public ChatWindow(String userId, String sessionToken) {
         // 1. Setup the Window
         this.userId = userId;
-        setTitle("DoctorBot - Patient: " + this.userId); // A more descriptive title
+        this.sessionToken = sessionToken;
+        this.baseTitle = "DoctorBot - Patient: " + this.userId;
+        setTitle(this.baseTitle); // A more descriptive title
         setSize(500, 600); // A slightly larger window for better readability
-        setDefaultCloseOperation(EXIT_ON_CLOSE); // Close app when window is closed
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE); // windowClosing exits once the server has heard about it
         setLayout(new BorderLayout()); // Use BorderLayout for easy component placement
 
-        // 2. Chat History Area
-        this.chatArea = new JTextArea(); // Where the conversation will be displayed
-        this.chatArea.setEditable(false); // User shouldn't edit past messages
-        this.chatArea.setLineWrap(true); // Wrap lines for better readability
-        this.chatArea.setWrapStyleWord(true); // Wrap at word boundaries
-        this.chatArea.setBackground(new Color(245, 245, 250)); // Light gray background for a modern look
-        this.chatArea.setFont(new Font("Arial", Font.PLAIN, 14)); // A clean, readable font
-        this.chatArea.setForeground(new Color(44, 62, 80));
-        this.chatArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10)); // Padding around the text
-        
-        JScrollPane scrollPane = new JScrollPane(this.chatArea); //  Add scroll functionality to the chat area
-        add(scrollPane, BorderLayout.CENTER); // Place in the center of the window
+        // 2. Conversation Tabs
+        this.client = Startup.httpClient(); // Already built (and connected) in the background while the login dialog was open
+        this.transport = GatewayClient.enabled()
+            ? GatewayClient.connect(this.client, sessionToken, event -> SwingUtilities.invokeLater(() -> onGatewayEvent(event)))
+            : new ChatClient(this.client);
+        this.tabs = new JTabbedPane();
+        add(this.tabs, BorderLayout.CENTER); // Place in the center of the window
 
         JPanel toolbar = new JPanel(new FlowLayout(FlowLayout.LEFT)); // A simple toolbar at the top
         toolbar.setBackground(new Color(52, 73, 94)); // Darker background
         this.clearButton = new JButton("Clear Chat");
         this.saveButton = new JButton("Save Chat");
         this.historyButton = new JButton("View History"); // New button to view chat history
+        this.newTopicButton = new JButton("New Topic"); // Start a second consultation while the first one is still generating
 
         this.clearButton.setBackground(new Color(231, 76, 60)); // Red color
         this.clearButton.setForeground(Color.WHITE);
@@ -64,151 +62,114 @@ public class ChatWindow extends JFrame {
         this.historyButton.setBackground(new Color(142, 68, 173)); // Modern Purple
         this.historyButton.setForeground(Color.WHITE);
 
+        this.newTopicButton.setBackground(new Color(41, 128, 185)); // Same blue as the send button
+        this.newTopicButton.setForeground(Color.WHITE);
+
         this.clearButton.setFocusPainted(false); // Remove focus border for a cleaner look
         this.saveButton.setFocusPainted(false); // Remove focus border for a cleaner look
         this.historyButton.setFocusPainted(false);
-
-        this.historyButton.addActionListener(e -> {
-            String history = Database.loadFullHistory(userId);
-            if (!history.isEmpty()) {
-                this.chatArea.setText(history);
-                this.chatArea.append("--- History Restored ---\n\n");
-                this.chatArea.setCaretPosition(this.chatArea.getDocument().getLength());
-            }
-        });
+        this.newTopicButton.setFocusPainted(false);
 
         toolbar.add(this.clearButton);
         toolbar.add(this.saveButton);
         toolbar.add(this.historyButton);
+        toolbar.add(this.newTopicButton);
 
         add(toolbar, BorderLayout.NORTH); // Place toolbar at the top
-        // 3. Input Panel (Field + Button)
-        JPanel inputPanel = new JPanel(new BorderLayout(10, 10)); // Use BorderLayout to place field and button side by side
-        JPanel southPanel = new JPanel(new BorderLayout()); // A panel to hold both the progress bar and the input area
-
-        inputPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15)); // Padding around the input area
-        inputPanel.setBackground(Color.WHITE); // Slightly different light gray for the input area
 
-        this.inputField = new JTextField(); // Where the user types their message
-        this.inputField.setFont(new Font("Segoe UI", Font.PLAIN, 15)); // Match the chat area font for consistency
+        // 3. Logic - every toolbar button acts on the selected tab
+        this.historyButton.addActionListener(e -> currentConversation().showHistory());
+        this.clearButton.addActionListener(e -> currentConversation().clearScreen()); // Clear the chat area when "Clear Chat" is clicked
+        this.newTopicButton.addActionListener(e -> openConversation(null));
 
-        this.sendButton = new JButton("ASK DOCTOR"); // Button to send the message
-        this.sendButton.setBackground(new Color(41, 128, 185)); // A nice blue color for the button
-        this.sendButton.setForeground(Color.WHITE); // White text on the button
-        this.sendButton.setFocusPainted(false);
-        this.sendButton.setFont(new Font("Segoe UI", Font.BOLD, 13)); // Bold font for the button
-        
-        inputPanel.add(this.inputField, BorderLayout.CENTER); // Input field takes up most of the space
-        inputPanel.add(this.sendButton, BorderLayout.EAST); // Send button on the right
-
-        this.progressBar = new JProgressBar();
-        this.progressBar.setIndeterminate(true); // This makes the "bouncing" animation
-        this.progressBar.setString("Analyzing clinical data..."); // Set specific medical context
-        this.progressBar.setVisible(false);
-        this.progressBar.setStringPainted(true);
-        this.progressBar.setForeground(new Color(41, 128, 185)); // Match your blue theme
-
-        southPanel.add(this.progressBar, BorderLayout.NORTH); // Progress bar on top
-        southPanel.add(inputPanel, BorderLayout.CENTER);      // Input field below it
-        add(southPanel, BorderLayout.SOUTH); // Place the combined panel at the bottom of the window
-
-        // add(inputPanel, BorderLayout.SOUTH); // Place input panel at the bottom of the window
-
-        // 4. Logic
-        client = HttpClient.newHttpClient(); // Initialize HTTP client for making requests to the Python server
-        this.sendButton.addActionListener(e -> sendMessage()); // When the button is clicked, call the sendMessage method
-        this.inputField.addActionListener(e -> sendMessage()); // When the user presses Enter in the input field, also call sendMessage
-        this.clearButton.addActionListener(e -> {
-            this.chatArea.setText(""); // Clear the chat area
-            this.chatArea.append("System: Screen cleared for a new topic.\n"); // Add a system message indicating the chat was cleared
-        }); // Clear the chat area when "Clear Chat" is clicked
-        
         this.saveButton.addActionListener(e -> {
             try (java.io.FileWriter writer = new java.io.FileWriter("Medical_Consultation.txt")) {
-                writer.write(this.chatArea.getText()); // This is perfect for a text file!
+                writer.write(currentConversation().getTranscript()); // This is perfect for a text file!
                 JOptionPane.showMessageDialog(this, "Consultation exported to Medical_Consultation.txt");
             } catch (java.io.IOException ex) {
                 ex.printStackTrace();
             }
         }); // Save the chat history to a text file when "Save Chat" is clicked
 
+        // Reconcile the local history mirror with the server now and then (rows from other devices, the Flutter app...)
+        Timer historySync = new Timer(30_000, e -> LocalHistoryStore.forUser(userId).syncAsync());
+        historySync.start();
+
+        addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosing(java.awt.event.WindowEvent e) {
+                historySync.stop();
+                // Nobody will read the replies still being generated - free the model, then log out (/cancel needs the token)
+                java.util.concurrent.CompletableFuture<Void> cancelled = transport.cancel(userId, sessionToken, null).exceptionally(error -> null);
+                java.util.concurrent.CompletableFuture<Void> closed = cancelled;
+                if (transport instanceof GatewayClient gateway) closed = cancelled.thenCompose(v -> gateway.logout()); // The gateway issued this token, so it revokes it
+                else if (transport instanceof ChatClient chat) {
+                    SessionStore.revoke(sessionToken); // Logging out = the token is dead immediately, no need to wait for expiry
+                    closed = cancelled.thenCompose(v -> chat.logout(sessionToken)); // ...on brain_api too
+                }
+
+                // Not on the EDT, and not a daemon - the JVM has to stay up until both requests are out (or 2 s have passed)
+                java.util.concurrent.CompletableFuture<Void> done = closed;
+                Thread exit = new Thread(() -> {
+                    try {
+                        done.get(2, java.util.concurrent.TimeUnit.SECONDS);
+                    } catch (Exception notDelivered) {
+                        System.out.println("Logout not confirmed by the server: " + notDelivered);
+                    }
+                    System.exit(0);
+                }, "logout");
+                exit.setDaemon(false);
+                exit.start();
+            }
+        });
+
+        Startup.Prefetch last = Startup.takePrefetch(userId); // Loaded while the "Welcome back" dialog was on screen
+        openConversation(last.conversationId()).showTranscript(last.transcript()); // Reopen the topic the user was on last time
+
         setLocationByPlatform(true); // Let the OS decide where to place the window
         setLocationRelativeTo(null); // Center the window on the screen
         setVisible(true); // Show the window
     }
 
-    private void sendMessage() {
-        String message = inputField.getText().trim();
-        if (message.isEmpty()) return;
-
-        Database.saveMessage(userId, userId, message); // Save the user's message to the database
+    private ConversationPanel openConversation(String conversationId) {
+        ConversationPanel[] created = new ConversationPanel[1];
+        created[0] = new ConversationPanel(this.userId, this.sessionToken, conversationId, this.transport, () -> refreshTabTitle(created[0]));
 
-        String historyJson = Database.loadHistoryAsJson(userId);
-
-        this.chatArea.append(userId + ": " + message + "\n\n");
-        this.inputField.setText("");
-        
-        this.progressBar.setVisible(true); 
-        this.progressBar.setString("Pulmonologist is analyzing...");
-        this.sendButton.setEnabled(false);
-        this.inputField.setEditable(false);
-
-        this.progressBar.revalidate();
-        this.progressBar.repaint();
-
-        // Run AI request in background so the UI doesn't "freeze"
-        CompletableFuture.runAsync(() -> {
-            try {
-                String jsonBody; HttpRequest request = null;
-                HttpResponse<String> response = null;
+        this.tabs.addTab("Topic " + (this.tabs.getTabCount() + 1), created[0]);
+        this.tabs.setSelectedComponent(created[0]);
+        return created[0];
+    }
 
-                jsonBody = String.format("{\"userid\": \"%s\", \"messages\": %s}", userId, historyJson);
+    private void refreshTabTitle(ConversationPanel panel) {
+        int index = this.tabs.indexOfComponent(panel);
+        if (index < 0) return;
 
-                request = HttpRequest.newBuilder()
-                    .uri(URI.create("http://127.0.0.1:8000/ask"))
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonBody))
-                    .build();
+        String title = this.tabs.getTitleAt(index).replace(" (thinking...)", "");
+        this.tabs.setTitleAt(index, panel.isBusy() ? title + " (thinking...)" : title); // So the user can see which topics are still waiting on the AI
+    }
 
-                response = client.send(request, HttpResponse.BodyHandlers.ofString());
-                
-                // Extract "reply" from JSON
-                String rawResponse, aiReply;
-                final String displayResponse;
-
-                rawResponse = response.body();
-                aiReply = rawResponse.split("\"reply\":\"")[1];
-                aiReply = aiReply.substring(0, aiReply.lastIndexOf("\"}"))
-                             .replace("\\n", "\n")
-                             .replace("\\\"", "\"");
-                
-                displayResponse = (aiReply.isEmpty() ? "Sorry, I couldn't generate a response." : aiReply);
-                SwingUtilities.invokeLater(() -> {
-                    this.chatArea.append("DoctorBot: " + displayResponse + "\n\n");
-                    this.chatArea.setCaretPosition(this.chatArea.getDocument().getLength()); // Scroll to the bottom
-                    Database.saveMessage(userId, "DoctorBot", displayResponse); // Save the AI's response to the database
-                    resetUIState(); // Re-enable the UI components after the response is processed
-                });
-            } 
-            catch (Exception ex) 
-            {
-                SwingUtilities.invokeLater(() -> {
-                    this.chatArea.append("SYSTEM: Connection lost.\n\n");
-                    resetUIState();
-                });
+    private void onGatewayEvent(java.util.Map<String, String> event) {
+        switch (event.getOrDefault("type", "")) {
+            case "presence" -> {
+                int devices = Integer.parseInt(event.getOrDefault("devices", "1"));
+                setTitle(devices > 1 ? this.baseTitle + " (" + devices + " devices online)" : this.baseTitle);
             }
-        });
+            case "closed" -> setTitle(this.baseTitle + " (offline: " + event.get("message") + ")");
+            default -> { // Only tabs that are open follow live - the rest catches up through the history sync
+                for (int i = 0; i < this.tabs.getTabCount(); i++) {
+                    ConversationPanel panel = (ConversationPanel) this.tabs.getComponentAt(i);
+                    if (panel.getConversationId().equals(event.get("conversation"))) panel.onRemoteEvent(event);
+                }
+            }
+        }
     }
 
-    private void resetUIState() {
-        this.progressBar.setVisible(false); // Hide the progress bar
-        this.sendButton.setEnabled(true); // Re-enable the send button
-        this.inputField.setEditable(true); // Re-enable the input field
-        this.inputField.requestFocusInWindow(); // Set focus back to the input field for convenience
+    private ConversationPanel currentConversation() {
+        return (ConversationPanel) this.tabs.getSelectedComponent();
     }
 
     public static void main(String[] args) {
-        Database.initialize(); // Ensure the database is set up before launching the chat window
+        Startup.begin(); // DB schema check, HTTP client and BCrypt warm up in the background while the login dialog is showing
         /* 
         Javalin app = Javalin.create(config -> {
             config.bundledPlugins.enableCors(cors -> {
@@ -257,14 +218,28 @@ public class ChatWindow extends JFrame {
         */
         
         Login loginWindow = new Login(null); 
+        loginWindow.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowOpened(java.awt.event.WindowEvent e) {
+                long interactiveMs = Startup.millisSinceJvmStart();
+                System.out.println("Time to interactive (login dialog shown): " + interactiveMs + " ms");
+
+                if (Startup.isBenchmark()) { // StartupBenchmark parses this line - the app exits by itself, so nothing has to be killed
+                    Startup.awaitAll();
+                    System.out.println("STARTUP_TTI_MS=" + interactiveMs + " STARTUP_WARM_MS=" + Startup.millisSinceJvmStart());
+                    System.exit(0);
+                }
+            }
+        });
         loginWindow.setVisible(true);
 
         String finalUserId = loginWindow.getAuthenticatedUUID(); // Get the authenticated user's UUID after login or registration
+        String finalToken = loginWindow.getSessionToken();
         
         System.out.println("Authenticated User UUID: " + finalUserId); // Log the authenticated user ID for debugging
         if (finalUserId != null && !finalUserId.isEmpty()) { // SUCCESS: We have a valid user ID, so we can open the chat window
             SwingUtilities.invokeLater(() -> {
-                ChatWindow chat = new ChatWindow(finalUserId);
+                ChatWindow chat = new ChatWindow(finalUserId, finalToken);
                 chat.setVisible(true);
             });
         }
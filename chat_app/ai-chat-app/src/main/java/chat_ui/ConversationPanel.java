@@ -0,0 +1,258 @@
+package chat_ui;
+
+import javax.swing.*;
+
+import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * One consultation topic = one tab in ChatWindow.
+ * Every panel has its own chat area and its own in-flight request,
+ * so a slow answer in one tab never blocks typing in another. All panels share the window's HttpClient.
+ *
+ * The server owns the conversation: we only send the new message, it loads the context, generates,
+ * saves both turns and streams the reply back as plain text, which we append as it arrives.
+ * Through ChatGateway (GatewayClient) we also see the turns the user asks on their other devices, and typing events.
+ *
+ * While a reply is streaming the button turns into STOP, and sending another message stops it too - either way the server
+ * stops generating, so the model is free for the next question. The length box picks brain_api's short/normal/long budget.
+ */
+public class ConversationPanel extends JPanel {
+    private final String userId;
+    private final String sessionToken;
+    private final String conversationId; // Groups the rows of this topic in chat_history
+    private final ChatTransport chatClient; // Shared by all tabs - one connection pool (or one WebSocket), many in-flight requests
+    private final Runnable onStateChange; // Lets ChatWindow refresh the tab title when we start/stop "thinking"
+
+    private JTextArea chatArea; // Where the conversation will be displayed
+    private JTextField inputField; // Where the user types their message
+    private JButton sendButton; // Button to send the message - STOP while a reply is streaming
+    private JComboBox<String> lengthBox; // Short / Normal / Long answers
+    private JProgressBar progressBar; // To show when the AI is "thinking"
+    private CompletableFuture<?> inFlight = null; // The request currently waiting on the LLM (null when idle)
+    private Reply reply = null; // What that request has shown so far - a stopped one must not write into the next answer
+    private boolean sentMessage = false; // The local mirror may not have synced our last turn yet - this covers that gap
+    private String remoteReplyId = null; // The reply to a question from another device that we are currently showing
+    private long lastTypingSent = 0;
+    private Timer typingHide = null;
+
+    private static final class Reply {
+        volatile boolean live = true; // false once stopped or replaced - late chunks and completions are ignored
+        boolean started; // "DoctorBot: " already printed (EDT only)
+    }
+
+    public ConversationPanel(String userId, String sessionToken, String conversationId, ChatTransport transport, Runnable onStateChange) {
+        super(new BorderLayout());
+        this.userId = userId;
+        this.sessionToken = sessionToken;
+        this.conversationId = (conversationId != null) ? conversationId : UUID.randomUUID().toString(); // null = start a brand new topic
+        this.chatClient = transport;
+        this.onStateChange = onStateChange;
+
+        // 1. Chat Area
+        this.chatArea = new JTextArea(); // Where the conversation will be displayed
+        this.chatArea.setEditable(false); // User shouldn't edit past messages
+        this.chatArea.setLineWrap(true); // Wrap lines for better readability
+        this.chatArea.setWrapStyleWord(true); // Wrap at word boundaries
+        this.chatArea.setBackground(new Color(245, 245, 250)); // Light gray background for a modern look
+        this.chatArea.setFont(new Font("Arial", Font.PLAIN, 14)); // A clean, readable font
+        this.chatArea.setForeground(new Color(44, 62, 80));
+        this.chatArea.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10)); // Padding around the text
+        add(new JScrollPane(this.chatArea), BorderLayout.CENTER);
+
+        // 2. Input Panel (Field + Button) with the progress bar on top
+        JPanel inputPanel = new JPanel(new BorderLayout(10, 10));
+        JPanel southPanel = new JPanel(new BorderLayout());
+        inputPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15)); // Padding around the input area
+        inputPanel.setBackground(Color.WHITE);
+
+        this.inputField = new JTextField();
+        this.inputField.setFont(new Font("Segoe UI", Font.PLAIN, 15));
+
+        this.sendButton = new JButton("ASK DOCTOR");
+        this.sendButton.setBackground(new Color(41, 128, 185)); // A nice blue color for the button
+        this.sendButton.setForeground(Color.WHITE);
+        this.sendButton.setFocusPainted(false);
+        this.sendButton.setFont(new Font("Segoe UI", Font.BOLD, 13));
+
+        this.lengthBox = new JComboBox<>(new String[] {"Short", "Normal", "Long"});
+        this.lengthBox.setSelectedItem("Normal"); // The answer length the server always used
+        this.lengthBox.setToolTipText("Answer length");
+
+        inputPanel.add(this.lengthBox, BorderLayout.WEST);
+        inputPanel.add(this.inputField, BorderLayout.CENTER);
+        inputPanel.add(this.sendButton, BorderLayout.EAST);
+
+        this.progressBar = new JProgressBar();
+        this.progressBar.setIndeterminate(true); // This makes the "bouncing" animation
+        this.progressBar.setVisible(false);
+        this.progressBar.setStringPainted(true);
+        this.progressBar.setForeground(new Color(41, 128, 185)); // Match the blue theme
+
+        southPanel.add(this.progressBar, BorderLayout.NORTH);
+        southPanel.add(inputPanel, BorderLayout.CENTER);
+        add(southPanel, BorderLayout.SOUTH);
+
+        this.sendButton.addActionListener(e -> {
+            if (isBusy()) cancelInFlight();
+            else sendMessage();
+        });
+        this.inputField.addActionListener(e -> sendMessage()); // Enter key sends too - even while a reply is streaming
+
+        if (transport instanceof GatewayClient gateway) {
+            this.inputField.addKeyListener(new KeyAdapter() {
+                @Override
+                public void keyTyped(KeyEvent e) {
+                    long now = System.currentTimeMillis();
+                    if (now - lastTypingSent < 3000) return; // One typing event per few seconds is plenty
+                    lastTypingSent = now;
+                    gateway.typing(ConversationPanel.this.conversationId, true);
+                }
+            });
+        }
+    }
+
+    public String getConversationId() {
+        return this.conversationId;
+    }
+
+    public boolean isBusy() {
+        return this.inFlight != null;
+    }
+
+    public String getTranscript() {
+        return this.chatArea.getText();
+    }
+
+    public void clearScreen() {
+        this.chatArea.setText(""); // Only clears the screen - the server still has the conversation context
+        this.chatArea.append("System: Screen cleared for a new topic.\n");
+    }
+
+    public void showTranscript(String transcript) {
+        if (transcript.isEmpty()) return;
+        this.chatArea.setText(transcript);
+        this.chatArea.append("--- History Restored ---\n\n");
+        this.chatArea.setCaretPosition(this.chatArea.getDocument().getLength());
+    }
+
+    public void showHistory() {
+        String local = LocalHistoryStore.forUser(this.userId).transcript(this.conversationId); // Served from the local mirror - no DB round-trip
+        showTranscript(local.isEmpty() ? Database.loadConversationHistory(this.userId, this.conversationId) : local);
+    }
+
+    // Stops the reply being generated for this tab, if any - here and on the server
+    public void cancelInFlight() {
+        if (!isBusy()) return;
+        stopShowing();
+        this.chatClient.cancel(this.userId, this.sessionToken, this.conversationId);
+        resetUIState();
+    }
+
+    private void stopShowing() {
+        this.reply.live = false;
+        this.chatArea.append(this.reply.started ? " [stopped]\n\n" : "SYSTEM: Stopped.\n\n");
+    }
+
+    private void sendMessage() {
+        String message = inputField.getText().trim();
+        if (message.isEmpty()) return;
+
+        // HMAC + map lookup instead of BCrypt - also slides the session's idle timeout. Gateway sessions are checked by the gateway.
+        if (!(this.chatClient instanceof GatewayClient) && !this.userId.equals(SessionStore.validate(this.sessionToken))) {
+            this.chatArea.append("SYSTEM: Your session has expired. Please restart the app and log in again.\n\n");
+            this.sendButton.setEnabled(false);
+            this.inputField.setEditable(false);
+            return;
+        }
+
+        if (isBusy()) stopShowing(); // No cancel() - the new message replaces the old reply on the server, a cancel could race it
+
+        this.chatArea.append(userId + ": " + message + "\n\n");
+        this.inputField.setText("");
+
+        this.progressBar.setVisible(true);
+        this.progressBar.setString("Pulmonologist is analyzing...");
+        this.sendButton.setText("STOP");
+
+        boolean firstTurn = !LocalHistoryStore.forUser(userId).hasConversation(conversationId) && !this.sentMessage;
+        this.sentMessage = true;
+
+        Reply reply = new Reply();
+        this.reply = reply;
+        ChatTransport.Options options = ChatTransport.Options.ofLength(((String) this.lengthBox.getSelectedItem()).toLowerCase());
+        this.lastTypingSent = 0;
+        this.inFlight = this.chatClient.ask(userId, sessionToken, conversationId, message, firstTurn, options, chunk -> SwingUtilities.invokeLater(() -> {
+                if (!reply.live) return;
+                if (!reply.started) this.chatArea.append("DoctorBot: ");
+                reply.started = true;
+                this.chatArea.append(chunk);
+                this.chatArea.setCaretPosition(this.chatArea.getDocument().getLength()); // Scroll to the bottom
+            }))
+            .whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+                if (!reply.live) return; // Stopped or replaced - the UI has already moved on
+                if (error != null) {
+                    String reason = (error.getCause() != null) ? error.getCause().getMessage() : error.getMessage();
+                    this.chatArea.append("Session expired".equals(reason)
+                        ? "SYSTEM: Your session has expired. Please restart the app and log in again.\n\n"
+                        : "SYSTEM: Connection lost.\n\n");
+                } else {
+                    this.chatArea.append("\n\n");
+                    LocalHistoryStore.forUser(userId).syncAsync(); // The server just saved both turns - pull them into the local mirror
+                }
+                resetUIState();
+            }));
+        this.onStateChange.run();
+    }
+
+    // Frames from ChatGateway about this conversation that are not replies to our own questions (called on the EDT)
+    public void onRemoteEvent(Map<String, String> event) {
+        switch (event.getOrDefault("type", "")) {
+            case "message" -> { // Asked on another device - its reply follows as token frames
+                this.chatArea.append(this.userId + ": " + event.get("text") + "\n\n");
+                this.sentMessage = true;
+            }
+            case "token" -> {
+                if (!event.get("id").equals(this.remoteReplyId)) {
+                    this.remoteReplyId = event.get("id");
+                    this.chatArea.append("DoctorBot: ");
+                }
+                this.chatArea.append(event.get("text"));
+                this.chatArea.setCaretPosition(this.chatArea.getDocument().getLength());
+            }
+            case "done" -> {
+                this.chatArea.append("\n\n");
+                this.remoteReplyId = null;
+                LocalHistoryStore.forUser(this.userId).syncAsync();
+            }
+            case "typing" -> showTyping("DoctorBot".equals(event.get("who")) ? "Pulmonologist is analyzing..." : "Typing on another device...",
+                Boolean.parseBoolean(event.get("typing")));
+        }
+    }
+
+    private void showTyping(String text, boolean typing) {
+        if (isBusy()) return; // Our own question - the progress bar is already up
+        if (this.typingHide != null) this.typingHide.stop();
+
+        this.progressBar.setString(text);
+        this.progressBar.setVisible(typing);
+        if (typing) { // No "stopped typing" event if the other device just goes quiet
+            this.typingHide = new Timer(5000, e -> this.progressBar.setVisible(isBusy()));
+            this.typingHide.setRepeats(false);
+            this.typingHide.start();
+        }
+    }
+
+    private void resetUIState() {
+        this.inFlight = null;
+        this.reply = null;
+        this.progressBar.setVisible(false); // Hide the progress bar
+        this.sendButton.setText("ASK DOCTOR"); // Back from STOP
+        this.inputField.requestFocusInWindow(); // Set focus back to the input field for convenience
+        this.onStateChange.run();
+    }
+}
@@ -1,106 +1,263 @@
 package chat_ui;
 
 import java.sql.*;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.mindrot.jbcrypt.BCrypt;
 
 public class Database {
     // 1. Updated to MariaDB prefix
-    public static final String URL = "jdbc:mariadb://127.0.0.1:3306/telegram_bot_db";
-    public static final String USER = "root"; 
-    public static final String PASS = ""; 
+    public static final String URL = System.getProperty("db.url", "jdbc:mariadb://127.0.0.1:3306/telegram_bot_db"); // -Ddb.url=... e.g. for a load-test database
+    public static final String USER = System.getProperty("db.user", "root"); 
+    public static final String PASS = System.getProperty("db.password", ""); 
+
+    // Schema history - every entry is one version. Append new versions at the END and never edit an old one (it already ran somewhere).
+    // Each statement must be safe to re-run (IF NOT EXISTS...), since DDL auto-commits in MariaDB and a crash can leave a version half applied.
+    private static final String[][] MIGRATIONS = {
+        { // Version 1: Users + History
+            "CREATE TABLE IF NOT EXISTS chat_users (" +
+                    "first_name VARCHAR(100)," +
+                    "last_name VARCHAR(100)," +
+                    "birthdate DATE," +
+                    "history_id INT AUTO_INCREMENT UNIQUE," +
+                    "user_uuid VARCHAR(100) PRIMARY KEY," +
+                    "email VARCHAR(100) UNIQUE NOT NULL," +
+                    "password_hash VARCHAR(255) NOT NULL," +
+                    "is_verified BOOLEAN DEFAULT FALSE," +
+                    "verification_token VARCHAR(255) DEFAULT NULL," + // Token for email verification, generated when user registers
+                    "verification_expiration TIMESTAMP NULL DEFAULT NULL," + // When the verification token expires - current timestamp + 15 minutes for example
+                    "reset_token VARCHAR(255) DEFAULT NULL," + // Token for password reset, generated when user requests a password reset
+                    "reset_expiration TIMESTAMP NULL DEFAULT NULL," + // When the reset token expires - current timestamp + 15 minutes for example
+                    "reset_status VARCHAR(20) DEFAULT 'NONE'," + // PENDING, APPROVED, EXPIRED, REJECTED
+                    "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP);",
+
+            "CREATE TABLE IF NOT EXISTS chat_history (" +
+                    "user_id VARCHAR(100), " +
+                    "sender VARCHAR(50), " + 
+                    "response TEXT, " + 
+                    "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "CONSTRAINT fk_user FOREIGN KEY (user_id) REFERENCES chat_users(user_uuid) " + // Foreign key to link chat history to users
+                    "ON DELETE CASCADE);" // If a user is deleted, their chat history is also deleted
+        },
+        { // Version 2: Conversations - one user can have several topics (tabs) open at once
+            "ALTER TABLE chat_history ADD COLUMN IF NOT EXISTS conversation_id VARCHAR(36) DEFAULT NULL AFTER user_id;", // NULL = rows written before conversations existed
+            "CREATE INDEX IF NOT EXISTS idx_history_conversation ON chat_history (user_id, conversation_id, timestamp);", // Every history read filters on exactly these columns
+            "UPDATE chat_history SET conversation_id = user_id WHERE conversation_id IS NULL;" // Old rows become the user's first conversation, so the server can always match on '='
+        },
+        { // Version 3: Message ids - a strict order for rows written in the same second, and the high-water-mark for the local history mirror
+            "ALTER TABLE chat_history ADD COLUMN IF NOT EXISTS message_id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY FIRST;",
+            "CREATE INDEX IF NOT EXISTS idx_history_sync ON chat_history (user_id, message_id);" // "Everything newer than X for this user" is one range scan
+        },
+        { // Version 4: Sharding - users pinned to a shard other than the ring's choice while ShardRebalancer moves them
+            "CREATE TABLE IF NOT EXISTS shard_overrides (" +
+                    "user_id VARCHAR(100) PRIMARY KEY, " +
+                    "shard VARCHAR(50) NOT NULL, " +
+                    "moving_from VARCHAR(50) DEFAULT NULL, " + // Set while the rows are being copied away from that shard
+                    "updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP);"
+        },
+        { // Version 5: Binary user keys - the same UUID as BINARY(16) instead of a 36-character string in every history row and index entry
+            "ALTER TABLE chat_users ADD COLUMN IF NOT EXISTS user_key BINARY(16) DEFAULT NULL;", // Appended + nullable = instant, no table copy
+            "UPDATE chat_users SET user_key = UNHEX(REPLACE(user_uuid, '-', '')) WHERE user_key IS NULL AND user_uuid LIKE '________-____-____-____-____________';", // One row per user - cheap
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_users_key ON chat_users (user_key);",
+            "ALTER TABLE chat_history ADD COLUMN IF NOT EXISTS user_key BINARY(16) DEFAULT NULL;", // Filled by KeyBackfill, online - not here
+            "CREATE INDEX IF NOT EXISTS idx_history_key_conversation ON chat_history (user_key, conversation_id, timestamp);",
+            "CREATE INDEX IF NOT EXISTS idx_history_key_sync ON chat_history (user_key, message_id);"
+        },
+        { // Version 6: Revoking sessions everywhere - brain_api rejects tokens issued before this (set by a password change)
+            "ALTER TABLE chat_users ADD COLUMN IF NOT EXISTS sessions_valid_after TIMESTAMP NULL DEFAULT NULL;"
+        },
+    };
+
+    // Schema of a history shard (-Ddb.shards). Same rules as MIGRATIONS. No foreign key - chat_users stays in the primary database.
+    private static final String[][] SHARD_MIGRATIONS = {
+        { // Version 1: chat_history, already with conversation and message ids
+            "CREATE TABLE IF NOT EXISTS chat_history (" +
+                    "message_id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                    "user_id VARCHAR(100), " +
+                    "conversation_id VARCHAR(36) DEFAULT NULL, " +
+                    "sender VARCHAR(50), " +
+                    "response TEXT, " +
+                    "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+                    "origin VARCHAR(80) DEFAULT NULL);", // "<shard>:<message_id>" of a row ShardRebalancer copied here, NULL for rows written here
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_history_origin ON chat_history (user_id, origin);", // Makes copying a row twice a no-op
+            "CREATE INDEX IF NOT EXISTS idx_history_conversation ON chat_history (user_id, conversation_id, timestamp);",
+            "CREATE INDEX IF NOT EXISTS idx_history_sync ON chat_history (user_id, message_id);"
+        },
+        { // Version 2: Binary user keys, as version 5 of the primary
+            "ALTER TABLE chat_history ADD COLUMN IF NOT EXISTS user_key BINARY(16) DEFAULT NULL;",
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_history_key_origin ON chat_history (user_key, origin);",
+            "CREATE INDEX IF NOT EXISTS idx_history_key_conversation ON chat_history (user_key, conversation_id, timestamp);",
+            "CREATE INDEX IF NOT EXISTS idx_history_key_sync ON chat_history (user_key, message_id);"
+        },
+    };
+    public static final int SCHEMA_VERSION = MIGRATIONS.length;
+
+    // Which user column chat_history is read and written by - moved forward one step at a time, on every client, by KeyBackfill's runbook:
+    //   string       write user_id + user_key, read by user_id   (default; right after migration 5)
+    //   binary       write user_id + user_key, read by user_key  (once 'KeyBackfill verify' is clean)
+    //   binary-only  write user_key only, read by user_key       (required after 'KeyBackfill contract' drops user_id)
+    public enum KeyPhase { STRING, BINARY, BINARY_ONLY }
+    public static final KeyPhase KEYS = KeyPhase.valueOf(System.getProperty("db.keys", "string").trim().toUpperCase().replace('-', '_'));
+
+    // The column for "WHERE <userColumn()> = ?" - bind it with bindUser()
+    static String userColumn() {
+        return (KEYS == KeyPhase.STRING) ? "user_id" : "user_key";
+    }
+
+    static void bindUser(PreparedStatement pstmt, int index, String userId) throws SQLException {
+        if (KEYS == KeyPhase.STRING) pstmt.setString(index, userId);
+        else pstmt.setBytes(index, userKey(userId));
+    }
+
+    static String readUser(ResultSet rs) throws SQLException {
+        return (KEYS == KeyPhase.STRING) ? rs.getString("user_id") : UuidCodec.fromBytes(rs.getBytes("user_key"));
+    }
+
+    // "INSERT INTO chat_history(" + userInsertColumns() + ", ...) VALUES(" + userInsertValues() + ", ...)" - bindUserInsert() returns the next index
+    static String userInsertColumns() {
+        return (KEYS == KeyPhase.BINARY_ONLY) ? "user_key" : "user_id, user_key";
+    }
+
+    static String userInsertValues() {
+        return (KEYS == KeyPhase.BINARY_ONLY) ? "?" : "?, ?";
+    }
+
+    static int bindUserInsert(PreparedStatement pstmt, int index, String userId) throws SQLException {
+        if (KEYS != KeyPhase.BINARY_ONLY) pstmt.setString(index++, userId);
+        pstmt.setBytes(index++, userKey(userId));
+        return index;
+    }
+
+    // NULL for a non-UUID id is only harmless while user_id still identifies the row - binary-only has nothing else
+    static byte[] userKey(String userId) throws SQLException {
+        byte[] key = UuidCodec.toBytes(userId);
+        if (key == null && KEYS == KeyPhase.BINARY_ONLY) {
+            throw new SQLException("User id is not a UUID, it has no user_key: " + userId);
+        }
+        return key;
+    }
 
     public static void initialize() {
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS)) 
+        try (Connection conn = DbRouter.primary()) 
         {
             System.out.println("Connecting...");
-            
-            if (conn != null) {
-                // Disable auto-commit to BEGIN TRANSACTION
-                conn.setAutoCommit(false); 
-                
-                try (Statement stmt = conn.createStatement()) {
-
-                    String usersSql = "CREATE TABLE IF NOT EXISTS chat_users (" +
-                            "first_name VARCHAR(100)," +
-                            "last_name VARCHAR(100)," +
-                            "birthdate DATE," +
-                            "history_id INT AUTO_INCREMENT UNIQUE," +
-                            "user_uuid VARCHAR(100) PRIMARY KEY," +
-                            "email VARCHAR(100) UNIQUE NOT NULL," +
-                            "password_hash VARCHAR(255) NOT NULL," +
-                            "is_verified BOOLEAN DEFAULT FALSE," +
-                            "verification_token VARCHAR(255) DEFAULT NULL," + // Token for email verification, generated when user registers
-                            "verification_expiration TIMESTAMP NULL DEFAULT NULL," + // When the verification token expires - current timestamp + 15 minutes for example
-                            "reset_token VARCHAR(255) DEFAULT NULL," + // Token for password reset, generated when user requests a password reset
-                            "reset_expiration TIMESTAMP NULL DEFAULT NULL," + // When the reset token expires - current timestamp + 15 minutes for example
-                            "reset_status VARCHAR(20) DEFAULT 'NONE'," + // PENDING, APPROVED, EXPIRED, REJECTED
-                            "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP);";
-                    stmt.execute(usersSql);
-
-                    // 1. History Table
-                    String historySql = "CREATE TABLE IF NOT EXISTS chat_history (" +
-                            "user_id VARCHAR(100), " +
-                            "sender VARCHAR(50), " + 
-                            "response TEXT, " + 
-                            "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
-                            "CONSTRAINT fk_user FOREIGN KEY (user_id) REFERENCES chat_users(user_uuid) " + // Foreign key to link chat history to users
-                            "ON DELETE CASCADE);"; // If a user is deleted, their chat history is also deleted
-                    
-                    stmt.execute(historySql);
-
-                    // If both succeeded, COMMIT
-                    conn.commit();
-                    System.out.println("DB Initialized: Tables created and changes committed.");
-                    
-                } catch (SQLException e) {
-                    // If any error occurs, ROLLBACK
-                    conn.rollback();
-                    System.err.println("Transaction failed! Rolling back changes: " + e.getMessage());
-                } finally {
-                    // Re-enable auto-commit for normal operations
-                    conn.setAutoCommit(true);
+            migrate(conn, MIGRATIONS, "DB");
+        } catch (SQLException e) {
+            System.err.println("Database Connection Error: " + e.getMessage());
+        }
+
+        for (ShardRing.Shard shard : DbRouter.shards().shards()) {
+            try (Connection conn = DbRouter.connect(shard.url())) {
+                migrate(conn, SHARD_MIGRATIONS, "Shard " + shard.name());
+            } catch (SQLException e) {
+                System.err.println("Shard " + shard.name() + " Connection Error: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void migrate(Connection conn, String[][] migrations, String label) throws SQLException {
+        // 1. Normal launch: one cheap SELECT and we're done - no DDL at all
+        int currentVersion = readSchemaVersion(conn);
+        if (currentVersion >= migrations.length) {
+            System.out.println(label + " schema is up to date (version " + currentVersion + ").");
+            return;
+        }
+
+        // 2. Schema is behind - run only the missing versions, in order
+        conn.setAutoCommit(false); // Disable auto-commit to BEGIN TRANSACTION
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (" +
+                    "version INT PRIMARY KEY, " +
+                    "applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP);");
+
+            for (int version = currentVersion + 1; version <= migrations.length; version++) {
+                for (String sql : migrations[version - 1]) {
+                    stmt.execute(sql);
                 }
+                stmt.execute("INSERT IGNORE INTO schema_version (version) VALUES (" + version + ");"); // IGNORE: another client may have migrated at the same time
+                conn.commit();
+                System.out.println(label + " migrated to schema version " + version + ".");
             }
         } catch (SQLException e) {
-            System.err.println("Database Connection Error: " + e.getMessage());
+            // If any error occurs, ROLLBACK
+            conn.rollback();
+            System.err.println("Migration failed! Rolling back changes: " + e.getMessage());
+        } finally {
+            // Re-enable auto-commit for normal operations
+            conn.setAutoCommit(true);
         }
     }
 
-    public static void saveMessage(String userId, String sender, String response) {
-        String sql = "INSERT INTO chat_history(user_id, sender, response) VALUES(?, ?, ?)";
-        // Added USER and PASS here
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
-             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            pstmt.setString(1, userId);
-            pstmt.setString(2, sender);
-            pstmt.setString(3, response);
-            pstmt.executeUpdate();
+    private static int readSchemaVersion(Connection conn) {
+        try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT MAX(version) FROM schema_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        } catch (SQLException e) {
+            return 0; // No schema_version table yet = new database, or one created before versioning (every step is IF NOT EXISTS, so that's safe)
+        }
+    }
+
+    public record HistoryRow(long messageId, String conversationId, String sender, String response) {}
+
+    // Both rows of a chat turn in ONE transaction - the Java twin of save_turn() in brain_api/main.py (used by StubAskServer)
+    public static boolean saveTurn(String userId, String conversationId, String userMessage, String botReply) {
+        String sql = "INSERT INTO chat_history(" + userInsertColumns() + ", conversation_id, sender, response) VALUES(" + userInsertValues() + ", ?, ?, ?)";
+
+        try (Connection conn = DbRouter.historyWrite(userId)) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                String[][] rows = {{userId, userMessage}, {"DoctorBot", botReply}}; // The user's own id is the sender of their messages
+                for (String[] row : rows) {
+                    int next = bindUserInsert(pstmt, 1, userId);
+                    pstmt.setString(next, conversationId);
+                    pstmt.setString(next + 1, row[0]);
+                    pstmt.setString(next + 2, row[1]);
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+                DbRouter.noteWrite(userId); // This user's next history reads stay on the primary until the replicas have the rows
+
+                LocalHistoryStore local = LocalHistoryStore.ifOpen(userId); // Only the app has one - StubAskServer writes for thousands of users
+                if (local != null) {
+                    try (ResultSet keys = pstmt.getGeneratedKeys()) { // Write-through, so the next history read doesn't need the server
+                        for (int i = 0; i < rows.length && keys.next(); i++) {
+                            local.append(new HistoryRow(keys.getLong(1), conversationId, rows[i][0], rows[i][1]));
+                        }
+                    } catch (SQLException e) { // The turn is saved - the next sync brings it into the mirror
+                        System.out.println("Write-through skipped: " + e.getMessage());
+                    }
+                }
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                System.out.println("Save Error: " + e.getMessage());
+                return false;
+            }
         } catch (SQLException e) {
             System.out.println("Save Error: " + e.getMessage());
+            return false;
         }
     }
 
-    public static String loadFullHistory(String userId) {
+    public static String loadConversationHistory(String userId, String conversationId) {
         StringBuilder history = new StringBuilder();
-        String sql = "SELECT sender, response FROM chat_history WHERE user_id = ? ORDER BY timestamp ASC";
+        String sql = "SELECT sender, response FROM chat_history WHERE " + userColumn() + " = ? AND conversation_id = ? ORDER BY timestamp ASC, message_id ASC";
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
+        try (Connection conn = DbRouter.historyRead(userId);
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
-            
-            pstmt.setString(1, userId);
+
+            bindUser(pstmt, 1, userId);
+            pstmt.setString(2, conversationId);
             ResultSet rs = pstmt.executeQuery();
 
             while (rs.next()) {
-                String sender = rs.getString("sender");
-                String content = rs.getString("response");
-
-                // Make it look professional for the UI
-                String label = sender.equalsIgnoreCase("DoctorBot") ? "DoctorBot" : userId;
-                
-                history.append(label).append(": ").append(content).append("\n\n");
+                String label = rs.getString("sender").equalsIgnoreCase("DoctorBot") ? "DoctorBot" : userId;
+                history.append(label).append(": ").append(rs.getString("response")).append("\n\n");
             }
         } catch (SQLException e) {
             System.out.println("Load Error: " + e.getMessage());
@@ -108,42 +265,42 @@ public class Database {
         return history.toString();
     }
 
-    public static String loadHistoryAsJson(String userId) {
-        StringBuilder json = new StringBuilder("["); // Start of JSON array
-        String sql = "SELECT sender, response FROM chat_history WHERE user_id = ? ORDER BY timestamp ASC"; // Get messages in chronological order
+    public static List<HistoryRow> loadHistorySince(String userId, long afterMessageId) {
+        List<HistoryRow> rows = new ArrayList<>();
+        String sql = "SELECT message_id, COALESCE(conversation_id, ?) AS conversation_id, sender, response " +
+                     "FROM chat_history WHERE " + userColumn() + " = ? AND message_id > ? ORDER BY message_id ASC"; // Served by idx_history_sync / idx_history_key_sync
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
-            PreparedStatement pstmt = conn.prepareStatement(sql)) { // Added USER and PASS here
-            
-            pstmt.setString(1, userId); // Set the userId parameter for the query
-            ResultSet rs = pstmt.executeQuery(); // Execute the query and get the result set
+        try (Connection conn = DbRouter.historyRead(userId);
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            pstmt.setString(1, userId); // Pre-conversation rows belong to the conversation named after the user
+            bindUser(pstmt, 2, userId);
+            pstmt.setLong(3, afterMessageId);
+            ResultSet rs = pstmt.executeQuery();
 
-            boolean first = true; // To handle comma placement in JSON array
             while (rs.next()) {
-                if (!first) json.append(",");
-                
-                // Map your database 'sender' to AI 'roles'
-                // MariaDB "User" -> AI "user" | MariaDB "DoctorBot" -> AI "system"
-                String role = rs.getString("sender").equalsIgnoreCase("DoctorBot") ? "assistant" : "user";
-                String content = rs.getString("response")
-                                    .replace("\\", "\\\\") // Escape backslashes first
-                                    .replace("\"", "\\\""); // Escape quotes for JSON
-                
-                json.append(String.format("{\"role\": \"%s\", \"content\": \"%s\"}", role, content)); // Append each message as a JSON object in the array
-                first = false;
+                rows.add(new HistoryRow(rs.getLong("message_id"), rs.getString("conversation_id"), rs.getString("sender"), rs.getString("response")));
             }
         } catch (SQLException e) {
-            System.out.println("JSON Load Error: " + e.getMessage());
+            System.out.println("Sync Error: " + e.getMessage());
         }
-        
-        json.append("]");
-        return json.toString();
+        return rows;
+    }
+
+    public static String jsonEscape(String text) {
+        return text
+                .replace("\\", "\\\\") // Escape backslashes first
+                .replace("\"", "\\\"") // Escape quotes for JSON
+                .replace("\n", "\\n") // Raw newlines are not allowed inside a JSON string
+                .replace("\r", "\\r")
+                .replace("\t", "\\t");
     }
 
     public static String checkResetStatus(String email) {
         String sql = "SELECT reset_status FROM chat_users WHERE email = ?";
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
+        // Primary on purpose: this is polled while the approval is written elsewhere - a lagging replica would keep saying PENDING
+        try (Connection conn = DbRouter.primary();
             PreparedStatement pstmt = conn.prepareStatement(sql)) 
         {
             pstmt.setString(1, email);
@@ -163,7 +320,7 @@ public class Database {
     public static void updateResetStatus(String email, String newStatus) {
         String sql = "UPDATE chat_users SET reset_status = ? WHERE email = ?";
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
+        try (Connection conn = DbRouter.primary();
             PreparedStatement pstmt = conn.prepareStatement(sql)) 
         {
             pstmt.setString(1, newStatus); // Set the new reset status (e.g., APPROVED, EXPIRED, REJECTED, PENDING)
@@ -182,7 +339,8 @@ public class Database {
         // Example: conditionClause = "email = ? OR username = ?"
         String sql = "SELECT " + colString + " FROM " + table + " WHERE " + conditionClause;
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
+        // Primary on purpose: login, registration and reset read rows that were often written seconds ago
+        try (Connection conn = DbRouter.primary();
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             // params is a "Varargs" (Variable Arguments) array
@@ -207,7 +365,7 @@ public class Database {
     // SQL: UPDATE table SET column = ? WHERE condition = ?
         String sql = "UPDATE " + table + " SET " + setClause + " WHERE " + condition;
 
-        try (Connection conn = DriverManager.getConnection(URL, USER, PASS);
+        try (Connection conn = DbRouter.primary();
             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             
             // Loop through params to fill the SET values and the WHERE values
@@ -224,6 +382,39 @@ public class Database {
         }
     }
 
+    public static boolean deleteData(String table, String condition, Object... params) {
+    // SQL: DELETE FROM table WHERE condition = ?
+        String sql = "DELETE FROM " + table + " WHERE " + condition;
+
+        try (Connection conn = DbRouter.primary();
+            PreparedStatement pstmt = conn.prepareStatement(sql)) {
+
+            for (int i = 0; i < params.length; i++) {
+                pstmt.setObject(i + 1, params[i]);
+            }
+
+            return pstmt.executeUpdate() > 0;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Sharded history has no ON DELETE CASCADE (chat_users lives in another database) - call this before deleting a user
+    public static boolean deleteHistory(String userId) {
+        try (Connection conn = DbRouter.historyWrite(userId);
+            PreparedStatement pstmt = conn.prepareStatement("DELETE FROM chat_history WHERE " + userColumn() + " = ?")) {
+
+            bindUser(pstmt, 1, userId);
+            return pstmt.executeUpdate() > 0;
+
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
     public static String hashPw(String plainPassword) { // Use BCrypt to hash passwords securely
         /*
             * BCrypt automatically handles salting and is designed to be slow to prevent brute-force attacks. 
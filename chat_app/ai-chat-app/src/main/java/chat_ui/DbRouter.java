@@ -0,0 +1,252 @@
+package chat_ui;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Decides which MariaDB instance a query goes to:
+ *   primary()     -> writes, and reads that must see the latest data (login, registration, password reset polling)
+ *   read(userId)  -> history reads; go to a replica unless this user wrote something too recently for the replicas to have it
+ *
+ * Replicas come from -Ddb.replicas=url|weight,url|weight,...  (no property = everything goes to the primary, like before).
+ * A background check every CHECK_INTERVAL_MS looks at each replica's SHOW REPLICA STATUS:
+ *   - unreachable, replication stopped (Seconds_Behind_Master NULL) or not a replica at all -> unhealthy, gets no reads
+ *   - lag above db.replica.maxLagSeconds -> gets no reads
+ *   - otherwise picked at random, weight / (1 + lag) - a replica that is falling behind gets less traffic before it gets none
+ * If no replica can take a read, it goes to the primary - reads never fail just because a replica is down.
+ *
+ * chat_history can also be sharded by user (-Ddb.shards, see ShardRing): historyRead/historyWrite go to the user's shard.
+ * shard_overrides on the primary pins single users to another shard while ShardRebalancer moves them - refreshed every
+ * OVERRIDE_REFRESH_MS. Replicas only apply to the unsharded case (history in the primary database).
+ */
+public class DbRouter {
+    private static final long CHECK_INTERVAL_MS = 2000;
+    private static final long MAX_LAG_SECONDS = Long.getLong("db.replica.maxLagSeconds", 5);
+    private static final int CONNECT_TIMEOUT_MS = 1000; // A dead replica must not stall a history read for the driver's default timeout
+
+    public static final long OVERRIDE_REFRESH_MS = 5000; // ShardRebalancer waits longer than this before it trusts that everyone switched
+
+    private static final ShardRing SHARDS = ShardRing.parse(System.getProperty("db.shards", ""));
+    private static volatile Map<String, String> overrides = null; // userId -> shard name, null until the first load
+    private static final List<Replica> REPLICAS = parseReplicas(System.getProperty("db.replicas", ""));
+    private static final Map<String, Long> LAST_WRITE = new ConcurrentHashMap<>(); // userId -> when we (or the AI server on their behalf) last wrote their rows
+    private static final AtomicLong PRIMARY_READS = new AtomicLong();
+
+    private static final ScheduledExecutorService HEALTH_CHECK = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "db-replica-health");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        if (!REPLICAS.isEmpty()) {
+            HEALTH_CHECK.scheduleWithFixedDelay(DbRouter::checkReplicas, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        if (!SHARDS.shards().isEmpty()) {
+            HEALTH_CHECK.scheduleWithFixedDelay(DbRouter::loadOverrides, OVERRIDE_REFRESH_MS, OVERRIDE_REFRESH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    static class Replica {
+        final String url;
+        final int weight;
+        volatile boolean healthy = false; // Nobody gets reads until the first check has seen them
+        volatile long lagSeconds = Long.MAX_VALUE;
+        final AtomicLong reads = new AtomicLong();
+
+        Replica(String url, int weight) {
+            this.url = url;
+            this.weight = weight;
+        }
+
+        double effectiveWeight() {
+            return (this.healthy && this.lagSeconds <= MAX_LAG_SECONDS) ? this.weight / (1.0 + this.lagSeconds) : 0;
+        }
+
+        // One health check: replicating = SHOW REPLICA STATUS returned a row, secondsBehind = its Seconds_Behind_Master (null = NULL)
+        void update(boolean replicating, Long secondsBehind) {
+            this.healthy = replicating && secondsBehind != null; // NULL = the SQL thread is not running, so the data is getting older every second
+            this.lagSeconds = this.healthy ? secondsBehind : Long.MAX_VALUE;
+        }
+    }
+
+    public static Connection primary() throws SQLException {
+        return DriverManager.getConnection(Database.URL, Database.USER, Database.PASS);
+    }
+
+    public static Connection read(String userId) throws SQLException {
+        Replica replica = pickReplica(userId);
+
+        if (replica != null) {
+            try {
+                Connection conn = connect(replica.url);
+                replica.reads.incrementAndGet();
+                return conn;
+            } catch (SQLException e) {
+                replica.healthy = false; // Don't wait for the next check - stop sending reads there now
+                System.out.println("Replica " + replica.url + " failed, reading from the primary: " + e.getMessage());
+            }
+        }
+
+        PRIMARY_READS.incrementAndGet();
+        return primary();
+    }
+
+    public static Connection historyRead(String userId) throws SQLException {
+        ShardRing.Shard shard = shardFor(userId);
+        return (shard == ShardRing.PRIMARY) ? read(userId) : connect(shard.url());
+    }
+
+    public static Connection historyWrite(String userId) throws SQLException {
+        ShardRing.Shard shard = shardFor(userId);
+        return (shard == ShardRing.PRIMARY) ? primary() : connect(shard.url());
+    }
+
+    public static ShardRing shards() {
+        return SHARDS;
+    }
+
+    public static ShardRing.Shard shardFor(String userId) {
+        if (SHARDS.shards().isEmpty()) return ShardRing.PRIMARY;
+        if (overrides == null) loadOverrides(); // First history call - must know about pinned users before routing anyone
+        return shardFor(SHARDS, overrides, userId);
+    }
+
+    // Same rules as ShardRouter.shard_for in brain_api/shards.py
+    static ShardRing.Shard shardFor(ShardRing ring, Map<String, String> overrides, String userId) {
+        String pinned = overrides.get(userId);
+        ShardRing.Shard shard = (pinned == null) ? null : ring.byName(pinned);
+        return (shard != null) ? shard : ring.shardFor(userId); // An override for a shard we don't know is ignored - the ring decides
+    }
+
+    private static synchronized void loadOverrides() {
+        Map<String, String> loaded = new ConcurrentHashMap<>();
+        try (Connection conn = primary();
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT user_id, shard FROM shard_overrides")) { // Only users in the middle of a move - normally empty
+
+            while (rs.next()) {
+                loaded.put(rs.getString("user_id"), rs.getString("shard"));
+            }
+            overrides = loaded;
+        } catch (SQLException e) {
+            System.out.println("Could not load shard overrides: " + e.getMessage());
+            if (overrides == null) overrides = loaded; // Route by the ring until the primary answers - keeps the previous map otherwise
+        }
+    }
+
+    // Call after every write that belongs to a user - their next reads stay on the primary until the replicas have caught up
+    public static void noteWrite(String userId) {
+        if (userId != null && !REPLICAS.isEmpty()) LAST_WRITE.put(userId, System.currentTimeMillis());
+    }
+
+    private static Replica pickReplica(String userId) {
+        if (REPLICAS.isEmpty()) return null;
+
+        Long lastWrite = (userId == null) ? null : LAST_WRITE.get(userId);
+        long sinceWrite = (lastWrite == null) ? Long.MAX_VALUE : System.currentTimeMillis() - lastWrite;
+
+        if (lastWrite != null && sinceWrite > (MAX_LAG_SECONDS * 1000 + CHECK_INTERVAL_MS)) {
+            LAST_WRITE.remove(userId, lastWrite); // Every usable replica is past it now - keep the map small
+        }
+        return pickReplica(REPLICAS, sinceWrite, ThreadLocalRandom.current().nextDouble());
+    }
+
+    // random in [0, 1) - null = no replica may take this read, it goes to the primary
+    static Replica pickReplica(List<Replica> replicas, long sinceWriteMs, double random) {
+        double total = 0;
+        double[] weights = new double[replicas.size()];
+        for (int i = 0; i < weights.length; i++) {
+            Replica replica = replicas.get(i);
+            // Read-your-writes: the replica's lag was measured up to CHECK_INTERVAL_MS ago, so both have to have passed since the write
+            boolean caughtUp = sinceWriteMs > replica.lagSeconds * 1000 + CHECK_INTERVAL_MS;
+            weights[i] = caughtUp ? replica.effectiveWeight() : 0;
+            total += weights[i];
+        }
+        if (total == 0) return null;
+
+        double pick = random * total;
+        for (int i = 0; i < weights.length; i++) {
+            pick -= weights[i];
+            if (pick < 0 && weights[i] > 0) return replicas.get(i);
+        }
+        return null;
+    }
+
+    private static void checkReplicas() {
+        for (Replica replica : REPLICAS) {
+            try (Connection conn = connect(replica.url);
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SHOW REPLICA STATUS")) { // MariaDB 10.5.1+ (SHOW SLAVE STATUS before that)
+
+                if (rs.next()) {
+                    long lag = rs.getLong("Seconds_Behind_Master");
+                    replica.update(true, rs.wasNull() ? null : lag);
+                } else {
+                    replica.update(false, null); // Not replicating from anything - its data could be any age
+                }
+            } catch (SQLException e) {
+                replica.update(false, null);
+            }
+        }
+    }
+
+    static Connection connect(String url) throws SQLException {
+        Properties props = new Properties();
+        props.setProperty("user", Database.USER);
+        props.setProperty("password", Database.PASS);
+        props.setProperty("connectTimeout", String.valueOf(CONNECT_TIMEOUT_MS));
+        return DriverManager.getConnection(url, props);
+    }
+
+    static List<Replica> parseReplicas(String spec) {
+        List<Replica> replicas = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) continue;
+            String[] parts = entry.trim().split("\\|");
+            replicas.add(new Replica(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 1));
+        }
+        return replicas;
+    }
+
+    public static String describe() {
+        StringBuilder out = new StringBuilder("primary " + Database.URL + ": " + PRIMARY_READS.get() + " reads\n");
+        for (Replica replica : REPLICAS) {
+            out.append(String.format("replica %s (weight %d): %s, lag %s, %d reads%n", replica.url, replica.weight,
+                replica.healthy ? "healthy" : "UNHEALTHY", replica.lagSeconds == Long.MAX_VALUE ? "-" : replica.lagSeconds + "s", replica.reads.get()));
+        }
+        return out.toString();
+    }
+
+    /*
+     * Quick check against local instances, e.g. a primary on 3306 and replicas on 3307/3308:
+     *   java -Ddb.replicas="jdbc:mariadb://127.0.0.1:3307/telegram_bot_db|3,jdbc:mariadb://127.0.0.1:3308/telegram_bot_db|1" chat_ui.DbRouter 1000
+     * Stop a replica (or STOP REPLICA on it) while it runs and watch its reads move to the others.
+     */
+    public static void main(String[] args) throws Exception {
+        int reads = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        String userId = "router-check";
+
+        Thread.sleep(CHECK_INTERVAL_MS / 2); // Let the first health check finish
+        for (int i = 0; i < reads; i++) {
+            if (i == reads / 2) noteWrite(userId); // Halfway through: the next reads must stick to the primary for a while
+            try (Connection conn = read(userId); Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT 1");
+            }
+        }
+        System.out.print(describe());
+    }
+}
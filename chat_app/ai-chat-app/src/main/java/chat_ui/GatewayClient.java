@@ -0,0 +1,185 @@
+package chat_ui;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * The desktop side of ChatGateway: one WebSocket for every tab of the window instead of an HTTP request per turn.
+ * Replies to our own questions go to the tab that asked; everything else (presence, typing, turns asked on the user's
+ * other devices) goes to the event listener.
+ *
+ *   -Dchat.gateway=http://127.0.0.1:8090   log in through the gateway and chat over its WebSocket (unset = straight to brain_api)
+ *
+ * The JDK WebSocket client doesn't implement any extensions, so this connection is not deflate-compressed - the saving
+ * here is the single long-lived connection. The Flutter client negotiates permessage-deflate.
+ */
+public class GatewayClient implements ChatTransport {
+    public static final String GATEWAY_URL = System.getProperty("chat.gateway", "");
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>(); // Our own questions by frame id
+    private final Set<String> cancelled = ConcurrentHashMap.newKeySet(); // Ids we stopped - their last frames are dropped, not shown as another device's
+    private final Consumer<Map<String, String>> onEvent;
+    private final StringBuilder partial = new StringBuilder(); // A text frame can arrive in several pieces
+    private CompletableFuture<WebSocket> socket;
+
+    private record Pending(String conversationId, Consumer<String> onChunk, CompletableFuture<Void> done) {}
+
+    private GatewayClient(Consumer<Map<String, String>> onEvent) {
+        this.onEvent = onEvent;
+    }
+
+    public static boolean enabled() {
+        return !GATEWAY_URL.isBlank();
+    }
+
+    // The one BCrypt check, done by the gateway - its session token is what the WebSocket is opened with
+    public static Login.AuthResult login(HttpClient http, String email, String password) {
+        String body = ChatGateway.frame("email", email, "password", password);
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(GATEWAY_URL + "/login"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+
+        try {
+            HttpResponse<String> response = http.send(request, HttpResponse.BodyHandlers.ofString());
+            Map<String, String> result = ChatGateway.fields(response.body());
+            return switch (response.statusCode()) {
+                case 200 -> new Login.AuthResult(Login.AuthStatus.SUCCESS, result.get("user_uuid"), result.get("user_name"), result.get("session_token"));
+                case 403 -> new Login.AuthResult(Login.AuthStatus.NOT_VERIFIED, null, null, null);
+                default -> new Login.AuthResult(Login.AuthStatus.INVALID_CREDENTIALS, null, null, null);
+            };
+        } catch (Exception e) {
+            System.out.println("Gateway login failed: " + e.getMessage());
+            return new Login.AuthResult(Login.AuthStatus.INVALID_CREDENTIALS, null, null, null);
+        }
+    }
+
+    // Opens the WebSocket in the background - frames sent before it is up simply wait for it
+    public static GatewayClient connect(HttpClient http, String sessionToken, Consumer<Map<String, String>> onEvent) {
+        GatewayClient client = new GatewayClient(onEvent);
+        URI uri = URI.create(GATEWAY_URL.replaceFirst("^http", "ws") + "/chat?token=" + URLEncoder.encode(sessionToken, StandardCharsets.UTF_8));
+        client.socket = http.newWebSocketBuilder().buildAsync(uri, client.new Listener());
+        return client;
+    }
+
+    @Override // sessionToken is not sent - the socket was opened with it, and the gateway passes it on to brain_api
+    public CompletableFuture<Void> ask(String userId, String sessionToken, String conversationId, String message, boolean firstTurn, Options options, Consumer<String> onChunk) {
+        String id = UUID.randomUUID().toString();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        this.pending.put(id, new Pending(conversationId, onChunk, done));
+
+        send(ChatGateway.frame("type", "ask", "id", id, "conversation", conversationId, "message", message, "first", firstTurn,
+                "length", options.length(), "max_tokens", options.maxNewTokens(), "deadline_ms", options.deadlineMs(),
+                "stop", options.stop().isEmpty() ? null : options.stop().get(0))) // Frames are flat - one stop sequence over the gateway
+            .exceptionally(error -> {
+                fail(id, error);
+                return null;
+            });
+        return done.whenComplete((ignored, error) -> {
+            this.pending.remove(id);
+            if (error == null) DbRouter.noteWrite(userId); // The gateway saved this turn on the primary - keep our next history sync there too
+        });
+    }
+
+    // The gateway passes this on to brain_api; our own future is cancelled right away
+    @Override
+    public CompletableFuture<Void> cancel(String userId, String sessionToken, String conversationId) {
+        this.pending.forEach((id, own) -> {
+            if (conversationId == null || conversationId.equals(own.conversationId())) {
+                this.cancelled.add(id);
+                own.done().completeExceptionally(new CancellationException("Stopped"));
+            }
+        });
+        return send(ChatGateway.frame("type", "cancel", "conversation", conversationId)).thenApply(ws -> null);
+    }
+
+    public void typing(String conversationId, boolean typing) {
+        send(ChatGateway.frame("type", "typing", "conversation", conversationId, "typing", typing));
+    }
+
+    // Revokes the session on the gateway and closes the socket
+    public CompletableFuture<Void> logout() {
+        return send(ChatGateway.frame("type", "logout")).thenApply(ws -> null);
+    }
+
+    // The JDK client allows one outstanding send at a time, so every send waits for the one before it
+    private synchronized CompletableFuture<WebSocket> send(String frame) {
+        this.socket = this.socket.thenCompose(ws -> ws.sendText(frame, true));
+        return this.socket;
+    }
+
+    private void receive(String frame) {
+        Map<String, String> msg = ChatGateway.fields(frame);
+        Pending own = (msg.get("id") != null) ? this.pending.get(msg.get("id")) : null;
+        if (own == null && msg.get("id") != null && this.cancelled.contains(msg.get("id"))) {
+            if (!"token".equals(msg.get("type"))) this.cancelled.remove(msg.get("id")); // done / error - nothing more will come for it
+            return;
+        }
+
+        switch (msg.getOrDefault("type", "")) {
+            case "token" -> {
+                if (own != null) own.onChunk().accept(msg.get("text"));
+                else this.onEvent.accept(msg); // A question asked on another device
+            }
+            case "done" -> {
+                if (own != null) own.done().complete(null);
+                else this.onEvent.accept(msg);
+            }
+            case "error" -> {
+                if (own != null) own.done().completeExceptionally(new IllegalStateException(msg.get("message")));
+                else this.onEvent.accept(msg);
+            }
+            default -> this.onEvent.accept(msg); // presence, typing, message
+        }
+    }
+
+    private void fail(String id, Throwable error) {
+        Pending own = this.pending.get(id);
+        if (own != null) own.done().completeExceptionally(error);
+    }
+
+    private void failAll(Throwable error) {
+        this.pending.values().forEach(p -> p.done().completeExceptionally(error));
+    }
+
+    private class Listener implements WebSocket.Listener {
+        @Override
+        public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+            partial.append(data);
+            if (last) {
+                String frame = partial.toString();
+                partial.setLength(0);
+                receive(frame);
+            }
+            webSocket.request(1);
+            return null;
+        }
+
+        @Override
+        public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+            failAll(new IllegalStateException("Gateway closed the connection: " + statusCode + " " + reason));
+            onEvent.accept(Map.of("type", "closed", "code", String.valueOf(statusCode), "message", reason == null ? "" : reason));
+            return null;
+        }
+
+        @Override
+        public void onError(WebSocket webSocket, Throwable error) {
+            failAll(error);
+            onEvent.accept(Map.of("type", "closed", "code", "1006", "message", String.valueOf(error.getMessage())));
+        }
+    }
+}
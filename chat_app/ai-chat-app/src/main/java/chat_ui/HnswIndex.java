@@ -0,0 +1,397 @@
+package chat_ui;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Approximate nearest neighbour index (HNSW - Hierarchical Navigable Small World graphs, Malkov & Yashunin).
+ *
+ * Everything is preallocated for `capacity` nodes and stored in primitive arrays, so the memory use is fixed up front:
+ *   vectors   float[capacity * dim]             - node i lives at [i * dim, (i + 1) * dim), L2-normalised, so dot = cosine
+ *   level0    int[capacity * (2M + 1)]          - bottom layer: [count, neighbour...] per node
+ *   upper     int[node][layer - 1][M + 1]       - only the ~1/M of nodes that reach layer 1+ allocate these
+ * Nodes are never unlinked: delete() only hides a node from results, and the owner rebuilds the index to reclaim slots.
+ *
+ * Not thread safe for writes - SemanticCache guards it with a read/write lock. Concurrent searches are fine.
+ */
+public class HnswIndex {
+    private final int dim;
+    private final int capacity;
+    private final int m; // Max neighbours per node on layers 1+
+    private final int maxM0; // Max neighbours on layer 0 (2M, as in the paper)
+    private final int efConstruction;
+    private final double levelMultiplier;
+
+    private final float[] vectors;
+    private final int[] level0;
+    private final int[][][] upper;
+    private final int[] levels;
+    private final boolean[] deleted;
+    private final ThreadLocal<int[]> visitedMarks; // Per-thread "visited" stamps - no clearing between searches
+    private final ThreadLocal<int[]> visitedStamp = ThreadLocal.withInitial(() -> new int[1]);
+
+    private int size = 0;
+    private int deletedCount = 0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    public HnswIndex(int dim, int capacity, int m, int efConstruction) {
+        this.dim = dim;
+        this.capacity = capacity;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1.0 / Math.log(m);
+
+        this.vectors = new float[capacity * dim];
+        this.level0 = new int[capacity * (this.maxM0 + 1)];
+        this.upper = new int[capacity][][];
+        this.levels = new int[capacity];
+        this.deleted = new boolean[capacity];
+        this.visitedMarks = ThreadLocal.withInitial(() -> new int[capacity]);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int liveCount() {
+        return this.size - this.deletedCount;
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public boolean isFull() {
+        return this.size == this.capacity;
+    }
+
+    public boolean isDeleted(int node) {
+        return this.deleted[node];
+    }
+
+    // Fixed part (allocated up front) plus the upper layers allocated so far
+    public long memoryBytes() {
+        long bytes = 4L * this.vectors.length + 4L * this.level0.length + 4L * this.levels.length + this.deleted.length;
+        for (int i = 0; i < this.size; i++) {
+            if (this.upper[i] != null) bytes += 4L * this.upper[i].length * (this.m + 1);
+        }
+        return bytes;
+    }
+
+    // Adds a vector (normalised here) and returns its node id, which is simply the next free slot
+    public int add(float[] vector) {
+        if (isFull()) throw new IllegalStateException("HNSW index is full (" + this.capacity + " nodes)");
+
+        int node = this.size++;
+        System.arraycopy(vector, 0, this.vectors, node * this.dim, this.dim);
+        normalize(this.vectors, node * this.dim, this.dim);
+
+        int level = (int) (-Math.log(1.0 - ThreadLocalRandom.current().nextDouble()) * this.levelMultiplier);
+        this.levels[node] = level;
+        if (level > 0) this.upper[node] = new int[level][this.m + 1];
+
+        if (this.entryPoint < 0) {
+            this.entryPoint = node;
+            this.maxLevel = level;
+            return node;
+        }
+
+        float[] query = Arrays.copyOfRange(this.vectors, node * this.dim, (node + 1) * this.dim);
+        int ep = this.entryPoint;
+        for (int layer = this.maxLevel; layer > level; layer--) {
+            ep = greedyClosest(query, ep, layer); // Above the new node's top layer: just walk towards it
+        }
+
+        for (int layer = Math.min(level, this.maxLevel); layer >= 0; layer--) {
+            long[] found = searchLayer(query, ep, this.efConstruction, layer); // Best first
+            for (int neighbour : selectNeighbours(found, this.m)) {
+                link(node, neighbour, layer);
+                link(neighbour, node, layer);
+            }
+            ep = nodeOf(found[0]);
+        }
+
+        if (level > this.maxLevel) {
+            this.maxLevel = level;
+            this.entryPoint = node;
+        }
+        return node;
+    }
+
+    public void delete(int node) {
+        if (!this.deleted[node]) {
+            this.deleted[node] = true;
+            this.deletedCount++;
+        }
+    }
+
+    // Up to k live nodes, most similar first. ef (>= k) trades speed for recall.
+    public int[] search(float[] vector, int k, int ef) {
+        if (this.entryPoint < 0) return new int[0];
+
+        float[] query = vector.clone();
+        normalize(query, 0, this.dim);
+
+        int ep = this.entryPoint;
+        for (int layer = this.maxLevel; layer > 0; layer--) {
+            ep = greedyClosest(query, ep, layer);
+        }
+
+        long[] found = searchLayer(query, ep, Math.max(ef, k), 0);
+        int[] result = new int[k];
+        int n = 0;
+        for (int i = 0; i < found.length && n < k; i++) {
+            int node = nodeOf(found[i]);
+            if (!this.deleted[node]) result[n++] = node; // Deleted nodes still route the search, they just aren't answers
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    public float similarity(float[] normalizedQuery, int node) {
+        float dot = 0;
+        int offset = node * this.dim;
+        for (int i = 0; i < this.dim; i++) {
+            dot += normalizedQuery[i] * this.vectors[offset + i];
+        }
+        return dot;
+    }
+
+    public float[] vector(int node) {
+        return Arrays.copyOfRange(this.vectors, node * this.dim, (node + 1) * this.dim);
+    }
+
+    private int greedyClosest(float[] query, int ep, int layer) {
+        float best = similarity(query, ep);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[] neighbours = neighbours(ep, layer);
+            int base = neighboursOffset(ep, layer);
+            for (int i = 1; i <= neighbours[base]; i++) {
+                int candidate = neighbours[base + i];
+                float sim = similarity(query, candidate);
+                if (sim > best) {
+                    best = sim;
+                    ep = candidate;
+                    improved = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    // Beam search on one layer; returns (similarity, node) pairs packed in longs, best first
+    private long[] searchLayer(float[] query, int ep, int ef, int layer) {
+        int[] visited = this.visitedMarks.get();
+        int[] stamp = this.visitedStamp.get();
+        if (++stamp[0] == Integer.MAX_VALUE) { // Wrapped - reset the marks once every ~2 billion searches
+            Arrays.fill(visited, 0);
+            stamp[0] = 1;
+        }
+
+        LongHeap candidates = new LongHeap(ef * 2); // Max-heap via negated keys: closest unexplored first
+        LongHeap results = new LongHeap(ef + 1); // Min-heap: the worst of the current best `ef` on top
+
+        long start = pack(similarity(query, ep), ep);
+        visited[ep] = stamp[0];
+        candidates.push(-start);
+        results.push(start);
+
+        while (!candidates.isEmpty()) {
+            long current = -candidates.pop();
+            if (results.size() >= ef && simOf(current) < simOf(results.peek())) break; // Nothing left that could improve the results
+
+            int node = nodeOf(current);
+            int[] neighbours = neighbours(node, layer);
+            int base = neighboursOffset(node, layer);
+            for (int i = 1; i <= neighbours[base]; i++) {
+                int next = neighbours[base + i];
+                if (visited[next] == stamp[0]) continue;
+                visited[next] = stamp[0];
+
+                long packed = pack(similarity(query, next), next);
+                if (results.size() < ef || simOf(packed) > simOf(results.peek())) {
+                    candidates.push(-packed);
+                    results.push(packed);
+                    if (results.size() > ef) results.pop();
+                }
+            }
+        }
+
+        long[] sorted = results.drain(); // Ascending
+        for (int i = 0, j = sorted.length - 1; i < j; i++, j--) {
+            long tmp = sorted[i];
+            sorted[i] = sorted[j];
+            sorted[j] = tmp;
+        }
+        return sorted;
+    }
+
+    /*
+     * The paper's neighbour heuristic: walk the candidates best first and keep one only if it is closer to the base node
+     * than to every neighbour kept so far. Plain "closest M" links a tight cluster only to itself, and a search that
+     * enters the graph in the wrong cluster can never leave it. Free slots are then filled with the skipped candidates.
+     */
+    private int[] selectNeighbours(long[] candidates, int max) { // Packed (similarity to base, node), best first
+        int[] selected = new int[Math.min(max, candidates.length)];
+        boolean[] taken = new boolean[candidates.length];
+        int count = 0;
+
+        for (int i = 0; i < candidates.length && count < selected.length; i++) {
+            int candidate = nodeOf(candidates[i]);
+            float toBase = simOf(candidates[i]);
+            boolean diverse = true;
+            for (int j = 0; j < count && diverse; j++) {
+                diverse = nodeSimilarity(candidate, selected[j]) <= toBase;
+            }
+            if (diverse) {
+                selected[count++] = candidate;
+                taken[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && count < selected.length; i++) {
+            if (!taken[i]) selected[count++] = nodeOf(candidates[i]);
+        }
+        return selected;
+    }
+
+    // Adds `to` to the neighbour list of `from`; a full list is re-selected with the same heuristic
+    private void link(int from, int to, int layer) {
+        int[] neighbours = neighbours(from, layer);
+        int base = neighboursOffset(from, layer);
+        int max = (layer == 0) ? this.maxM0 : this.m;
+        int count = neighbours[base];
+
+        for (int i = 1; i <= count; i++) {
+            if (neighbours[base + i] == to) return;
+        }
+        if (count < max) {
+            neighbours[base + count + 1] = to;
+            neighbours[base]++;
+            return;
+        }
+
+        long[] candidates = new long[count + 1];
+        for (int i = 1; i <= count; i++) {
+            candidates[i - 1] = pack(nodeSimilarity(from, neighbours[base + i]), neighbours[base + i]);
+        }
+        candidates[count] = pack(nodeSimilarity(from, to), to);
+        Arrays.sort(candidates); // Ascending...
+        for (int i = 0, j = candidates.length - 1; i < j; i++, j--) { // ...best first
+            long tmp = candidates[i];
+            candidates[i] = candidates[j];
+            candidates[j] = tmp;
+        }
+
+        int[] kept = selectNeighbours(candidates, max);
+        System.arraycopy(kept, 0, neighbours, base + 1, kept.length);
+        neighbours[base] = kept.length;
+    }
+
+    private float nodeSimilarity(int a, int b) {
+        float dot = 0;
+        int offsetA = a * this.dim;
+        int offsetB = b * this.dim;
+        for (int i = 0; i < this.dim; i++) {
+            dot += this.vectors[offsetA + i] * this.vectors[offsetB + i];
+        }
+        return dot;
+    }
+
+    private int[] neighbours(int node, int layer) {
+        return (layer == 0) ? this.level0 : this.upper[node][layer - 1];
+    }
+
+    private int neighboursOffset(int node, int layer) {
+        return (layer == 0) ? node * (this.maxM0 + 1) : 0;
+    }
+
+    private static void normalize(float[] v, int offset, int length) {
+        double norm = 0;
+        for (int i = offset; i < offset + length; i++) norm += v[i] * v[i];
+        if (norm == 0) return;
+
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int i = offset; i < offset + length; i++) v[i] *= scale;
+    }
+
+    // Similarity in the high 32 bits (as an order-preserving int), node id in the low 32 - so a long compare sorts by similarity
+    private static long pack(float sim, int node) {
+        int bits = Float.floatToIntBits(sim);
+        bits ^= (bits >> 31) & 0x7fffffff; // Negative floats sort backwards as ints - flip them
+        return ((long) bits << 32) | (node & 0xffffffffL);
+    }
+
+    private static float simOf(long packed) {
+        int bits = (int) (packed >> 32);
+        bits ^= (bits >> 31) & 0x7fffffff;
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int nodeOf(long packed) {
+        return (int) packed;
+    }
+
+    // Binary min-heap of longs - avoids boxing every candidate into a PriorityQueue<Long>
+    private static final class LongHeap {
+        private long[] heap;
+        private int size = 0;
+
+        LongHeap(int initialCapacity) {
+            this.heap = new long[Math.max(4, initialCapacity)];
+        }
+
+        int size() {
+            return this.size;
+        }
+
+        boolean isEmpty() {
+            return this.size == 0;
+        }
+
+        long peek() {
+            return this.heap[0];
+        }
+
+        void push(long value) {
+            if (this.size == this.heap.length) this.heap = Arrays.copyOf(this.heap, this.size * 2);
+            int i = this.size++;
+            this.heap[i] = value;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (this.heap[parent] <= this.heap[i]) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        long pop() {
+            long top = this.heap[0];
+            this.heap[0] = this.heap[--this.size];
+            int i = 0;
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= this.size) break;
+                int child = (left + 1 < this.size && this.heap[left + 1] < this.heap[left]) ? left + 1 : left;
+                if (this.heap[i] <= this.heap[child]) break;
+                swap(i, child);
+                i = child;
+            }
+            return top;
+        }
+
+        long[] drain() {
+            long[] out = new long[this.size];
+            for (int i = 0; i < out.length; i++) out[i] = pop();
+            return out;
+        }
+
+        private void swap(int a, int b) {
+            long tmp = this.heap[a];
+            this.heap[a] = this.heap[b];
+            this.heap[b] = tmp;
+        }
+    }
+}
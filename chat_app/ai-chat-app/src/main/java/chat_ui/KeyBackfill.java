@@ -0,0 +1,207 @@
+package chat_ui;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Moves chat_history from the 36-character user_id to the BINARY(16) user_key (schema version 5) without downtime.
+ * Works on the primary database and on every shard in -Ddb.shards.
+ *
+ *   1. Deploy clients + brain_api with migration 5. They write both columns (-Ddb.keys=string / HISTORY_KEYS=string, the default).
+ *   2. backfill [batch=5000] [pause_ms=50]
+ *             Fills user_key for old rows in small message_id ranges - every batch is its own short transaction, so chat
+ *             keeps working and replicas keep up. Safe to stop and re-run; it resumes at the first row without a key.
+ *   3. verify  Rows still without a key, keys that don't match their user_id, history rows without a user. Must be clean.
+ *   4. Switch every client to -Ddb.keys=binary (brain_api: HISTORY_KEYS=binary) - reads now use the user_key indexes.
+ *   5. Switch every client to binary-only - new rows no longer carry user_id.
+ *   6. contract  Drops user_id and its indexes from chat_history and makes user_key the key of chat_users and the
+ *             target of the history foreign key. One-way - take a backup first.
+ *             MariaDB can't change a primary key or make a column NOT NULL in place, so these are ALGORITHM=COPY,
+ *             LOCK=SHARED: history stays readable, but writes wait while each table is copied (minutes for millions
+ *             of rows - 'sizes' shows how much there is). Run it in a quiet window, or, for a table too big for that,
+ *             apply the same ALTERs with pt-online-schema-change (--alter "...", without the ALGORITHM/LOCK part) and
+ *             then run 'contract' - every step is IF [NOT] EXISTS, so it only adds the foreign key.
+ *
+ * Measure the difference with KeyLayoutBenchmark, or before/after on the real tables with 'sizes'.
+ *
+ *   java -cp ... chat_ui.KeyBackfill backfill batch=5000 pause_ms=50
+ */
+public class KeyBackfill {
+    private static final String UUID_PATTERN = "'________-____-____-____-____________'"; // LIKE pattern - toBytes() gives NULL for anything else
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.parse(args);
+        String command = args.length > 0 ? args[0] : "verify";
+
+        Database.initialize(); // Migration 5 must have run before there is anything to fill
+        switch (command) {
+            case "backfill" -> backfill(settings.getInt("batch", 5000), settings.getInt("pause_ms", 50));
+            case "verify" -> verify();
+            case "contract" -> contract();
+            case "sizes" -> sizes();
+            default -> System.out.println("Usage: KeyBackfill backfill [batch=5000] [pause_ms=50] | verify | contract | sizes");
+        }
+    }
+
+    private static void backfill(int batch, int pauseMs) throws Exception {
+        try (Connection primary = DbRouter.primary();
+            Statement stmt = primary.createStatement()) { // Users registered by clients that predate migration 5
+            int users = stmt.executeUpdate("UPDATE chat_users SET user_key = UNHEX(REPLACE(user_uuid, '-', '')) " +
+                                           "WHERE user_key IS NULL AND user_uuid LIKE " + UUID_PATTERN);
+            System.out.printf("chat_users: %,d keys filled%n", users);
+        }
+
+        for (ShardRing.Shard place : places()) {
+            try (Connection conn = connectTo(place)) {
+                backfillHistory(conn, place.name(), batch, pauseMs);
+            } catch (SQLException e) {
+                System.out.println(place.name() + " not backfilled: " + e.getMessage());
+            }
+        }
+    }
+
+    private static void backfillHistory(Connection conn, String label, int batch, int pauseMs) throws Exception {
+        long from;
+        long last;
+        try (Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT (SELECT MIN(message_id) FROM chat_history WHERE user_key IS NULL), MAX(message_id) FROM chat_history")) {
+            rs.next();
+            from = rs.getLong(1); // Resume point - NULL keys sit together at the front of idx_history_key_sync
+            boolean done = rs.wasNull();
+            last = rs.getLong(2);
+            if (done) {
+                System.out.println(label + ": nothing to fill");
+                return;
+            }
+        }
+
+        String sql = "UPDATE chat_history SET user_key = UNHEX(REPLACE(user_id, '-', '')) " +
+                     "WHERE message_id >= ? AND message_id < ? AND user_key IS NULL AND user_id LIKE " + UUID_PATTERN;
+        long filled = 0;
+        long started = System.nanoTime();
+
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (long start = from; start <= last; start += batch) { // A primary-key range, never a scan - and the lock is held for one batch only
+                pstmt.setLong(1, start);
+                pstmt.setLong(2, start + batch);
+                filled += pstmt.executeUpdate();
+
+                if ((start - from) / batch % 100 == 99) {
+                    double seconds = (System.nanoTime() - started) / 1e9;
+                    System.out.printf("%s: up to message %,d of %,d - %,d rows filled (%.0f rows/s)%n", label, start + batch, last, filled, filled / seconds);
+                }
+                if (pauseMs > 0) Thread.sleep(pauseMs); // Room for chat writes and for the replicas to apply the batch
+            }
+        }
+        System.out.printf("%s: %,d rows filled in %.1f s%n", label, filled, (System.nanoTime() - started) / 1e9);
+    }
+
+    // Returns true when every place is ready for the read switch and for 'contract'
+    private static boolean verify() {
+        boolean clean = true;
+        for (ShardRing.Shard place : places()) {
+            List<String> checks = new ArrayList<>(List.of(
+                "SELECT COUNT(*) FROM chat_history WHERE user_key IS NULL",
+                "SELECT COUNT(*) FROM chat_history WHERE user_key <> UNHEX(REPLACE(user_id, '-', ''))"
+            ));
+            if (place == ShardRing.PRIMARY) {
+                checks.add("SELECT COUNT(*) FROM chat_users WHERE user_key IS NULL");
+                checks.add("SELECT COUNT(*) FROM chat_history h LEFT JOIN chat_users u ON u.user_key = h.user_key " +
+                           "WHERE h.user_key IS NOT NULL AND u.user_key IS NULL"); // Would break the new foreign key
+            }
+            String[] labels = {"history rows without user_key", "history rows whose user_key != user_id", "users without user_key", "history rows without a user"};
+
+            try (Connection conn = connectTo(place);
+                Statement stmt = conn.createStatement()) {
+                for (int i = 0; i < checks.size(); i++) {
+                    try (ResultSet rs = stmt.executeQuery(checks.get(i))) {
+                        rs.next();
+                        long count = rs.getLong(1);
+                        if (count > 0) {
+                            clean = false;
+                            System.out.printf("%-10s %,d %s%n", place.name(), count, labels[i]);
+                        }
+                    } catch (SQLException e) {
+                        if (i != 1) throw e; // user_id is already gone after 'contract' - nothing left to compare
+                    }
+                }
+            } catch (SQLException e) {
+                clean = false;
+                System.out.println(place.name() + " not checked: " + e.getMessage());
+            }
+        }
+        System.out.println(clean ? "OK - every row has its binary key." : "Run 'backfill' again (rows with non-UUID ids must be deleted or fixed by hand).");
+        return clean;
+    }
+
+    private static void contract() throws SQLException {
+        if (Database.KEYS != Database.KeyPhase.BINARY_ONLY) {
+            System.out.println("Run with -Ddb.keys=binary-only, after every client and brain_api (HISTORY_KEYS) has been switched to it.");
+            return;
+        }
+        if (!verify()) return;
+
+        // COPY + LOCK=SHARED: a new primary key and NULL -> NOT NULL need a table copy in MariaDB - INPLACE would be refused.
+        // SHARED keeps reads going during the copy; naming it makes MariaDB fail instead of silently taking a stronger lock.
+        String[] primary = {
+            "ALTER TABLE chat_history DROP FOREIGN KEY IF EXISTS fk_user;",
+            "ALTER TABLE chat_users MODIFY user_key BINARY(16) NOT NULL, DROP PRIMARY KEY, ADD PRIMARY KEY (user_key), " +
+                "ADD UNIQUE INDEX IF NOT EXISTS idx_users_uuid (user_uuid), DROP INDEX IF EXISTS idx_users_key, ALGORITHM=COPY, LOCK=SHARED;",
+            "ALTER TABLE chat_history MODIFY user_key BINARY(16) NOT NULL, DROP INDEX IF EXISTS idx_history_conversation, " +
+                "DROP INDEX IF EXISTS idx_history_sync, DROP COLUMN IF EXISTS user_id, ALGORITHM=COPY, LOCK=SHARED;",
+            "SET SESSION foreign_key_checks = 0;", // verify() already found no orphans - with checks off, adding a foreign key IS in place
+            "ALTER TABLE chat_history ADD CONSTRAINT fk_user_key FOREIGN KEY IF NOT EXISTS (user_key) REFERENCES chat_users (user_key) " +
+                "ON DELETE CASCADE, ALGORITHM=INPLACE, LOCK=NONE;",
+            "SET SESSION foreign_key_checks = 1;"
+        };
+        String[] shard = {
+            "ALTER TABLE chat_history MODIFY user_key BINARY(16) NOT NULL, DROP INDEX IF EXISTS idx_history_origin, " +
+                "DROP INDEX IF EXISTS idx_history_conversation, DROP INDEX IF EXISTS idx_history_sync, DROP COLUMN IF EXISTS user_id, " +
+                "ALGORITHM=COPY, LOCK=SHARED;"
+        };
+
+        for (ShardRing.Shard place : places()) {
+            try (Connection conn = connectTo(place);
+                Statement stmt = conn.createStatement()) {
+                for (String sql : (place == ShardRing.PRIMARY) ? primary : shard) {
+                    long started = System.nanoTime();
+                    stmt.execute(sql);
+                    System.out.printf("%s: %s (%.1f s)%n", place.name(), sql.substring(0, Math.min(60, sql.length())) + "...", (System.nanoTime() - started) / 1e9);
+                }
+            } catch (SQLException e) {
+                System.out.println(place.name() + " contract stopped: " + e.getMessage() + " - fix it and run 'contract' again (every step is IF [NOT] EXISTS)");
+            }
+        }
+    }
+
+    // Data and index bytes of the live tables - run before 'backfill' and after 'contract'
+    private static void sizes() {
+        for (ShardRing.Shard place : places()) {
+            try (Connection conn = connectTo(place)) {
+                for (String table : (place == ShardRing.PRIMARY) ? new String[] {"chat_users", "chat_history"} : new String[] {"chat_history"}) {
+                    long[] size = KeyLayoutBenchmark.tableSize(conn, table);
+                    System.out.printf("%-10s %-14s data %,12d KB   indexes %,12d KB%n", place.name(), table, size[0] / 1024, size[1] / 1024);
+                }
+            } catch (SQLException e) {
+                System.out.println(place.name() + " not measured: " + e.getMessage());
+            }
+        }
+    }
+
+    // The primary always - with no shards that is where history lives, with shards it may still hold rows that were never moved
+    private static List<ShardRing.Shard> places() {
+        List<ShardRing.Shard> places = new ArrayList<>();
+        places.add(ShardRing.PRIMARY);
+        places.addAll(DbRouter.shards().shards());
+        return places;
+    }
+
+    private static Connection connectTo(ShardRing.Shard shard) throws SQLException {
+        return (shard == ShardRing.PRIMARY) ? DbRouter.primary() : DbRouter.connect(shard.url());
+    }
+}
@@ -0,0 +1,255 @@
+package chat_ui;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.Histogram;
+
+/*
+ * Before/after numbers for the user key migration (KeyBackfill): builds the same synthetic chat history twice in scratch
+ * tables - once keyed by the 36-character user_id string (schema version 4), once by the BINARY(16) user_key as it looks
+ * after 'KeyBackfill contract' - then compares table size, index size, load time and history query latency.
+ *
+ *   data    information_schema DATA_LENGTH / INDEX_LENGTH after ANALYZE TABLE (InnoDB page counts - approximate, but the same
+ *           approximation for both layouts)
+ *   queries the two reads the apps make: a conversation (Database.loadConversationHistory) and the mirror sync
+ *           (Database.loadHistorySince), for random users, after an equal warm-up pass
+ *
+ * Same users, same messages, same insert order (users interleaved, like real traffic) in both layouts. The response
+ * text is identical too, so the difference is only the key - see how much of each row that actually is.
+ *
+ * Point it at a scratch database, never at production:
+ *   java -cp <classpath> -Ddb.url=jdbc:mariadb://127.0.0.1:3307/bench_db chat_ui.KeyLayoutBenchmark rows=3000000 users=30000
+ * Options: rows=2000000 users=20000 queries=2000 batch=1000 avg_chars=240 keep=false seed=42
+ */
+public class KeyLayoutBenchmark {
+    private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(1);
+    private static final String WORDS = "the airways may be inflamed which can cause a persistent cough and shortness of breath please see a doctor " +
+                                        "if symptoms last more than three weeks or you notice blood fever or chest pain";
+
+    private record Layout(String name, String userColumn, String userType, boolean binary) {
+        String users() { return "keybench_" + name + "_users"; }
+        String history() { return "keybench_" + name + "_history"; }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.parse(args);
+        int rows = settings.getInt("rows", 2_000_000);
+        int userCount = settings.getInt("users", 20_000);
+        int queries = settings.getInt("queries", 2000);
+        int batch = settings.getInt("batch", 1000);
+        int avgChars = settings.getInt("avg_chars", 240);
+        long seed = settings.getInt("seed", 42);
+
+        Layout[] layouts = {
+            new Layout("string", "user_id", "VARCHAR(100)", false),
+            new Layout("binary", "user_key", "BINARY(16)", true),
+        };
+
+        // 1. Users, each with a few conversations - random ids, like the version 4 accounts that exist today
+        Random random = new Random(seed);
+        List<String> users = new ArrayList<>();
+        List<String[]> conversations = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            users.add(new UUID(random.nextLong(), random.nextLong()).toString());
+            String[] topics = new String[1 + random.nextInt(4)];
+            for (int t = 0; t < topics.length; t++) topics[t] = new UUID(random.nextLong(), random.nextLong()).toString();
+            conversations.add(topics);
+        }
+
+        System.out.printf("%,d rows for %,d users, ~%d chars per message, DB %s%n%n", rows, userCount, avgChars, Database.URL);
+        long[][] sizes = new long[layouts.length][];
+        double[] loadSeconds = new double[layouts.length];
+        Histogram[][] latency = new Histogram[layouts.length][];
+
+        try (Connection conn = DbRouter.primary()) {
+            for (int l = 0; l < layouts.length; l++) {
+                Layout layout = layouts[l];
+                create(conn, layout);
+                loadSeconds[l] = load(conn, layout, users, conversations, rows, batch, avgChars, seed);
+
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("ANALYZE TABLE " + layout.history());
+                }
+                sizes[l] = tableSize(conn, layout.history());
+                latency[l] = query(conn, layout, users, conversations, queries, seed);
+                System.out.printf("%s layout loaded in %.1f s%n", layout.name(), loadSeconds[l]);
+            }
+
+            // 2. Report
+            System.out.printf("%n%-8s %10s %10s %10s %8s %12s %12s %12s %12s%n",
+                              "layout", "data MB", "index MB", "total MB", "load s", "conv p50 ms", "conv p99 ms", "sync p50 ms", "sync p99 ms");
+            for (int l = 0; l < layouts.length; l++) {
+                System.out.printf("%-8s %10.1f %10.1f %10.1f %8.1f %12.2f %12.2f %12.2f %12.2f%n", layouts[l].name(),
+                                  sizes[l][0] / 1048576.0, sizes[l][1] / 1048576.0, (sizes[l][0] + sizes[l][1]) / 1048576.0, loadSeconds[l],
+                                  ms(latency[l][0], 50), ms(latency[l][0], 99), ms(latency[l][1], 50), ms(latency[l][1], 99));
+            }
+            System.out.printf("%nbinary / string: data %.0f%%, indexes %.0f%%%n",
+                              100.0 * sizes[1][0] / sizes[0][0], 100.0 * sizes[1][1] / sizes[0][1]);
+
+            if (!settings.getBoolean("keep", false)) {
+                for (Layout layout : layouts) drop(conn, layout);
+            }
+        }
+    }
+
+    // {DATA_LENGTH, INDEX_LENGTH} in bytes - also used by 'KeyBackfill sizes' on the live tables
+    static long[] tableSize(Connection conn, String table) throws SQLException {
+        String sql = "SELECT DATA_LENGTH, INDEX_LENGTH FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : new long[] {0, 0};
+            }
+        }
+    }
+
+    // The production tables after each migration, minus the columns the benchmark doesn't touch
+    private static void create(Connection conn, Layout layout) throws SQLException {
+        drop(conn, layout);
+        String users = layout.binary()
+            ? "CREATE TABLE " + layout.users() + " (user_key BINARY(16) PRIMARY KEY, user_uuid VARCHAR(100) UNIQUE NOT NULL, " +
+              "history_id INT AUTO_INCREMENT UNIQUE, email VARCHAR(100) UNIQUE NOT NULL)"
+            : "CREATE TABLE " + layout.users() + " (user_uuid VARCHAR(100) PRIMARY KEY, history_id INT AUTO_INCREMENT UNIQUE, " +
+              "email VARCHAR(100) UNIQUE NOT NULL)";
+        String history = "CREATE TABLE " + layout.history() + " (" +
+            "message_id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+            layout.userColumn() + " " + layout.userType() + " NOT NULL, " +
+            "conversation_id VARCHAR(36) DEFAULT NULL, " +
+            "sender VARCHAR(50), " +
+            "response TEXT, " +
+            "timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
+            "INDEX (" + layout.userColumn() + ", conversation_id, timestamp), " +
+            "INDEX (" + layout.userColumn() + ", message_id), " +
+            "FOREIGN KEY (" + layout.userColumn() + ") REFERENCES " + layout.users() + " (" + (layout.binary() ? "user_key" : "user_uuid") + ") ON DELETE CASCADE)";
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(users);
+            stmt.execute(history);
+        }
+    }
+
+    private static void drop(Connection conn, Layout layout) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS " + layout.history());
+            stmt.execute("DROP TABLE IF EXISTS " + layout.users());
+        }
+    }
+
+    private static double load(Connection conn, Layout layout, List<String> users, List<String[]> conversations,
+                               int rows, int batch, int avgChars, long seed) throws SQLException {
+        long started = System.nanoTime();
+        conn.setAutoCommit(false);
+        try {
+            String userSql = "INSERT INTO " + layout.users() + (layout.binary() ? " (user_key, user_uuid, email) VALUES (?, ?, ?)" : " (user_uuid, email) VALUES (?, ?)");
+            try (PreparedStatement pstmt = conn.prepareStatement(userSql)) {
+                for (int i = 0; i < users.size(); i++) {
+                    int index = 1;
+                    if (layout.binary()) pstmt.setBytes(index++, UuidCodec.toBytes(users.get(i)));
+                    pstmt.setString(index++, users.get(i));
+                    pstmt.setString(index, "bench-" + i + "@example.com");
+                    pstmt.addBatch();
+                    if (i % batch == batch - 1) pstmt.executeBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            }
+
+            Random random = new Random(seed + 1); // Same messages in the same order for every layout
+            String sql = "INSERT INTO " + layout.history() + " (" + layout.userColumn() + ", conversation_id, sender, response, timestamp) VALUES (?, ?, ?, ?, ?)";
+            long clock = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(365);
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < rows; i += 2) { // One turn = the user's message + the reply
+                    int user = random.nextInt(users.size());
+                    String userId = users.get(user);
+                    String[] topics = conversations.get(user);
+                    String conversation = topics[random.nextInt(topics.length)];
+                    clock += 15_000;
+
+                    for (String sender : new String[] {userId, "DoctorBot"}) {
+                        if (layout.binary()) pstmt.setBytes(1, UuidCodec.toBytes(userId));
+                        else pstmt.setString(1, userId);
+                        pstmt.setString(2, conversation);
+                        pstmt.setString(3, sender);
+                        pstmt.setString(4, text(random, sender.equals("DoctorBot") ? avgChars * 3 / 2 : avgChars / 2));
+                        pstmt.setTimestamp(5, new java.sql.Timestamp(clock));
+                        pstmt.addBatch();
+                    }
+                    if (i % batch >= batch - 2) {
+                        pstmt.executeBatch();
+                        conn.commit();
+                    }
+                    if (i % 500_000 == 0 && i > 0) System.out.printf("  %s: %,d rows%n", layout.name(), i);
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            }
+        } finally {
+            conn.setAutoCommit(true);
+        }
+        return (System.nanoTime() - started) / 1e9;
+    }
+
+    // {conversation query, sync query} latencies in microseconds
+    private static Histogram[] query(Connection conn, Layout layout, List<String> users, List<String[]> conversations,
+                                     int queries, long seed) throws SQLException {
+        String conversationSql = "SELECT sender, response FROM " + layout.history() + " WHERE " + layout.userColumn() + " = ? " +
+                                 "AND conversation_id = ? ORDER BY timestamp ASC, message_id ASC";
+        String syncSql = "SELECT message_id, conversation_id, sender, response FROM " + layout.history() + " WHERE " +
+                         layout.userColumn() + " = ? AND message_id > ? ORDER BY message_id ASC";
+        Histogram[] histograms = {new Histogram(MAX_LATENCY_US, 3), new Histogram(MAX_LATENCY_US, 3)};
+
+        try (PreparedStatement conversation = conn.prepareStatement(conversationSql);
+            PreparedStatement sync = conn.prepareStatement(syncSql)) {
+            for (int pass = 0; pass < 2; pass++) { // Pass 0 warms the buffer pool and is not recorded
+                Random random = new Random(seed + 2);
+                for (int q = 0; q < queries; q++) {
+                    int user = random.nextInt(users.size());
+                    String userId = users.get(user);
+                    String[] topics = conversations.get(user);
+
+                    if (layout.binary()) conversation.setBytes(1, UuidCodec.toBytes(userId));
+                    else conversation.setString(1, userId);
+                    conversation.setString(2, topics[random.nextInt(topics.length)]);
+                    long started = System.nanoTime();
+                    drain(conversation);
+                    if (pass == 1) histograms[0].recordValue(Math.min(MAX_LATENCY_US, (System.nanoTime() - started) / 1000));
+
+                    if (layout.binary()) sync.setBytes(1, UuidCodec.toBytes(userId));
+                    else sync.setString(1, userId);
+                    sync.setLong(2, 0); // A fresh mirror - the whole history of the user
+                    started = System.nanoTime();
+                    drain(sync);
+                    if (pass == 1) histograms[1].recordValue(Math.min(MAX_LATENCY_US, (System.nanoTime() - started) / 1000));
+                }
+            }
+        }
+        return histograms;
+    }
+
+    private static void drain(PreparedStatement pstmt) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) rs.getString("response");
+        }
+    }
+
+    private static String text(Random random, int chars) {
+        String[] words = WORDS.split(" ");
+        StringBuilder text = new StringBuilder();
+        int target = Math.max(10, (int) (chars * (0.5 + random.nextDouble()))); // 50% - 150% of the average
+        while (text.length() < target) text.append(words[random.nextInt(words.length)]).append(' ');
+        return text.toString().trim();
+    }
+
+    private static double ms(Histogram h, double percentile) {
+        return h.getValueAtPercentile(percentile) / 1000.0;
+    }
+}
@@ -0,0 +1,249 @@
+package chat_ui;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/*
+ * Simulates many patients at once through the REAL flows, headlessly:
+ *   register  -> Registeration.createAccount (BCrypt hash + INSERT), then the activation link is "clicked" directly in the DB
+ *   login     -> Login.authenticate (SELECT + BCrypt check + session token)
+ *   chat      -> ChatClient.ask (the same streaming /ask call ConversationPanel makes), `turns` times with think time in between
+ *   history   -> Database.loadHistorySince (the local mirror's sync query)
+ *
+ * Users arrive as a Poisson process (open model), so a slow system builds a queue instead of slowing the arrivals down.
+ * Every stage is recorded in an HdrHistogram; latencies are printed as percentiles plus throughput per stage.
+ *
+ * Point it at a scratch database and the stub server, never at production:
+ *   java -cp <classpath> -Ddb.url=jdbc:mariadb://127.0.0.1:3307/loadtest_db chat_ui.StubAskServer port=8001
+ *   java -cp <classpath> -Ddb.url=jdbc:mariadb://127.0.0.1:3307/loadtest_db -Dai.url=http://127.0.0.1:8001 \
+ *        chat_ui.LoadGenerator users=300 rate=20 turns=3 thinkMs=2000 cleanup=true
+ * Add -Dsemantic.cache=false to make every first question reach the server (there are only a handful of them).
+ *
+ * Generation controls: length=short|normal|long is sent with every question. cancelRate=0.3 cancelAfterMs=300 stops that
+ * share of the turns still streaming after 300 ms, the way the STOP button does - "chat_cancel" is how long the server took
+ * to acknowledge, and the server's /generation-stats (printed at the end) has the tokens it didn't generate.
+ */
+public class LoadGenerator {
+    private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(10);
+    private static final String[] QUESTIONS = {
+        "I have had a dry cough for two weeks.", "Is shortness of breath after climbing stairs normal?",
+        "What does wheezing at night mean?", "Should I worry about chest tightness when it is cold outside?",
+        "Can seasonal allergies affect my lungs?"
+    };
+
+    private final Map<String, Histogram> stages = new LinkedHashMap<>(); // Fixed at construction, read concurrently afterwards
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong streamedChars = new AtomicLong();
+    private final Queue<String> userIds = new ConcurrentLinkedQueue<>(); // For cleanup - sharded history has no ON DELETE CASCADE
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Settings settings;
+    private final ChatClient chatClient;
+    private final ChatTransport.Options options; // length=short|normal|long, the same for every question
+    private final AtomicInteger cancelled = new AtomicInteger();
+
+    public LoadGenerator(Settings settings) {
+        this.settings = settings;
+        this.chatClient = new ChatClient(HttpClient.newBuilder().executor(Executors.newCachedThreadPool()).build());
+        this.options = ChatTransport.Options.ofLength(settings.get("length", null));
+        for (String stage : new String[] {"register", "login", "chat_first_chunk", "chat_complete", "history", "user_session_total"}) {
+            this.stages.put(stage, new ConcurrentHistogram(MAX_LATENCY_US, 3));
+        }
+        if (settings.getDouble("cancelRate", 0) > 0) this.stages.put("chat_cancel", new ConcurrentHistogram(MAX_LATENCY_US, 3));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Settings settings = Settings.parse(args);
+        LoadGenerator generator = new LoadGenerator(settings);
+
+        Database.initialize(); // Make sure the scratch DB has the current schema
+        generator.run();
+    }
+
+    public void run() throws InterruptedException {
+        int users = this.settings.getInt("users", 100);
+        double rate = this.settings.getDouble("rate", 10.0); // Arrivals per second
+
+        System.out.printf("Run %s: %d users arriving at %.1f/s, %d turns each, think time ~%d ms, DB %s, AI %s%n",
+            this.runId, users, rate, this.settings.getInt("turns", 3), this.settings.getInt("thinkMs", 2000), Database.URL, ChatClient.AI_SERVER_URL);
+
+        ExecutorService pool = Executors.newCachedThreadPool(); // Each simulated user blocks on JDBC and BCrypt like the real app
+        long start = System.nanoTime();
+        long nextArrival = start;
+
+        for (int i = 0; i < users; i++) {
+            long wait = nextArrival - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+
+            int userNumber = i;
+            pool.submit(() -> simulateUser(userNumber));
+            nextArrival += (long) (exponential(1.0 / rate) * 1e9); // Poisson arrivals - exponential gaps between users
+        }
+
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+
+        report(elapsedSeconds);
+        if (this.stages.containsKey("chat_cancel")) printGenerationStats();
+        if (this.settings.getBoolean("cleanup", false)) cleanup();
+    }
+
+    private void simulateUser(int userNumber) {
+        long sessionStart = System.nanoTime();
+        String email = "loadtest-" + this.runId + "-" + userNumber + "@example.com";
+        String password = "LoadTest!" + userNumber;
+
+        try {
+            // 1. Register (+ pretend the activation email was clicked)
+            long t = System.nanoTime();
+            Registeration.createAccount("Load", "Tester" + userNumber, email, password, "1990-01-01");
+            Database.updateData("chat_users", "is_verified = 1, verification_token = NULL", "email = ?", email);
+            record("register", t);
+
+            // 2. Login - the one BCrypt check
+            t = System.nanoTime();
+            Login.AuthResult auth = Login.authenticate(email, password);
+            record("login", t);
+            if (auth.status() != Login.AuthStatus.SUCCESS) throw new IllegalStateException("Login failed: " + auth.status());
+            this.userIds.add(auth.userUuid());
+
+            // 3. Chat turns with think time in between
+            String conversationId = UUID.randomUUID().toString();
+            for (int turn = 0; turn < this.settings.getInt("turns", 3); turn++) {
+                if (turn > 0) Thread.sleep((long) exponential(this.settings.getInt("thinkMs", 2000)));
+                if (SessionStore.validate(auth.sessionToken()) == null) throw new IllegalStateException("Session expired mid-test");
+
+                long askStart = System.nanoTime();
+                long[] firstChunkAt = {0};
+                CompletableFuture<Void> reply = this.chatClient.ask(auth.userUuid(), auth.sessionToken(), conversationId, QUESTIONS[(userNumber + turn) % QUESTIONS.length],
+                    turn == 0, this.options, chunk -> {
+                        if (firstChunkAt[0] == 0) firstChunkAt[0] = System.nanoTime();
+                        this.streamedChars.addAndGet(chunk.length());
+                    });
+
+                if (ThreadLocalRandom.current().nextDouble() < this.settings.getDouble("cancelRate", 0)) {
+                    try {
+                        reply.get(this.settings.getInt("cancelAfterMs", 300), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException stillStreaming) { // The user pressed STOP
+                        long cancelStart = System.nanoTime();
+                        this.chatClient.cancel(auth.userUuid(), auth.sessionToken(), conversationId).join();
+                        record("chat_cancel", cancelStart);
+                        this.cancelled.incrementAndGet();
+                        continue;
+                    }
+                }
+                reply.join();
+
+                if (firstChunkAt[0] != 0) this.stages.get("chat_first_chunk").recordValue(Math.min((firstChunkAt[0] - askStart) / 1000, MAX_LATENCY_US));
+                record("chat_complete", askStart);
+            }
+
+            // 4. History sync
+            t = System.nanoTime();
+            Database.loadHistorySince(auth.userUuid(), 0);
+            record("history", t);
+
+            SessionStore.revoke(auth.sessionToken());
+            record("user_session_total", sessionStart);
+        } catch (Exception e) {
+            int count = this.failures.incrementAndGet();
+            if (count <= 10) System.err.println("User " + userNumber + " failed: " + e); // Don't flood the console when everything is failing
+        }
+    }
+
+    private void record(String stage, long startNanos) {
+        this.stages.get(stage).recordValue(Math.min((System.nanoTime() - startNanos) / 1000, MAX_LATENCY_US));
+    }
+
+    private void report(double elapsedSeconds) {
+        System.out.printf("%nFinished in %.1f s, %d failed users, %,d reply chars streamed, %d replies stopped%n%n",
+            elapsedSeconds, this.failures.get(), this.streamedChars.get(), this.cancelled.get());
+        System.out.printf("%-20s %8s %9s %9s %9s %9s %9s %10s%n", "stage (ms)", "count", "mean", "p50", "p90", "p99", "max", "ops/s");
+
+        for (Map.Entry<String, Histogram> entry : this.stages.entrySet()) {
+            Histogram h = entry.getValue();
+            System.out.printf("%-20s %8d %9.1f %9.1f %9.1f %9.1f %9.1f %10.2f%n", entry.getKey(), h.getTotalCount(),
+                h.getMean() / 1000, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(90) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getMaxValue() / 1000.0, h.getTotalCount() / elapsedSeconds);
+        }
+
+        if (this.settings.getBoolean("distribution", false)) { // Full HdrHistogram output, e.g. for plotting
+            for (Map.Entry<String, Histogram> entry : this.stages.entrySet()) {
+                System.out.println("\n--- " + entry.getKey() + " (ms) ---");
+                entry.getValue().outputPercentileDistribution(System.out, 1000.0);
+            }
+        }
+    }
+
+    // Outcomes, tokens saved and cancel-to-free-slot latency as the server saw them (brain_api or StubAskServer)
+    private void printGenerationStats() {
+        try {
+            HttpRequest request = HttpRequest.newBuilder().uri(URI.create(ChatClient.AI_SERVER_URL + "/generation-stats")).GET().build();
+            HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+            System.out.println("\nServer generation stats: " + response.body());
+        } catch (Exception e) {
+            System.out.println("\nNo generation stats from the server: " + e.getMessage());
+        }
+    }
+
+    private void cleanup() {
+        for (String userId : this.userIds) {
+            Database.deleteHistory(userId); // Unsharded, ON DELETE CASCADE would do this - on a shard nothing else will
+        }
+        boolean removed = Database.deleteData("chat_users", "email LIKE ?", "loadtest-" + this.runId + "-%");
+        System.out.println(removed ? "Load-test users removed." : "Nothing to clean up.");
+    }
+
+    private static double exponential(double mean) {
+        return -mean * Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+    }
+
+    // key=value command line arguments, shared with StubAskServer and ShardRebalancer
+    public static class Settings {
+        private final Map<String, String> values = new HashMap<>();
+
+        public static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (eq > 0) settings.values.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+            return settings;
+        }
+
+        public String get(String key, String fallback) {
+            return this.values.getOrDefault(key, fallback);
+        }
+
+        public int getInt(String key, int fallback) {
+            return this.values.containsKey(key) ? Integer.parseInt(this.values.get(key)) : fallback;
+        }
+
+        public double getDouble(String key, double fallback) {
+            return this.values.containsKey(key) ? Double.parseDouble(this.values.get(key)) : fallback;
+        }
+
+        public boolean getBoolean(String key, boolean fallback) {
+            return this.values.containsKey(key) ? Boolean.parseBoolean(this.values.get(key)) : fallback;
+        }
+    }
+}
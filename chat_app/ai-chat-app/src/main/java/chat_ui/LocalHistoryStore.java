@@ -0,0 +1,263 @@
+package chat_ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Local mirror of a user's chat history, so opening the app or clicking History doesn't need MariaDB.
+ *
+ * On disk it is one append-only log per user (~/.doctorbot/history/<uuid>.log). Every record is:
+ *   [int recordLength][long messageId][int len][conversationId][int len][sender][int len][response]   (UTF-8 strings)
+ * At startup the log is memory-mapped and scanned once to build the in-memory index (conversation -> messages).
+ *
+ * message_id (AUTO_INCREMENT on the server) is the high-water-mark: a sync only asks the server for rows newer than
+ * the last synced one (minus a small overlap, because concurrent inserts can commit out of id order).
+ * Write-through appends (Database.saveTurn) do NOT move the mark, otherwise a row written by the server in between would
+ * be skipped - so the mark is not derived from the log but kept in <uuid>.mark, written after each sync once the log is
+ * on disk. A log without a mark (or with a lost one) just gets one full sync. Appending an id we already have is a no-op.
+ *
+ * message_ids are only meaningful on one shard (ShardRebalancer gives moved rows new ids), so <uuid>.shard remembers which
+ * shard the log was synced from. If the user's shard changed, the log is thrown away and rebuilt with one full sync.
+ *
+ * Everything under ~/.doctorbot is private chat content, so directories and files are owner-only (where the OS has POSIX permissions).
+ */
+public class LocalHistoryStore {
+    private static final Path ROOT = Paths.get(System.getProperty("user.home"), ".doctorbot", "history");
+    private static final boolean POSIX = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    private static final Map<String, LocalHistoryStore> STORES = new ConcurrentHashMap<>();
+    private static final long SYNC_OVERLAP = 100; // Re-read this many ids below the mark to catch transactions that committed late
+
+    private final String userId;
+    private final Path file;
+    private final Path shardFile;
+    private final Path markFile;
+    private String syncedShard; // Shard the log's message_ids come from
+    private final Map<String, List<Database.HistoryRow>> conversations = new LinkedHashMap<>(); // The index - insertion order = order of first message
+    private String latestConversationId = null;
+    private final Set<Long> knownIds = new HashSet<>();
+    private long highWaterMark = 0; // Largest message_id confirmed by a sync - never moved by write-through
+    private FileChannel log;
+
+    private LocalHistoryStore(String userId) {
+        this(userId, ROOT);
+    }
+
+    LocalHistoryStore(String userId, Path root) {
+        this.userId = userId;
+        String baseName = userId.replaceAll("[^A-Za-z0-9-]", "_"); // The UUID is safe already, this is just belt and braces
+        this.file = root.resolve(baseName + ".log");
+        this.shardFile = root.resolve(baseName + ".shard");
+        this.markFile = root.resolve(baseName + ".mark");
+        try {
+            Files.createDirectories(root);
+            if (root.equals(ROOT)) ownerOnly(root.getParent(), true); // ~/.doctorbot
+            ownerOnly(root, true);
+            this.log = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ownerOnly(this.file, false);
+            loadIndex();
+            this.highWaterMark = readMark();
+            // Logs written before sharding existed came from the primary database
+            this.syncedShard = Files.exists(this.shardFile) ? Files.readString(this.shardFile).trim() : (this.knownIds.isEmpty() ? null : ShardRing.PRIMARY.name());
+        } catch (IOException e) {
+            System.err.println("Local history unavailable, falling back to the server: " + e.getMessage());
+            this.log = null;
+        }
+    }
+
+    public static LocalHistoryStore forUser(String userId) {
+        return STORES.computeIfAbsent(userId, LocalHistoryStore::new);
+    }
+
+    // The store if this process already opened it (the logged-in app), else null - never creates files
+    public static LocalHistoryStore ifOpen(String userId) {
+        return STORES.get(userId);
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.knownIds.isEmpty();
+    }
+
+    public synchronized long highWaterMark() {
+        return this.highWaterMark;
+    }
+
+    public synchronized String latestConversationId() {
+        return this.latestConversationId;
+    }
+
+    public synchronized boolean hasConversation(String conversationId) {
+        return this.conversations.containsKey(conversationId);
+    }
+
+    public synchronized String transcript(String conversationId) {
+        StringBuilder history = new StringBuilder();
+        for (Database.HistoryRow row : this.conversations.getOrDefault(conversationId, List.of())) {
+            String label = row.sender().equalsIgnoreCase("DoctorBot") ? "DoctorBot" : this.userId; // Same format as Database.loadConversationHistory
+            history.append(label).append(": ").append(row.response()).append("\n\n");
+        }
+        return history.toString();
+    }
+
+    public synchronized void append(Database.HistoryRow row) {
+        if (!this.knownIds.add(row.messageId())) return; // Already have it (write-through and sync can both deliver the same row)
+
+        if (this.log != null) {
+            try {
+                ByteBuffer record = encode(row);
+                this.log.write(record, this.log.size()); // Always at the end - the file is append-only
+            } catch (IOException e) {
+                System.err.println("Local history write failed: " + e.getMessage()); // The server still has the row - only the on-disk copy is missing it
+            }
+        }
+        index(row);
+    }
+
+    // Pull every row the server has that we don't - one indexed range query on (user_id, message_id)
+    public void syncFromServer() {
+        String shard = DbRouter.shardFor(this.userId).name();
+        synchronized (this) {
+            if (this.syncedShard != null && !this.syncedShard.equals(shard)) reset(); // Moved to another shard - our ids mean nothing there
+        }
+
+        List<Database.HistoryRow> rows = Database.loadHistorySince(this.userId, Math.max(0, highWaterMark() - SYNC_OVERLAP));
+        merge(shard, rows);
+    }
+
+    // The rows of one sync - unlike append(), this moves the mark
+    synchronized void merge(String shard, List<Database.HistoryRow> rows) {
+        if (!shard.equals(this.syncedShard)) rememberShard(shard);
+        long mark = this.highWaterMark;
+        for (Database.HistoryRow row : rows) {
+            append(row);
+            mark = Math.max(mark, row.messageId());
+        }
+        if (mark > this.highWaterMark) {
+            this.highWaterMark = mark;
+            rememberMark(mark);
+        }
+    }
+
+    public CompletableFuture<Void> syncAsync() {
+        return CompletableFuture.runAsync(this::syncFromServer);
+    }
+
+    private void reset() {
+        this.conversations.clear();
+        this.knownIds.clear();
+        this.latestConversationId = null;
+        this.highWaterMark = 0;
+        this.syncedShard = null;
+        if (this.log != null) {
+            try {
+                Files.deleteIfExists(this.markFile);
+                this.log.truncate(0);
+            } catch (IOException e) {
+                System.err.println("Local history reset failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void rememberShard(String shard) {
+        this.syncedShard = shard;
+        try {
+            Files.writeString(this.shardFile, shard);
+            ownerOnly(this.shardFile, false);
+        } catch (IOException e) {
+            System.err.println("Local history shard marker not saved: " + e.getMessage()); // Worst case: a full re-sync next time
+        }
+    }
+
+    private void rememberMark(long mark) {
+        try {
+            if (this.log != null) this.log.force(false); // The rows first - a mark ahead of the log would skip them forever
+            Files.writeString(this.markFile, Long.toString(mark));
+            ownerOnly(this.markFile, false);
+        } catch (IOException e) {
+            System.err.println("Local history sync mark not saved: " + e.getMessage()); // Worst case: a full re-sync next time
+        }
+    }
+
+    private long readMark() {
+        try {
+            return Files.exists(this.markFile) ? Long.parseLong(Files.readString(this.markFile).trim()) : 0;
+        } catch (IOException | NumberFormatException e) {
+            return 0; // Unreadable = unknown = sync everything (appending known ids is a no-op)
+        }
+    }
+
+    private static void ownerOnly(Path path, boolean directory) {
+        if (!POSIX) return;
+        try {
+            Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(directory ? "rwx------" : "rw-------"));
+        } catch (IOException e) {
+            System.err.println("Could not make " + path + " private: " + e.getMessage());
+        }
+    }
+
+    private void index(Database.HistoryRow row) {
+        this.conversations.computeIfAbsent(row.conversationId(), id -> new ArrayList<>()).add(row);
+        this.latestConversationId = row.conversationId();
+    }
+
+    private void loadIndex() throws IOException {
+        long size = this.log.size();
+        if (size == 0) return;
+
+        MappedByteBuffer mapped = this.log.map(FileChannel.MapMode.READ_ONLY, 0, size); // Let the OS page the file in - no copying through a stream
+        long lastGoodOffset = 0;
+
+        while (mapped.remaining() >= Integer.BYTES) {
+            int length = mapped.getInt();
+            if (length <= 0 || length > mapped.remaining()) break; // Torn write from a crash - everything before it is still good
+
+            ByteBuffer record = mapped.slice(mapped.position(), length);
+            mapped.position(mapped.position() + length);
+
+            Database.HistoryRow row = new Database.HistoryRow(record.getLong(), readString(record), readString(record), readString(record));
+            this.knownIds.add(row.messageId());
+            index(row);
+            lastGoodOffset = mapped.position();
+        }
+
+        if (lastGoodOffset < size) {
+            this.log.truncate(lastGoodOffset); // Drop the torn tail so the next append starts on a record boundary
+        }
+    }
+
+    private static ByteBuffer encode(Database.HistoryRow row) {
+        byte[] conversation = row.conversationId().getBytes(StandardCharsets.UTF_8);
+        byte[] sender = row.sender().getBytes(StandardCharsets.UTF_8);
+        byte[] response = row.response().getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES + 3 * Integer.BYTES + conversation.length + sender.length + response.length;
+
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+        buffer.putInt(length).putLong(row.messageId());
+        buffer.putInt(conversation.length).put(conversation);
+        buffer.putInt(sender.length).put(sender);
+        buffer.putInt(response.length).put(response);
+        return buffer.flip();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -14,6 +14,7 @@ public class Login extends JDialog {
     private JPasswordField passField = new JPasswordField(20);
     private JButton loginBtn = new JButton("Login to Clinic");
     private String authenticatedUUID = null;
+    private String sessionToken = null; // Issued once after BCrypt succeeds, so nothing downstream has to check the password again
     private JButton openRegisterBtn = new JButton("No account? Sign up");
     private JButton forgotPassBtn = new JButton("Forgot Password?"); // Future feature
     private JButton exitBtn = new JButton("Exit");
@@ -77,47 +78,65 @@ public class Login extends JDialog {
         setLocationRelativeTo(owner);
     }
 
-    private void handleLogin() 
-    {
-        String email = emailField.getText();
-        String password = new String(passField.getPassword());
+    public enum AuthStatus { SUCCESS, INVALID_CREDENTIALS, NOT_VERIFIED }
 
+    public record AuthResult(AuthStatus status, String userUuid, String firstName, String sessionToken) {}
+
+    // The whole login check without any UI - used by the dialog below and by LoadGenerator
+    public static AuthResult authenticate(String email, String password) {
         String[] cols = {"user_uuid", "first_name", "password_hash", "is_verified"};
         Map<String, Object> userData = Database.getCustomData("chat_users", cols, "email = ?", email);
 
-        // 2. Step One: Does the email even exist?
+        // 1. Step One: Does the email even exist?
         if (userData.isEmpty()) {
-            JOptionPane.showMessageDialog(this, "Invalid email or password.", "Login Failed", JOptionPane.ERROR_MESSAGE);
-            return;
+            return new AuthResult(AuthStatus.INVALID_CREDENTIALS, null, null, null);
         }
 
-        // 3. Step Two: Check the Password using BCrypt.checkpw
-        String storedHash = (String) userData.get("password_hash");
-        
+        // 2. Step Two: Check the Password using BCrypt.checkpw
         // IMPORTANT: We do NOT hash the input ourselves. checkpw does it internally using the salt from storedHash.
-        if (BCrypt.checkpw(password, storedHash)) {
-            
-            // 4. Step Three: Check if the account is verified
-            Object verifiedObj = userData.get("is_verified");
-        
-            if (Boolean.FALSE.equals(verifiedObj)) { // If the account is not verified, we can show a message prompting them to verify their account before logging in. This is important for security to prevent unverified accounts from accessing the system, and also provides a better user experience by guiding them on what they need to do next.
+        String storedHash = (String) userData.get("password_hash");
+        if (!BCrypt.checkpw(password, storedHash)) {
+            return new AuthResult(AuthStatus.INVALID_CREDENTIALS, null, null, null);
+        }
+
+        // 3. Step Three: Check if the account is verified - unverified accounts must never reach the chat
+        if (Boolean.FALSE.equals(userData.get("is_verified"))) {
+            return new AuthResult(AuthStatus.NOT_VERIFIED, null, null, null);
+        }
+
+        // 4. SUCCESS! This was the one and only BCrypt check - from now on the session token is enough
+        String uuid = (String) userData.get("user_uuid");
+        return new AuthResult(AuthStatus.SUCCESS, uuid, (String) userData.get("first_name"), SessionStore.issue(uuid));
+    }
+
+    private void handleLogin() 
+    {
+        String email = emailField.getText();
+        String password = new String(passField.getPassword());
+        Startup.awaitDatabase(); // Schema check runs in the background at launch - only waits if the user typed faster than it
+
+        AuthResult result = GatewayClient.enabled()
+            ? GatewayClient.login(Startup.httpClient(), email, password) // The gateway checks the password and issues the session
+            : authenticate(email, password);
+
+        switch (result.status()) {
+            case INVALID_CREDENTIALS -> 
+                JOptionPane.showMessageDialog(this, "Invalid email or password.", "Login Failed", JOptionPane.ERROR_MESSAGE);
+
+            case NOT_VERIFIED -> // Prompt them to verify their account before logging in
                 JOptionPane.showMessageDialog(this, 
                     "This account is not verified. Please check your email.", 
                     "Account Not Verified", 
                     JOptionPane.INFORMATION_MESSAGE);
-                return;
-            }
 
-            // 5. SUCCESS!
-            this.authenticatedUUID = (String) userData.get("user_uuid");
-            String userName = (String) userData.get("first_name");
-            
-            JOptionPane.showMessageDialog(this, "Welcome back, " + userName + "!");
-            this.dispose();
+            case SUCCESS -> {
+                this.authenticatedUUID = result.userUuid();
+                this.sessionToken = result.sessionToken();
+                Startup.prefetch(this.authenticatedUUID); // Start loading their last conversation while the welcome dialog is up
 
-        } else {
-            // Password was wrong
-            JOptionPane.showMessageDialog(this, "Invalid email or password.", "Login Failed", JOptionPane.ERROR_MESSAGE);
+                JOptionPane.showMessageDialog(this, "Welcome back, " + result.firstName() + "!");
+                this.dispose();
+            }
         }
     }
 
@@ -125,4 +144,9 @@ public class Login extends JDialog {
     { 
         return this.authenticatedUUID; 
     }
+
+    public String getSessionToken() 
+    { 
+        return this.sessionToken; 
+    }
 }
@@ -1,6 +1,7 @@
 package chat_ui;
 import javax.swing.*;
 import java.awt.*;
+import java.util.Map;
 
 public class PasswordUpdateDialog extends JDialog {
     private String userEmail; // Passed from the previous window
@@ -72,9 +73,13 @@ public class PasswordUpdateDialog extends JDialog {
         // This would typically involve an API call to the backend which checks the code against what's stored for that email, and if valid, updates the password.
         String hashedPass = Database.hashPw(newPass);
 
-        boolean success = Database.updateData("chat_users", "password_hash = ?", "email = ?", hashedPass, this.userEmail);
+        // sessions_valid_after: brain_api refuses every token issued before now, in every process that issued one
+        boolean success = Database.updateData("chat_users", "password_hash = ?, sessions_valid_after = NOW()", "email = ?", hashedPass, this.userEmail);
 
         if (success) {
+            Map<String, Object> user = Database.getCustomData("chat_users", new String[] {"user_uuid"}, "email = ?", this.userEmail);
+            if (user.get("user_uuid") != null) SessionStore.revokeAll((String) user.get("user_uuid")); // And the ones this process still holds
+
             JOptionPane.showMessageDialog(this, "Your password has been successfully updated!");
             this.dispose(); // Close the dialog after successful update
         } else {
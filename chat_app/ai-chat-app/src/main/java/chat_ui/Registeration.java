@@ -74,6 +74,7 @@ public class Registeration extends JDialog {
             return;
         }
 
+        Startup.awaitDatabase(); // Registration can be opened before the background schema check finished
         // 2. CHECK: Does this email already exist?
         // Using your Map utility here:
         String[] cols = {"is_verified", "first_name"}; // We only need to know if the user exists and if they are verified for this flow
@@ -107,25 +108,7 @@ public class Registeration extends JDialog {
 
         // 3. NEW REGISTRATION: Proceed to INSERT (since userData was empty)
         try {
-            String uuid = UUID.randomUUID().toString();
-            String hashedPass = Database.hashPw(pass); 
-            String activationToken = UUID.randomUUID().toString();
-
-            // You can use a raw PreparedStatement here or a Database.insert helper if you have one
-            try (Connection conn = DriverManager.getConnection(Database.URL, Database.USER, Database.PASS)) {
-                String insertSql = "INSERT INTO chat_users (user_uuid, email, password_hash, first_name, last_name, birthdate, verification_token, verification_expiration) " +
-                                "VALUES (?, ?, ?, ?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL 24 HOUR))";
-                
-                PreparedStatement pstmt = conn.prepareStatement(insertSql);
-                pstmt.setString(1, uuid);
-                pstmt.setString(2, email);
-                pstmt.setString(3, hashedPass);
-                pstmt.setString(4, fName);
-                pstmt.setString(5, lName);
-                pstmt.setString(6, dob);
-                pstmt.setString(7, activationToken);
-                pstmt.executeUpdate();
-            }
+            String activationToken = createAccount(fName, lName, email, pass, dob);
 
             JOptionPane.showMessageDialog(this, "Registration successful! Check your email.");
             this.triggerEmailActivation(email, fName, activationToken);
@@ -138,6 +121,31 @@ public class Registeration extends JDialog {
 
     }
 
+    // Inserts the new (unverified) user and returns the activation token - no UI and no email, so LoadGenerator can call it too
+    public static String createAccount(String fName, String lName, String email, String pass, String dob) throws SQLException {
+        String uuid = UuidCodec.newTimeOrdered(); // Time-ordered, so new users append to the end of the chat_users indexes
+        String hashedPass = Database.hashPw(pass); 
+        String activationToken = UUID.randomUUID().toString();
+
+        // You can use a raw PreparedStatement here or a Database.insert helper if you have one
+        try (Connection conn = DbRouter.primary()) {
+            String insertSql = "INSERT INTO chat_users (user_uuid, email, password_hash, first_name, last_name, birthdate, verification_token, verification_expiration, user_key) " +
+                            "VALUES (?, ?, ?, ?, ?, ?, ?, DATE_ADD(NOW(), INTERVAL 24 HOUR), ?)";
+            
+            PreparedStatement pstmt = conn.prepareStatement(insertSql);
+            pstmt.setString(1, uuid);
+            pstmt.setString(2, email);
+            pstmt.setString(3, hashedPass);
+            pstmt.setString(4, fName);
+            pstmt.setString(5, lName);
+            pstmt.setString(6, dob);
+            pstmt.setString(7, activationToken);
+            pstmt.setBytes(8, UuidCodec.toBytes(uuid)); // The same id as BINARY(16) - what chat_history joins on once the key migration is done
+            pstmt.executeUpdate();
+        }
+        return activationToken;
+    }
+
     private void triggerEmailActivation(String email, String firstName, String activationToken) {
         // We run this in a background thread so the UI remains responsive
         new Thread(() -> { // We will call the FastAPI endpoint here to send the activation email
@@ -46,6 +46,7 @@ public class RequestResetDialog extends JDialog {
         
         submitBtn.addActionListener(e -> {
             String email = emailField.getText().trim();
+            Startup.awaitDatabase(); // The background schema check may still be running if this dialog was opened right away
 
             try {
                 // 2. Combine your queries! 
@@ -0,0 +1,318 @@
+package chat_ui;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Answers to first-turn questions, looked up by MEANING instead of exact text, so "Shortness of breath after climbing
+ * stairs, is that normal?" and "is it normal to have shortness of breath after climbing the stairs" share one generation.
+ *
+ * Only the first turn of a conversation is cached: later turns depend on the earlier ones, a first question doesn't.
+ * The question is embedded (Embedder), the nearest stored question is found in an HnswIndex, and if the cosine
+ * similarity is at least `threshold` its answer is served without calling the LLM - as long as both questions name the
+ * same symptoms, body parts and red flags and negate the same way (safetyTerms). Similarity alone also matched "coughing
+ * up blood" to "coughing up yellow mucus" - wrong medical advice is worse than a miss.
+ *
+ * Every user has their own cache (forUser): a reply can mention what the user told the bot, so it is never served to
+ * someone else. At most `semantic.users` caches are kept, the least recently used user's is dropped.
+ *
+ * Memory is bounded by `capacity` per user (twice that during a rebuild): the index is preallocated, answers longer than MAX_ANSWER_CHARS are not cached.
+ * When it is full, the least recently used EVICT_FRACTION of the entries are dropped and the graph is rebuilt from
+ * the rest (HNSW can't unlink nodes cheaply). The rebuild runs on a background thread while lookups keep using the old
+ * graph; new answers are simply not cached until it is swapped in.
+ *
+ *   -Dsemantic.cache=false         switch it off
+ *   -Dsemantic.threshold=0.90      minimum cosine similarity for a hit
+ *   -Dsemantic.capacity=100        max cached questions per user (~120 KB each)
+ *   -Dsemantic.users=256           max users with a cache in this process (ChatGateway serves many)
+ */
+public class SemanticCache {
+    public static final int MAX_ANSWER_CHARS = 4000;
+    private static final double EVICT_FRACTION = 0.1;
+    private static final int M = 16;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 50;
+    private static final Set<String> NEGATIONS = Set.of("no", "not", "never", "without", "none", "nor", "cannot", "cant", "dont", "doesnt", "didnt", "isnt", "wont");
+    private static final List<String> SAFETY_STEMS = List.of(
+        "blood", "bleed", "mucus", "phlegm", "yellow", "green", "cough", "wheez", "breath", "chest", "heart", "lung", "asthma",
+        "inhaler", "insulin", "diabet", "pain", "ache", "head", "migraine", "throat", "stomach", "abdom", "back", "skin", "rash",
+        "itch", "swell", "fever", "temperature", "faint", "dizz", "numb", "weak", "confus", "seiz", "stroke", "vomit", "nause",
+        "diarrh", "urin", "eye", "vision", "earache", "snor", "sleep", "allerg", "sneez", "nose", "pregnan", "baby", "infant",
+        "child", "suicid", "overdose", "tired", "fatigue", "weight");
+
+    private static final Embedder EMBEDDER = new HashingEmbedder(256); // Stateless - shared by every user's cache
+    private static final int USER_CAPACITY = Integer.getInteger("semantic.capacity", 100);
+    private static final int MAX_USERS = Integer.getInteger("semantic.users", 256);
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("semantic.threshold", "0.90"));
+    private static final Map<String, SemanticCache> BY_USER = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SemanticCache> eldest) {
+            return size() > MAX_USERS; // Access order - the user who asked least recently goes
+        }
+    });
+
+    private final Embedder embedder;
+    private final int capacity;
+    private final double threshold;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong clock = new AtomicLong(); // Logical time for LRU - cheaper than System.nanoTime and never ties
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    private HnswIndex index;
+    private String[] guards; // By node id - safetyTerms() of the cached question
+    private String[] answers;
+    private long[] lastUsed;
+
+    public interface Embedder {
+        int dimensions();
+
+        float[] embed(String text);
+    }
+
+    public SemanticCache(Embedder embedder, int capacity, double threshold) {
+        this.embedder = embedder;
+        this.capacity = capacity;
+        this.threshold = threshold;
+        reset(new HnswIndex(embedder.dimensions(), capacity, M, EF_CONSTRUCTION));
+    }
+
+    // This user's cache, or null when switched off
+    public static SemanticCache forUser(String userId) {
+        if (!Boolean.parseBoolean(System.getProperty("semantic.cache", "true")) || userId == null) return null;
+        return BY_USER.computeIfAbsent(userId, id -> new SemanticCache(EMBEDDER, USER_CAPACITY, THRESHOLD));
+    }
+
+    public String lookup(String question) {
+        float[] query = this.embedder.embed(question);
+        String key = safetyTerms(question);
+
+        this.lock.readLock().lock();
+        try {
+            int[] nearest = this.index.search(query, 1, EF_SEARCH);
+            if (nearest.length > 0 && matches(query, key, nearest[0])) {
+                this.lastUsed[nearest[0]] = this.clock.incrementAndGet(); // A racy write of a long is fine - it only steers eviction
+                this.hits.incrementAndGet();
+                return this.answers[nearest[0]];
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String question, String answer) {
+        if (answer == null || answer.isBlank() || answer.length() > MAX_ANSWER_CHARS) return;
+        float[] vector = this.embedder.embed(question);
+        String key = safetyTerms(question);
+
+        this.lock.writeLock().lock();
+        try {
+            int[] nearest = this.index.search(vector, 1, EF_SEARCH);
+            if (nearest.length > 0 && matches(vector, key, nearest[0])) return; // This question is cached already
+
+            if (this.index.isFull()) {
+                if (this.rebuilding.compareAndSet(false, true)) CompletableFuture.runAsync(this::evict); // Common pool threads are daemons
+                return;
+            }
+            int node = this.index.add(vector);
+            this.guards[node] = key;
+            this.answers[node] = answer;
+            this.lastUsed[node] = this.clock.incrementAndGet();
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        this.lock.readLock().lock();
+        try {
+            return this.index.liveCount();
+        } finally {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    public String stats() {
+        long h = this.hits.get();
+        long total = h + this.misses.get();
+        return String.format("%d entries, %d/%d hits (%.1f%%), index %.1f MB", size(), h, total,
+            total == 0 ? 0.0 : 100.0 * h / total, this.index.memoryBytes() / 1048576.0);
+    }
+
+    // Drop the least recently used entries and rebuild the graph from the survivors into a fresh index, then swap it in
+    private void evict() {
+        List<Integer> keep = new ArrayList<>();
+        float[][] vectors;
+        String[] keptGuards;
+        String[] keptAnswers;
+        long[] keptLastUsed;
+
+        this.lock.readLock().lock(); // Snapshot - lookups may go on, puts are turned away until the swap
+        try {
+            for (int node = 0; node < this.index.size(); node++) {
+                if (!this.index.isDeleted(node)) keep.add(node);
+            }
+            keep.sort(Comparator.comparingLong(node -> this.lastUsed[node]));
+            keep = keep.subList((int) Math.ceil(keep.size() * EVICT_FRACTION), keep.size());
+
+            vectors = new float[keep.size()][];
+            keptGuards = new String[keep.size()];
+            keptAnswers = new String[keep.size()];
+            keptLastUsed = new long[keep.size()];
+            for (int i = 0; i < keep.size(); i++) {
+                int node = keep.get(i);
+                vectors[i] = this.index.vector(node);
+                keptGuards[i] = this.guards[node];
+                keptAnswers[i] = this.answers[node];
+                keptLastUsed[i] = this.lastUsed[node];
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        HnswIndex fresh = new HnswIndex(this.embedder.dimensions(), this.capacity, M, EF_CONSTRUCTION); // The slow part - no lock held
+        for (float[] vector : vectors) fresh.add(vector); // Node ids come out as 0, 1, 2... in this order
+
+        this.lock.writeLock().lock();
+        try {
+            reset(fresh);
+            System.arraycopy(keptGuards, 0, this.guards, 0, keptGuards.length);
+            System.arraycopy(keptAnswers, 0, this.answers, 0, keptAnswers.length);
+            System.arraycopy(keptLastUsed, 0, this.lastUsed, 0, keptLastUsed.length);
+        } finally {
+            this.lock.writeLock().unlock();
+            this.rebuilding.set(false);
+        }
+    }
+
+    private boolean matches(float[] vector, String key, int node) {
+        return this.index.similarity(normalized(vector), node) >= this.threshold && key.equals(this.guards[node]);
+    }
+
+    /*
+     * The words a near-miss must not get wrong: symptoms, body parts, red flags (matched by stem, "coughing" -> "cough")
+     * and negations ("no", "don't"... all count as "not"), sorted. Two questions that differ here ask different things
+     * however similar the rest is. Words outside the list are left to the similarity threshold.
+     */
+    static String safetyTerms(String text) {
+        TreeSet<String> terms = new TreeSet<>();
+        for (String word : Normalizer.normalize(text, Normalizer.Form.NFKD).toLowerCase(Locale.ROOT).replace('\u2019', '\'').split("[^a-z']+")) {
+            if (NEGATIONS.contains(word) || word.endsWith("n't")) {
+                terms.add("not");
+                continue;
+            }
+            for (String stem : SAFETY_STEMS) {
+                if (word.startsWith(stem)) terms.add(stem);
+            }
+        }
+        return String.join(" ", terms);
+    }
+
+    private void reset(HnswIndex fresh) {
+        this.index = fresh;
+        this.guards = new String[this.capacity];
+        this.answers = new String[this.capacity];
+        this.lastUsed = new long[this.capacity];
+    }
+
+    private static float[] normalized(float[] v) {
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        float[] out = v.clone();
+        if (norm == 0) return out;
+
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int i = 0; i < out.length; i++) out[i] *= scale;
+        return out;
+    }
+
+    /*
+     * Stand-in for a real sentence-embedding model: feature hashing of words, word pairs and character trigrams
+     * into a fixed number of buckets (signed, so collisions cancel out instead of piling up).
+     * It catches re-orderings, typos, filler words and small rewordings - not true synonyms ("breathless" vs "short of breath").
+     * Any model that maps text to a float[] can replace it through the Embedder interface.
+     */
+    public static class HashingEmbedder implements Embedder {
+        private static final Set<String> STOP_WORDS = Set.of("a", "an", "the", "i", "i've", "ive", "im", "i'm", "my", "me", "is", "are",
+            "am", "be", "do", "does", "it", "to", "of", "for", "and", "or", "in", "on", "at", "with", "have", "has", "had", "been",
+            "should", "could", "would", "can", "what", "please", "doctor", "hi", "hello", "so", "that", "this", "about");
+
+        private final int dimensions;
+
+        public HashingEmbedder(int dimensions) {
+            this.dimensions = dimensions;
+        }
+
+        @Override
+        public int dimensions() {
+            return this.dimensions;
+        }
+
+        @Override
+        public float[] embed(String text) {
+            float[] vector = new float[this.dimensions];
+            List<String> words = words(text);
+
+            for (int i = 0; i < words.size(); i++) {
+                String word = words.get(i);
+                add(vector, "w:" + word, 1.0f);
+                if (i + 1 < words.size()) add(vector, "b:" + word + " " + words.get(i + 1), 0.5f); // Word pairs keep a bit of order
+                String padded = " " + word + " ";
+                for (int j = 0; j + 3 <= padded.length(); j++) {
+                    add(vector, "c:" + padded.substring(j, j + 3), 0.3f); // Trigrams make "coughing"/"cough" and typos overlap
+                }
+            }
+            return vector;
+        }
+
+        private static List<String> words(String text) {
+            String clean = Normalizer.normalize(text, Normalizer.Form.NFKD).toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9' ]+", " ");
+            List<String> words = new ArrayList<>();
+            for (String word : clean.trim().split("\\s+")) {
+                if (!word.isEmpty() && !STOP_WORDS.contains(word)) words.add(stem(word));
+            }
+            return words;
+        }
+
+        private void add(float[] vector, String feature, float weight) {
+            int h = murmurMix(feature.getBytes(StandardCharsets.UTF_8));
+            vector[Math.floorMod(h, this.dimensions)] += ((h >>> 31) == 0) ? weight : -weight; // The top bit picks the sign
+        }
+
+        private static String stem(String word) {
+            // Crude suffix stripping, enough for "coughs"/"coughing"/"coughed"
+            for (String suffix : new String[] {"ing", "ed", "es", "s"}) {
+                if (word.length() > suffix.length() + 2 && word.endsWith(suffix)) return word.substring(0, word.length() - suffix.length());
+            }
+            return word;
+        }
+
+        private static int murmurMix(byte[] data) {
+            int h = 0x9747b28c;
+            for (byte b : data) {
+                h ^= b;
+                h *= 0x5bd1e995;
+                h ^= h >>> 15;
+            }
+            h ^= h >>> 13;
+            h *= 0x5bd1e995;
+            return h ^ (h >>> 15);
+        }
+    }
+}
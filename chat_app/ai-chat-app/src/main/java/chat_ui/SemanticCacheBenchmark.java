@@ -0,0 +1,156 @@
+package chat_ui;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.HdrHistogram.Histogram;
+
+/*
+ * Two checks for the semantic cache:
+ *   1. HnswIndex vs. brute force on clustered random vectors - recall@1 / recall@10, query latency, build time, memory
+ *   2. SemanticCache on real-looking questions - how many paraphrases hit, and how many unrelated questions wrongly hit
+ * Run: mvn compile exec:java -Dexec.mainClass=chat_ui.SemanticCacheBenchmark -Dexec.args="10000 1000"
+ */
+public class SemanticCacheBenchmark {
+    private static final String[][] PARAPHRASES = { // First = what gets cached, the rest should hit it
+        {"I have had a dry cough for two weeks, should I be worried?", "i've had a dry cough for 2 weeks should i worry", "Dry cough for two weeks - should I be worried?"},
+        {"Is shortness of breath after climbing stairs normal?", "is it normal to have shortness of breath after climbing the stairs", "Shortness of breath after climbing stairs, is that normal?"},
+        {"What does wheezing at night mean?", "what does it mean when I am wheezing at night", "Wheezing at night - what does that mean?"},
+        {"Can seasonal allergies affect my lungs?", "can seasonal allergies affect the lungs", "Do seasonal allergies affect lungs?"},
+        {"How do I use an asthma inhaler correctly?", "how to use asthma inhaler correctly", "What is the correct way to use an asthma inhaler?"},
+        {"Is coughing up yellow mucus a sign of infection?", "coughing up yellow mucus - sign of an infection?", "Is yellow mucus when coughing a sign of infection"},
+    };
+    private static final String[] UNRELATED = { // None of these should be answered from the cache
+        "I have had a headache for two weeks, should I be worried?", "Is chest pain after climbing stairs normal?",
+        "What does snoring at night mean?", "Can seasonal allergies cause a skin rash?", "How do I use an insulin pen correctly?",
+        "Is coughing up blood a sign of cancer?",
+    };
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        int dim = 256;
+
+        indexBenchmark(n, queries, dim);
+        cacheBenchmark();
+    }
+
+    private static void indexBenchmark(int n, int queries, int dim) {
+        Random random = new Random(42);
+        float[][] data = clustered(random, n, dim, Math.max(1, n / 100)); // Questions cluster by topic, so uniform noise would be too easy
+        float[][] probes = clustered(random, queries, dim, Math.max(1, n / 100));
+
+        long start = System.nanoTime();
+        HnswIndex index = new HnswIndex(dim, n, 16, 100);
+        for (float[] v : data) index.add(v);
+        double buildMs = (System.nanoTime() - start) / 1e6;
+
+        for (int i = 0; i < Math.min(200, queries); i++) index.search(probes[i], 10, 50); // JIT warm-up
+
+        for (int ef : new int[] {10, 50, 100, 200}) {
+            Histogram latency = new Histogram(3);
+            double recall1 = 0;
+            double recall10 = 0;
+
+            for (float[] probe : probes) {
+                long t = System.nanoTime();
+                int[] approx = index.search(probe, 10, ef);
+                latency.recordValue((System.nanoTime() - t) / 1000);
+
+                int[] exact = bruteForce(index, probe, n, 10);
+                recall1 += (approx.length > 0 && approx[0] == exact[0]) ? 1 : 0;
+                recall10 += overlap(approx, exact) / 10.0;
+            }
+            System.out.printf("HNSW n=%d ef=%3d: recall@1 %.3f, recall@10 %.3f, p50 %d us, p99 %d us%n", n, ef,
+                recall1 / queries, recall10 / queries, latency.getValueAtPercentile(50), latency.getValueAtPercentile(99));
+        }
+
+        Histogram brute = new Histogram(3);
+        for (float[] probe : probes) {
+            long t = System.nanoTime();
+            bruteForce(index, probe, n, 10);
+            brute.recordValue((System.nanoTime() - t) / 1000);
+        }
+        System.out.printf("Brute force n=%d:     p50 %d us, p99 %d us%n", n, brute.getValueAtPercentile(50), brute.getValueAtPercentile(99));
+        System.out.printf("Build %.0f ms, index memory %.1f MB%n%n", buildMs, index.memoryBytes() / 1048576.0);
+    }
+
+    private static void cacheBenchmark() {
+        SemanticCache cache = new SemanticCache(new SemanticCache.HashingEmbedder(256), 1000,
+            Double.parseDouble(System.getProperty("semantic.threshold", "0.90")));
+        for (String[] group : PARAPHRASES) cache.put(group[0], "answer to: " + group[0]);
+
+        int paraphrases = 0;
+        int correctHits = 0;
+        for (String[] group : PARAPHRASES) {
+            for (int i = 1; i < group.length; i++) {
+                paraphrases++;
+                String answer = cache.lookup(group[i]);
+                boolean hit = ("answer to: " + group[0]).equals(answer);
+                if (hit) correctHits++;
+                System.out.printf("  %-4s %s%n", hit ? "HIT" : "miss", group[i]);
+            }
+        }
+
+        int falseHits = 0;
+        for (String question : UNRELATED) {
+            String answer = cache.lookup(question);
+            if (answer != null) falseHits++;
+            System.out.printf("  %-4s %s%n", answer != null ? "BAD" : "ok", question);
+        }
+
+        Histogram latency = new Histogram(3);
+        for (int i = 0; i < 20_000; i++) {
+            long t = System.nanoTime();
+            cache.lookup(PARAPHRASES[i % PARAPHRASES.length][1 + i % 2]);
+            latency.recordValue((System.nanoTime() - t) / 1000);
+        }
+
+        System.out.printf("Paraphrase hits %d/%d, false hits %d/%d, lookup p50 %d us, p99 %d us (embedding included)%n",
+            correctHits, paraphrases, falseHits, UNRELATED.length, latency.getValueAtPercentile(50), latency.getValueAtPercentile(99));
+    }
+
+    private static float[][] clustered(Random random, int n, int dim, int clusters) {
+        Random centres = new Random(7); // Same centres for data and probes
+        float[][] centre = new float[clusters][dim];
+        for (float[] c : centre) for (int d = 0; d < dim; d++) c[d] = (float) centres.nextGaussian();
+
+        float[][] out = new float[n][dim];
+        for (int i = 0; i < n; i++) {
+            float[] c = centre[random.nextInt(clusters)];
+            for (int d = 0; d < dim; d++) out[i][d] = c[d] + 0.5f * (float) random.nextGaussian();
+        }
+        return out;
+    }
+
+    private static int[] bruteForce(HnswIndex index, float[] probe, int n, int k) {
+        float[] query = probe.clone();
+        double norm = 0;
+        for (float x : query) norm += x * x;
+        for (int d = 0; d < query.length; d++) query[d] /= (float) Math.sqrt(norm);
+
+        int[] best = new int[k];
+        float[] bestSim = new float[k];
+        Arrays.fill(bestSim, -2f);
+        for (int node = 0; node < n; node++) {
+            float sim = index.similarity(query, node);
+            if (sim <= bestSim[k - 1]) continue;
+
+            int pos = k - 1;
+            while (pos > 0 && bestSim[pos - 1] < sim) {
+                bestSim[pos] = bestSim[pos - 1];
+                best[pos] = best[pos - 1];
+                pos--;
+            }
+            bestSim[pos] = sim;
+            best[pos] = node;
+        }
+        return best;
+    }
+
+    private static int overlap(int[] a, int[] b) {
+        int count = 0;
+        for (int x : a) for (int y : b) if (x == y) count++;
+        return count;
+    }
+}
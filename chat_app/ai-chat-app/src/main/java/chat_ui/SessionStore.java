@@ -0,0 +1,187 @@
+package chat_ui;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/*
+ * Server-side sessions. BCrypt is deliberately slow (cost 12 is ~250ms), so we only run it once at login
+ * and hand out a session token. Every request after that is checked with one HMAC plus a map lookup.
+ *
+ * Token format: <sessionId>.<userUuid>.<issuedAt epoch seconds>.<base64url(HMAC-SHA256(everything before the last dot))>
+ * The signature lets us reject forged/garbage tokens without touching the map, the map gives us
+ * sliding expiry and revocation (which a purely stateless token can't do).
+ *
+ * The token is sent to brain_api as "Authorization: Bearer <token>". brain_api (sessions.py) checks the same HMAC with the
+ * same secret and takes the user id from the token, never from the request body - so every process that issues or checks
+ * tokens (the app, ChatGateway, brain_api) must be started with the same secret:
+ *   -Dsession.secret=... or SESSION_SECRET=...   (unset = a random per-process key - brain_api will reject every token)
+ */
+public class SessionStore {
+    public static final Duration IDLE_TIMEOUT = Duration.ofMinutes(30); // Sliding expiry - every valid request pushes this forward
+    public static final Duration MAX_LIFETIME = Duration.ofHours(12); // Hard cap, even for a session that is used constantly
+
+    private static final String HMAC_ALGO = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final byte[] SECRET = newSecret(); // Shared with brain_api - rotating it logs everyone out everywhere
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(SessionStore::newMac); // Mac is not thread safe, but it is cheap to reuse per thread
+
+    private static final Map<String, Session> SESSIONS = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "session-sweeper");
+        t.setDaemon(true); // Never keep the JVM alive just for cleanup
+        return t;
+    });
+
+    static {
+        SWEEPER.scheduleAtFixedRate(SessionStore::sweepExpired, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public static final class Session {
+        private final String userUuid;
+        private final long createdAt;
+        private volatile long lastSeen; // Written by whichever thread validated last, read by the sweeper
+
+        private Session(String userUuid, long now) {
+            this.userUuid = userUuid;
+            this.createdAt = now;
+            this.lastSeen = now;
+        }
+
+        private boolean isExpired(long now) {
+            return now - this.lastSeen > IDLE_TIMEOUT.toMillis() || now - this.createdAt > MAX_LIFETIME.toMillis();
+        }
+
+        public String getUserUuid() {
+            return this.userUuid;
+        }
+    }
+
+    // Call this ONLY after BCrypt.checkpw succeeded
+    public static String issue(String userUuid) {
+        byte[] idBytes = new byte[24];
+        RANDOM.nextBytes(idBytes);
+        String sessionId = B64.encodeToString(idBytes);
+
+        long now = System.currentTimeMillis();
+        SESSIONS.put(sessionId, new Session(userUuid, now));
+        String payload = sessionId + "." + userUuid + "." + (now / 1000);
+        return payload + "." + sign(payload);
+    }
+
+    // The user a correctly signed, not yet MAX_LIFETIME-old token was issued to - no map, so it works in any process that
+    // shares the secret (StubAskServer). Idle timeout and revocation need validate().
+    public static String userOf(String token) {
+        return userOf(token, System.currentTimeMillis());
+    }
+
+    static String userOf(String token, long now) {
+        String[] parts = verifiedParts(token);
+        if (parts == null) return null;
+        long issuedAt = Long.parseLong(parts[2]) * 1000;
+        return (now - issuedAt > MAX_LIFETIME.toMillis()) ? null : parts[1];
+    }
+
+    public static String authorizationHeader(String token) {
+        return "Bearer " + token;
+    }
+
+    // Returns the user UUID for a live session, or null if the token is forged, expired or revoked
+    public static String validate(String token) {
+        String sessionId = verifiedSessionId(token);
+        if (sessionId == null) return null;
+
+        Session session = SESSIONS.get(sessionId);
+        if (session == null) return null;
+
+        long now = System.currentTimeMillis();
+        if (session.isExpired(now)) {
+            SESSIONS.remove(sessionId, session);
+            return null;
+        }
+
+        session.lastSeen = now; // Slide the idle window
+        return session.userUuid;
+    }
+
+    public static boolean revoke(String token) {
+        String sessionId = verifiedSessionId(token);
+        return sessionId != null && SESSIONS.remove(sessionId) != null;
+    }
+
+    // Used after a password reset (PasswordUpdateDialog) - kill every session the user has open in this process.
+    // Other processes learn it from chat_users.sessions_valid_after, which brain_api checks.
+    public static int revokeAll(String userUuid) {
+        int before = SESSIONS.size();
+        SESSIONS.values().removeIf(s -> s.userUuid.equals(userUuid));
+        return before - SESSIONS.size();
+    }
+
+    public static int activeSessions() {
+        return SESSIONS.size();
+    }
+
+    private static String verifiedSessionId(String token) {
+        String[] parts = verifiedParts(token);
+        return (parts != null) ? parts[0] : null;
+    }
+
+    // { sessionId, userUuid, issuedAt } of a token whose signature checks out, else null
+    private static String[] verifiedParts(String token) {
+        if (token == null) return null;
+
+        int dot = token.lastIndexOf('.');
+        if (dot <= 0 || dot == token.length() - 1) return null;
+
+        String payload = token.substring(0, dot);
+        String[] parts = payload.split("\\.", -1);
+        if (parts.length != 3 || parts[0].isEmpty() || parts[1].isEmpty() || !parts[2].matches("\\d{1,12}")) return null;
+
+        byte[] expected = sign(payload).getBytes(StandardCharsets.US_ASCII);
+        byte[] given = token.substring(dot + 1).getBytes(StandardCharsets.US_ASCII);
+
+        // Constant-time compare so the signature can't be guessed byte by byte
+        return MessageDigest.isEqual(expected, given) ? parts : null;
+    }
+
+    private static String sign(String payload) {
+        Mac mac = MAC.get();
+        return B64.encodeToString(mac.doFinal(payload.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void sweepExpired() {
+        long now = System.currentTimeMillis();
+        SESSIONS.values().removeIf(s -> s.isExpired(now));
+    }
+
+    private static byte[] newSecret() {
+        String shared = System.getProperty("session.secret", System.getenv("SESSION_SECRET"));
+        if (shared != null && !shared.isBlank()) return shared.trim().getBytes(StandardCharsets.UTF_8);
+
+        System.out.println("No session.secret / SESSION_SECRET set - sessions only work inside this process, brain_api will refuse them.");
+        byte[] key = new byte[32];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    private static Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGO);
+            mac.init(new SecretKeySpec(SECRET, HMAC_ALGO));
+            return mac;
+        } catch (Exception e) {
+            throw new IllegalStateException("HMAC-SHA256 is not available on this JVM", e); // Every JDK ships it, so this is a broken runtime
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package chat_ui;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Moves users' chat_history between shards while the apps and brain_api keep running.
+ *
+ * Adding (or draining) a shard:
+ *   1. plan   from=<old db.shards> to=<new db.shards>
+ *             Pins every user whose owner changes to their CURRENT shard in shard_overrides. Nothing moves yet.
+ *   2. Roll out the new db.shards / DB_SHARDS everywhere. Pinned users are still served from their old shard.
+ *   3. move   (with -Ddb.shards=<new>)
+ *             Per batch of pinned users: copy their rows to the ring's owner, point the override at it, wait until every
+ *             client has reloaded the overrides, copy whatever was still written to the old shard, delete the old rows,
+ *             drop the override. Readers may miss a just-written row for up to one override refresh - writes are never lost.
+ *   4. verify (with -Ddb.shards=<new>)
+ *             Counts every user's rows on every shard and reports any that sit outside their owner.
+ *
+ * "from=" empty (the default) means "not sharded yet" - history is in the primary database, so the first split works the same way.
+ * Moved rows get new message_ids on their new shard (ids are per shard); LocalHistoryStore notices the move and re-syncs.
+ * Every step can be re-run: copies are idempotent (chat_history.origin) and shard_overrides.moving_from lets an interrupted
+ * 'move' pick up where it died.
+ *
+ *   java -Ddb.shards="s0=jdbc:mariadb://127.0.0.1:3307/telegram_bot_db,s1=jdbc:mariadb://127.0.0.1:3308/telegram_bot_db" \
+ *        chat_ui.ShardRebalancer move batch=200
+ */
+public class ShardRebalancer {
+    private static final int COPY_BATCH = 500;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.parse(args);
+        String command = args.length > 0 ? args[0] : "verify";
+
+        Database.initialize(); // Creates shard_overrides on the primary and chat_history on any new shard
+        switch (command) {
+            case "plan" -> plan(ShardRing.parse(settings.get("from", "")), ShardRing.parse(settings.get("to", System.getProperty("db.shards", ""))));
+            case "move" -> move(settings.getInt("batch", 200));
+            case "verify" -> verify();
+            default -> System.out.println("Usage: ShardRebalancer plan from=<spec> to=<spec> | move [batch=200] | verify");
+        }
+    }
+
+    private static void plan(ShardRing from, ShardRing to) throws SQLException {
+        int pinned = 0;
+        int users = 0;
+
+        try (Connection primary = DbRouter.primary();
+            Statement stmt = primary.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT user_uuid FROM chat_users");
+            PreparedStatement pin = primary.prepareStatement("INSERT IGNORE INTO shard_overrides (user_id, shard) VALUES (?, ?)")) {
+
+            while (rs.next()) {
+                String userId = rs.getString("user_uuid");
+                String current = from.shardFor(userId).name();
+                users++;
+                if (current.equals(to.shardFor(userId).name())) continue;
+
+                pin.setString(1, userId);
+                pin.setString(2, current); // IGNORE: a user already pinned by an unfinished earlier plan keeps that pin
+                pin.addBatch();
+                pinned++;
+            }
+            pin.executeBatch();
+        }
+        System.out.printf("%d of %d users change shard and are now pinned. Roll out the new shard list, then run 'move'.%n", pinned, users);
+    }
+
+    private static void move(int batchSize) throws Exception {
+        ShardRing ring = DbRouter.shards();
+        if (ring.isEmpty()) {
+            System.out.println("Set -Ddb.shards to the NEW shard list first.");
+            return;
+        }
+
+        Map<String, String[]> pinned = new HashMap<>(); // userId -> {shard, moving_from}
+        try (Connection primary = DbRouter.primary();
+            Statement stmt = primary.createStatement();
+            ResultSet rs = stmt.executeQuery("SELECT user_id, shard, moving_from FROM shard_overrides")) {
+            while (rs.next()) pinned.put(rs.getString("user_id"), new String[] {rs.getString("shard"), rs.getString("moving_from")});
+        }
+
+        List<String> userIds = new ArrayList<>(pinned.keySet());
+        int moved = 0;
+        for (int start = 0; start < userIds.size(); start += batchSize) {
+            List<String> batch = userIds.subList(start, Math.min(start + batchSize, userIds.size()));
+            Map<String, ShardRing.Shard> sources = new HashMap<>();
+
+            // 1. Bulk copy while clients still use the old shard, then switch them over
+            for (String userId : batch) {
+                String[] pin = pinned.get(userId);
+                ShardRing.Shard target = ring.shardFor(userId);
+                if (pin[1] != null) { // An earlier run died after switching this user - just finish the job
+                    sources.put(userId, shardByName(ring, pin[1]));
+                    continue;
+                }
+
+                ShardRing.Shard source = shardByName(ring, pin[0]);
+                if (source == null) continue; // Unknown shard - fix the config and run again
+                if (source.equals(target)) {
+                    clearOverride(userId); // The ring already agrees (e.g. the plan was rolled back)
+                    continue;
+                }
+
+                copyRows(userId, source, target);
+                switchOverride(userId, target.name(), source.name());
+                sources.put(userId, source);
+            }
+
+            // 2. Every client reloads overrides within OVERRIDE_REFRESH_MS - after two of them nobody writes to the old shard any more
+            if (!sources.isEmpty()) Thread.sleep(2 * DbRouter.OVERRIDE_REFRESH_MS + 1000);
+
+            // 3. Catch-up copy, delete the old rows, hand the user back to the ring
+            for (Map.Entry<String, ShardRing.Shard> entry : sources.entrySet()) {
+                if (entry.getValue() == null) continue;
+                String userId = entry.getKey();
+
+                copyRows(userId, entry.getValue(), ring.shardFor(userId));
+                deleteRows(userId, entry.getValue());
+                clearOverride(userId);
+                moved++;
+            }
+            System.out.printf("Moved %d / %d users%n", moved, userIds.size());
+        }
+    }
+
+    private static void verify() throws SQLException {
+        ShardRing ring = DbRouter.shards();
+        List<ShardRing.Shard> places = new ArrayList<>(ring.shards());
+        places.add(ShardRing.PRIMARY);
+
+        int misplaced = 0;
+        Map<String, Integer> rowsPerShard = new HashMap<>();
+        for (ShardRing.Shard shard : places) {
+            try (Connection conn = connectTo(shard);
+                Statement stmt = conn.createStatement();
+                ResultSet rs = stmt.executeQuery("SELECT " + Database.userColumn() + ", COUNT(*) AS n FROM chat_history GROUP BY " + Database.userColumn())) {
+
+                while (rs.next()) {
+                    String userId = Database.readUser(rs);
+                    String owner = DbRouter.shardFor(userId).name();
+                    rowsPerShard.merge(shard.name(), rs.getInt("n"), Integer::sum);
+                    if (!owner.equals(shard.name())) {
+                        misplaced++;
+                        System.out.printf("user %s: %d rows on %s, owner is %s%n", userId, rs.getInt("n"), shard.name(), owner);
+                    }
+                }
+            } catch (SQLException e) {
+                System.out.println("Shard " + shard.name() + " not checked: " + e.getMessage());
+            }
+        }
+        rowsPerShard.forEach((name, rows) -> System.out.printf("%-10s %,d rows%n", name, rows));
+        System.out.println(misplaced == 0 ? "OK - every row is on its owner's shard." : misplaced + " users have rows outside their shard.");
+    }
+
+    // Copies all of the user's rows from source, oldest first so the new ids keep the original order. Safe to repeat (origin is unique).
+    private static void copyRows(String userId, ShardRing.Shard source, ShardRing.Shard target) throws SQLException {
+        String select = "SELECT message_id, conversation_id, sender, response, timestamp FROM chat_history " +
+                        "WHERE " + Database.userColumn() + " = ? AND message_id > ? ORDER BY message_id ASC LIMIT " + COPY_BATCH;
+        String insert = "INSERT IGNORE INTO chat_history (" + Database.userInsertColumns() + ", conversation_id, sender, response, timestamp, origin) " +
+                        "VALUES (" + Database.userInsertValues() + ", ?, ?, ?, ?, ?)";
+
+        try (Connection from = connectTo(source);
+            Connection to = connectTo(target);
+            PreparedStatement read = from.prepareStatement(select);
+            PreparedStatement write = to.prepareStatement(insert)) {
+
+            to.setAutoCommit(false);
+            long after = 0; // Always from the start: a row that committed late can have a LOWER id than one we already copied
+            while (true) {
+                Database.bindUser(read, 1, userId);
+                read.setLong(2, after);
+                int rows = 0;
+
+                try (ResultSet rs = read.executeQuery()) {
+                    while (rs.next()) {
+                        rows++;
+                        after = rs.getLong("message_id");
+
+                        int next = Database.bindUserInsert(write, 1, userId);
+                        write.setString(next, rs.getString("conversation_id"));
+                        write.setString(next + 1, rs.getString("sender"));
+                        write.setString(next + 2, rs.getString("response"));
+                        write.setTimestamp(next + 3, rs.getTimestamp("timestamp"));
+                        write.setString(next + 4, source.name() + ":" + after);
+                        write.addBatch();
+                    }
+                }
+                write.executeBatch();
+                to.commit(); // One transaction per page - a crash re-copies at most one page, and IGNORE skips it
+                if (rows < COPY_BATCH) break;
+            }
+        }
+    }
+
+    private static void deleteRows(String userId, ShardRing.Shard source) throws SQLException {
+        try (Connection conn = connectTo(source);
+            PreparedStatement pstmt = conn.prepareStatement("DELETE FROM chat_history WHERE " + Database.userColumn() + " = ?")) {
+            Database.bindUser(pstmt, 1, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void switchOverride(String userId, String shard, String movingFrom) throws SQLException {
+        try (Connection conn = DbRouter.primary();
+            PreparedStatement pstmt = conn.prepareStatement("UPDATE shard_overrides SET shard = ?, moving_from = ? WHERE user_id = ?")) {
+            pstmt.setString(1, shard);
+            pstmt.setString(2, movingFrom);
+            pstmt.setString(3, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void clearOverride(String userId) throws SQLException {
+        try (Connection conn = DbRouter.primary();
+            PreparedStatement pstmt = conn.prepareStatement("DELETE FROM shard_overrides WHERE user_id = ?")) {
+            pstmt.setString(1, userId);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static ShardRing.Shard shardByName(ShardRing ring, String name) {
+        ShardRing.Shard shard = ring.byName(name);
+        if (shard == null) System.out.println("Shard '" + name + "' is not in db.shards - skipping its users");
+        return shard;
+    }
+
+    private static Connection connectTo(ShardRing.Shard shard) throws SQLException {
+        return (shard == ShardRing.PRIMARY) ? DbRouter.primary() : DbRouter.connect(shard.url());
+    }
+}
@@ -0,0 +1,101 @@
+package chat_ui;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/*
+ * Consistent-hash ring that maps a user UUID to the shard holding their chat_history.
+ *
+ * Spec (-Ddb.shards, and DB_SHARDS for brain_api/shards.py - both sides MUST hash the same way):
+ *   s0=jdbc:mariadb://127.0.0.1:3307/telegram_bot_db,s1=jdbc:mariadb://127.0.0.1:3308/telegram_bot_db|2
+ * Every shard gets VIRTUAL_NODES * weight points on the ring at MD5("<name>#<i>"); a user belongs to the first point
+ * at or after MD5(userId). Adding a shard therefore only moves the users that land on ITS points (~1/N of them).
+ * Weight 0 = the shard is known (connections, overrides) but owns nothing - that's how a shard is drained before removal.
+ *
+ * The ring key is the NAME, not the URL, so a shard can move host without moving a single user.
+ * An empty spec = no sharding: everyone's history stays in the primary database.
+ */
+public class ShardRing {
+    public static final int VIRTUAL_NODES = 160; // Enough points that 2-8 shards get within a few % of an even split
+    public static final Shard PRIMARY = new Shard("primary", Database.URL, 0); // Where history lived before sharding
+
+    public record Shard(String name, String url, int weight) {}
+
+    private final List<Shard> shards;
+    private final TreeMap<Long, Shard> ring = new TreeMap<>();
+
+    public ShardRing(List<Shard> shards) {
+        this.shards = Collections.unmodifiableList(shards);
+        for (Shard shard : shards) {
+            for (int i = 0; i < VIRTUAL_NODES * shard.weight(); i++) {
+                this.ring.putIfAbsent(hash(shard.name() + "#" + i), shard); // A 64-bit collision is practically impossible, first one wins if it happens
+            }
+        }
+    }
+
+    public static ShardRing parse(String spec) {
+        List<Shard> shards = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            if (entry.isBlank()) continue;
+
+            String[] nameAndUrl = entry.trim().split("=", 2);
+            String[] urlAndWeight = nameAndUrl[1].split("\\|");
+            int weight = urlAndWeight.length > 1 ? Integer.parseInt(urlAndWeight[1]) : 1;
+            shards.add(new Shard(nameAndUrl[0], urlAndWeight[0], weight));
+        }
+        return new ShardRing(shards);
+    }
+
+    public boolean isEmpty() {
+        return this.ring.isEmpty();
+    }
+
+    public List<Shard> shards() {
+        return this.shards;
+    }
+
+    public Shard byName(String name) {
+        if (PRIMARY.name().equals(name)) return PRIMARY;
+        for (Shard shard : this.shards) {
+            if (shard.name().equals(name)) return shard;
+        }
+        return null;
+    }
+
+    public Shard shardFor(String userId) {
+        if (this.ring.isEmpty()) return PRIMARY;
+
+        Map.Entry<Long, Shard> owner = this.ring.ceilingEntry(hash(userId));
+        return (owner != null) ? owner.getValue() : this.ring.firstEntry().getValue(); // Past the last point = wrap around to the first
+    }
+
+    // First 8 bytes of MD5, big-endian, signed - the same as int.from_bytes(md5[:8], "big", signed=True) in Python
+    static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is required by every JRE", e);
+        }
+    }
+
+    // java chat_ui.ShardRing 100000 "s0=...,s1=...,s2=..."  -> how evenly random UUIDs spread over the ring
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        ShardRing ring = parse(args.length > 1 ? args[1] : System.getProperty("db.shards", "s0=a,s1=b,s2=c"));
+
+        Map<String, Integer> counts = new TreeMap<>();
+        for (int i = 0; i < users; i++) {
+            counts.merge(ring.shardFor(UUID.randomUUID().toString()).name(), 1, Integer::sum);
+        }
+        counts.forEach((name, count) -> System.out.printf("%-10s %8d users (%.1f%%)%n", name, count, 100.0 * count / users));
+    }
+}
@@ -0,0 +1,108 @@
+package chat_ui;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.mindrot.jbcrypt.BCrypt;
+
+/*
+ * Everything slow that used to happen before (or right after) the login dialog appeared now runs
+ * in the background WHILE the user is typing their password:
+ *   - DB: driver loading, first connection, schema version check
+ *   - HTTP: the shared HttpClient and a first connection to the Python server
+ *   - BCrypt: JIT-compiling the Blowfish code, so the real login check is not interpreted
+ * Once login succeeds we immediately prefetch the user's last conversation.
+ */
+public class Startup {
+    public static final String BENCHMARK_PROPERTY = "startup.benchmark"; // -Dstartup.benchmark=true -> print timings and exit once the login dialog is ready
+    private static final String WARMUP_URL = ChatClient.AI_SERVER_URL + "/cache-stats"; // Cheap GET - we only want the TCP connection in the pool
+
+    private static final ExecutorService WARMUP = Executors.newFixedThreadPool(3, r -> {
+        Thread t = new Thread(r, "startup-warmup");
+        t.setDaemon(true); // Never keep the app alive just for warm-up
+        return t;
+    });
+
+    private static final HttpClient HTTP = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(3)).build(); // Shared by every window/tab
+    private static CompletableFuture<Void> database = CompletableFuture.completedFuture(null);
+    private static CompletableFuture<Void> http = CompletableFuture.completedFuture(null);
+    private static CompletableFuture<Void> bcrypt = CompletableFuture.completedFuture(null);
+    private static volatile CompletableFuture<Prefetch> prefetch = null;
+
+    public record Prefetch(String userId, String conversationId, String transcript) {}
+
+    public static void begin() {
+        database = CompletableFuture.runAsync(Database::initialize, WARMUP); // Usually just one SELECT - DDL only runs when the schema version changes
+
+        http = CompletableFuture.runAsync(() -> {
+            HttpRequest ping = HttpRequest.newBuilder(URI.create(WARMUP_URL)).timeout(Duration.ofSeconds(3)).GET().build();
+            try {
+                HTTP.send(ping, HttpResponse.BodyHandlers.discarding());
+            } catch (Exception e) {
+                System.out.println("AI server not reachable yet: " + e.getMessage()); // Not fatal - the first real request will connect
+            }
+        }, WARMUP);
+
+        bcrypt = CompletableFuture.runAsync(() -> {
+            // Cost 4 is ~1ms a round, but runs the same code paths as cost 12, so the JIT compiles them
+            for (int i = 0; i < 20; i++) {
+                BCrypt.checkpw("warm-up", BCrypt.hashpw("warm-up", BCrypt.gensalt(4)));
+            }
+        }, WARMUP);
+    }
+
+    // Anything that touches the DB during login calls this first - only blocks if the user is faster than the warm-up
+    public static void awaitDatabase() {
+        database.join();
+    }
+
+    public static void awaitAll() {
+        CompletableFuture.allOf(database, http, bcrypt).join();
+    }
+
+    public static HttpClient httpClient() {
+        return HTTP;
+    }
+
+    // Called the moment authentication succeeds - runs while the "Welcome back" dialog is still on screen
+    public static void prefetch(String userId) {
+        prefetch = CompletableFuture.supplyAsync(() -> {
+            LocalHistoryStore local = LocalHistoryStore.forUser(userId); // Maps the on-disk log - milliseconds, no DB
+            if (local.isEmpty()) {
+                local.syncFromServer(); // First login on this machine - pull everything once
+            } else {
+                local.syncAsync(); // Show what we have now, catch up with the server in the background
+            }
+
+            String conversationId = local.latestConversationId();
+            String transcript = (conversationId == null) ? "" : local.transcript(conversationId);
+            return new Prefetch(userId, conversationId, transcript);
+        }, WARMUP);
+    }
+
+    public static Prefetch takePrefetch(String userId) {
+        CompletableFuture<Prefetch> pending = prefetch;
+        prefetch = null;
+
+        if (pending != null) {
+            Prefetch result = pending.join();
+            if (result.userId().equals(userId)) return result;
+        }
+        return new Prefetch(userId, LocalHistoryStore.forUser(userId).latestConversationId(), ""); // Nothing prefetched (e.g. registration flow)
+    }
+
+    public static long millisSinceJvmStart() {
+        return System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+
+    public static boolean isBenchmark() {
+        return Boolean.getBoolean(BENCHMARK_PROPERTY);
+    }
+}
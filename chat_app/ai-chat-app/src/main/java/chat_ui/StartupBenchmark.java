@@ -0,0 +1,75 @@
+package chat_ui;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * Launches the app N times in fresh JVMs with -Dstartup.benchmark=true and reports
+ *   TTI  = JVM start -> login dialog on screen (time to interactive)
+ *   WARM = JVM start -> DB check, HTTP client and BCrypt warm-up all finished
+ * Any extra arguments are passed to the child JVM, e.g. to compare with an AppCDS archive:
+ *
+ *   java -cp <classpath> chat_ui.StartupBenchmark 10
+ *   java -cp <classpath> chat_ui.StartupBenchmark 10 -XX:SharedArchiveFile=target/doctorbot.jsa
+ *
+ * Needs a display (the login dialog is real) and the same DB/AI server as a normal run.
+ */
+public class StartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        List<String> jvmFlags = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Long> tti = new ArrayList<>();
+        List<Long> warm = new ArrayList<>();
+
+        for (int run = 1; run <= runs; run++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(jvmFlags);
+            command.add("-D" + Startup.BENCHMARK_PROPERTY + "=true");
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ChatWindow.class.getName());
+
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (!line.startsWith("STARTUP_TTI_MS=")) continue;
+
+                    String[] parts = line.split(" ");
+                    tti.add(Long.parseLong(parts[0].substring("STARTUP_TTI_MS=".length())));
+                    warm.add(Long.parseLong(parts[1].substring("STARTUP_WARM_MS=".length())));
+                    System.out.println("Run " + run + ": " + line);
+                }
+            }
+            process.waitFor();
+        }
+
+        if (tti.isEmpty()) {
+            System.err.println("No timings reported - is a display available and does the app start normally?");
+            return;
+        }
+        System.out.printf("Time to interactive: median %d ms, min %d ms, max %d ms%n", median(tti), min(tti), max(tti));
+        System.out.printf("Warm-up complete:    median %d ms, min %d ms, max %d ms%n", median(warm), min(warm), max(warm));
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        sorted.sort(null);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    private static long min(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).min().orElse(0);
+    }
+
+    private static long max(List<Long> values) {
+        return values.stream().mapToLong(Long::longValue).max().orElse(0);
+    }
+}
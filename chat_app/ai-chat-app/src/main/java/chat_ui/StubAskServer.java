@@ -0,0 +1,349 @@
+package chat_ui;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.UnauthorizedResponse;
+
+/*
+ * Stand-in for brain_api/main.py during load tests - same endpoints, same persistence, but no model.
+ * The "model" waits firstTokenMs, then streams `tokens` words tokenMs apart, then saves both turns like the real server.
+ * Requests need the same "Authorization: Bearer <session token>" as brain_api (start it with the same -Dsession.secret).
+ * It honours the same generation controls: length / max_new_tokens cap the words, stop ends the reply before the first
+ * stop sequence, deadline_ms ends the reply, and POST /cancel (or the client going away) stops it before the next word -
+ * /generation-stats counts what that saved.
+ *
+ *   java -cp <classpath> -Ddb.url=jdbc:mariadb://127.0.0.1:3307/loadtest_db chat_ui.StubAskServer port=8000 firstTokenMs=400 tokens=40 tokenMs=25
+ */
+public class StubAskServer {
+    private static final Pattern JSON_FIELD = Pattern.compile("\"(userid|conversation_id|message|length|request_id)\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final Pattern JSON_NUMBER = Pattern.compile("\"(max_new_tokens|deadline_ms)\"\\s*:\\s*(\\d+)");
+    private static final Pattern JSON_STOP = Pattern.compile("\"stop\"\\s*:\\s*\\[((?:\\s*\"(?:[^\"\\\\]|\\\\.)*\"\\s*,?)*)\\s*]");
+    private static final Pattern JSON_STRING = Pattern.compile("\"((?:[^\"\\\\]|\\\\.)*)\"");
+    private static final String[] WORDS = {"Based", "on", "your", "symptoms,", "it", "could", "be", "a", "mild", "airway", "inflammation.", "Please", "monitor", "your", "breathing", "and", "see", "a", "doctor", "if", "it", "gets", "worse."};
+    private static final Map<String, Integer> LENGTH_PRESETS = Map.of("short", 40, "normal", 60, "long", 200); // Same as generation_control.py
+    private static final int MAX_NEW_TOKENS = 400;
+    private static final long MAX_DEADLINE_MS = 60_000;
+    private static final int MAX_STOP_SEQUENCES = 4;
+    private static final int MAX_STOP_CHARS = 40;
+
+    private static final Map<String, Generation> ACTIVE = new ConcurrentHashMap<>(); // "user/conversation" -> reply being generated
+    private static final Map<String, LongAdder> OUTCOMES = new ConcurrentHashMap<>();
+    private static final LongAdder GENERATED_TOKENS = new LongAdder();
+    private static final LongAdder SAVED_TOKENS = new LongAdder();
+    private static final LongAdder CANCEL_NANOS = new LongAdder();
+    private static final AtomicLong CANCEL_MAX_NANOS = new AtomicLong();
+
+    // One reply: its budget, deadline and the flag /cancel sets
+    private static final class Generation {
+        final String key;
+        final int budget;
+        final List<String> stop;
+        final long deadline;
+        volatile String reason; // cancelled | stop | deadline - null for a natural end
+        volatile long cancelledAt;
+        int tokens;
+
+        Generation(String key, int budget, List<String> stop, long deadline) {
+            this.key = key;
+            this.budget = budget;
+            this.stop = stop;
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            if (this.reason != null) return;
+            this.cancelledAt = System.nanoTime();
+            this.reason = "cancelled";
+        }
+    }
+
+    // generation_control.StopFilter: passes words through but holds back what may be the start of a stop sequence
+    static final class StopFilter {
+        private final List<String> stop;
+        private String pending = "";
+        boolean hit;
+
+        StopFilter(List<String> stop) {
+            this.stop = stop;
+        }
+
+        String feed(String chunk) {
+            if (this.hit) return "";
+            if (this.stop.isEmpty()) return chunk;
+
+            this.pending += chunk;
+            int cut = firstStop(this.pending, this.stop);
+            if (cut >= 0) {
+                this.hit = true;
+                String out = this.pending.substring(0, cut);
+                this.pending = "";
+                return out;
+            }
+
+            int hold = 0;
+            for (String s : this.stop) {
+                for (int n = 1; n < s.length(); n++) {
+                    if (this.pending.endsWith(s.substring(0, n))) hold = Math.max(hold, n);
+                }
+            }
+            String out = this.pending.substring(0, this.pending.length() - hold);
+            this.pending = this.pending.substring(out.length());
+            return out;
+        }
+
+        String flush() {
+            String out = this.hit ? "" : this.pending;
+            this.pending = "";
+            return out;
+        }
+    }
+
+    // Where the earliest stop sequence starts in text, -1 if none does (generation_control.Generation.trim)
+    static int firstStop(String text, List<String> stop) {
+        int cut = -1;
+        for (String s : stop) {
+            int i = text.indexOf(s);
+            if (i >= 0 && (cut < 0 || i < cut)) cut = i;
+        }
+        return cut;
+    }
+
+    public static void main(String[] args) {
+        LoadGenerator.Settings settings = LoadGenerator.Settings.parse(args);
+        int port = settings.getInt("port", 8000);
+        long firstTokenMs = settings.getInt("firstTokenMs", 400);
+        int tokens = settings.getInt("tokens", 40);
+        long tokenMs = settings.getInt("tokenMs", 25);
+        boolean persist = settings.getBoolean("persist", true); // Save turns to the DB like the real server does
+
+        Javalin app = Javalin.create(config -> config.useVirtualThreads = true) // Every streamed reply sleeps - don't let that eat Jetty's thread pool
+            .get("/cache-stats", ctx -> ctx.contentType("application/json").result("{}"))
+            .get("/generation-stats", ctx -> ctx.contentType("application/json").result(stats()))
+            .post("/cancel", ctx -> {
+                String[] request = authorized(ctx); // Only the session's own replies
+                String scope = (request[1] != null) ? request[1] : request[4];
+                int cancelled = 0;
+                for (Generation generation : ACTIVE.values()) {
+                    if (generation.key.equals(request[0] + "/" + scope) || (scope == null && generation.key.startsWith(request[0] + "/"))) {
+                        generation.cancel();
+                        cancelled++;
+                    }
+                }
+                ctx.contentType("application/json").result("{\"cancelled\": " + cancelled + "}");
+            })
+            .post("/ask/stream", ctx -> {
+                String[] request = authorized(ctx);
+                Generation generation = start(ctx.body(), request);
+                ctx.contentType("text/plain; charset=utf-8");
+
+                StringBuilder reply = new StringBuilder();
+                OutputStream out = ctx.outputStream();
+                StopFilter stops = new StopFilter(generation.stop); // The client never sees a stop sequence, or half of one
+                try {
+                    Thread.sleep(jitter(firstTokenMs)); // Prompt processing
+
+                    for (int i = 0; i < Math.min(tokens, generation.budget) && running(generation); i++) {
+                        String token = stops.feed((i == 0 ? "" : " ") + WORDS[i % WORDS.length]);
+                        generation.tokens++;
+                        if (stops.hit) generation.reason = "stop";
+                        if (!send(out, token, reply)) {
+                            generation.cancel(); // brain_api notices the same way - on the next write
+                            break;
+                        }
+                        if (stops.hit) break;
+                        Thread.sleep(jitter(tokenMs));
+                    }
+                    if (!"cancelled".equals(generation.reason) && !send(out, stops.flush(), reply)) generation.cancel();
+                } finally {
+                    finish(generation);
+                }
+
+                if (persist && !"cancelled".equals(generation.reason)) Database.saveTurn(request[0], request[1], request[2], reply.toString());
+            })
+            .post("/ask", ctx -> {
+                String[] request = authorized(ctx);
+                Generation generation = start(ctx.body(), request);
+                String reply = "Based on your symptoms, please monitor your breathing.";
+                try {
+                    Thread.sleep(jitter(firstTokenMs));
+                    for (int i = 0; i < Math.min(tokens, generation.budget) && running(generation); i++) { // Non-streaming = the client waits for the whole reply
+                        generation.tokens++;
+                        Thread.sleep(jitter(tokenMs));
+                    }
+                    int cut = firstStop(reply, generation.stop);
+                    if (cut >= 0 && generation.reason == null) {
+                        reply = reply.substring(0, cut);
+                        generation.reason = "stop";
+                    }
+                } finally {
+                    finish(generation);
+                }
+
+                boolean cancelled = "cancelled".equals(generation.reason);
+                if (persist && request[2] != null && !cancelled) Database.saveTurn(request[0], request[1], request[2], reply);
+                ctx.contentType("application/json").result("{\"reply\":\"" + (cancelled ? "" : reply) + "\",\"finish_reason\":\"" + outcome(generation) + "\"}");
+            })
+            .start(port);
+
+        System.out.printf("Stub /ask server on port %d (first token %d ms, %d tokens every %d ms, persist=%s)%n", port, firstTokenMs, tokens, tokenMs, persist);
+        Runtime.getRuntime().addShutdownHook(new Thread(app::stop));
+    }
+
+    // Same rule as brain_api: the user comes from the session token; a body userid must match it
+    private static String[] authorized(Context ctx) {
+        String header = ctx.header("Authorization");
+        String user = (header != null && header.startsWith("Bearer ")) ? SessionStore.userOf(header.substring(7).trim()) : null;
+        if (user == null) throw new UnauthorizedResponse("Invalid or expired session");
+
+        String[] request = parse(ctx.body());
+        if (request[0] != null && !request[0].equals(user)) throw new ForbiddenResponse("userid does not match the session");
+        request[0] = user;
+        return request;
+    }
+
+    // Budget and deadline from the request; a newer message in the same conversation stops the older reply
+    private static Generation start(String body, String[] request) {
+        Map<String, Integer> numbers = numbers(body);
+        int budget = numbers.containsKey("max_new_tokens")
+            ? Math.max(1, Math.min(MAX_NEW_TOKENS, numbers.get("max_new_tokens")))
+            : LENGTH_PRESETS.getOrDefault(request[3] == null ? "normal" : request[3], LENGTH_PRESETS.get("normal"));
+        long deadlineMs = Math.min(numbers.getOrDefault("deadline_ms", 0) > 0 ? numbers.get("deadline_ms") : MAX_DEADLINE_MS, MAX_DEADLINE_MS);
+
+        String scope = (request[1] != null) ? request[1] : (request[4] != null) ? request[4] : Long.toString(System.nanoTime());
+        Generation generation = new Generation(request[0] + "/" + scope, budget, stops(body), System.nanoTime() + deadlineMs * 1_000_000);
+        Generation previous = ACTIVE.put(generation.key, generation);
+        if (previous != null) previous.cancel();
+        return generation;
+    }
+
+    private static boolean running(Generation generation) {
+        if (generation.reason == null && System.nanoTime() > generation.deadline) generation.reason = "deadline";
+        return generation.reason == null;
+    }
+
+    private static void finish(Generation generation) {
+        ACTIVE.remove(generation.key, generation);
+        OUTCOMES.computeIfAbsent(outcome(generation), k -> new LongAdder()).increment();
+        GENERATED_TOKENS.add(generation.tokens);
+        if (generation.reason != null) SAVED_TOKENS.add(Math.max(0, generation.budget - generation.tokens));
+        if ("cancelled".equals(generation.reason)) {
+            long nanos = System.nanoTime() - generation.cancelledAt; // Cancel -> worker free, at most one tokenMs (or the prompt's firstTokenMs)
+            CANCEL_NANOS.add(nanos);
+            CANCEL_MAX_NANOS.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    private static String outcome(Generation generation) {
+        return (generation.reason != null) ? generation.reason : (generation.tokens >= generation.budget) ? "length" : "eos";
+    }
+
+    private static String stats() {
+        long cancelled = OUTCOMES.containsKey("cancelled") ? OUTCOMES.get("cancelled").sum() : 0;
+        StringBuilder outcomes = new StringBuilder();
+        OUTCOMES.forEach((outcome, count) -> outcomes.append(outcomes.length() > 0 ? ", " : "").append('"').append(outcome).append("\": ").append(count.sum()));
+        return String.format("{\"in_flight\": %d, \"outcomes\": {%s}, \"generated_tokens\": %d, \"saved_tokens\": %d, \"avg_cancel_ms\": %.1f, \"max_cancel_ms\": %.1f}",
+            ACTIVE.size(), outcomes, GENERATED_TOKENS.sum(), SAVED_TOKENS.sum(),
+            cancelled > 0 ? CANCEL_NANOS.sum() / 1e6 / cancelled : 0.0, CANCEL_MAX_NANOS.get() / 1e6);
+    }
+
+    // { userid, conversation_id, message, length, request_id } - a regex is plenty for the flat strings our clients send
+    private static String[] parse(String body) {
+        String[] fields = new String[5];
+        Matcher m = JSON_FIELD.matcher(body);
+        while (m.find()) {
+            String value = unescape(m.group(2));
+            switch (m.group(1)) {
+                case "userid" -> fields[0] = value;
+                case "conversation_id" -> fields[1] = value;
+                case "message" -> fields[2] = value;
+                case "length" -> fields[3] = value;
+                case "request_id" -> fields[4] = value;
+            }
+        }
+        return fields;
+    }
+
+    // One left-to-right pass, so an escaped backslash followed by 'n' (JSON \\n) stays a backslash and an 'n'
+    static String unescape(String json) {
+        if (json.indexOf('\\') < 0) return json;
+        StringBuilder out = new StringBuilder(json.length());
+        for (int i = 0; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c != '\\' || i + 1 == json.length()) {
+                out.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'n' -> out.append('\n');
+                case 'r' -> out.append('\r');
+                case 't' -> out.append('\t');
+                case 'b' -> out.append('\b');
+                case 'f' -> out.append('\f');
+                case 'u' -> {
+                    String hex = (i + 4 < json.length()) ? json.substring(i + 1, i + 5) : "";
+                    if (hex.matches("[0-9a-fA-F]{4}")) {
+                        out.append((char) Integer.parseInt(hex, 16));
+                        i += 4;
+                    } else {
+                        out.append('u'); // Not valid JSON - keep what was sent
+                    }
+                }
+                default -> out.append(escaped); // \" \\ \/
+            }
+        }
+        return out.toString();
+    }
+
+    private static Map<String, Integer> numbers(String body) {
+        Map<String, Integer> numbers = new HashMap<>();
+        Matcher m = JSON_NUMBER.matcher(body);
+        while (m.find()) numbers.put(m.group(1), Integer.parseInt(m.group(2)));
+        return numbers;
+    }
+
+    // Up to MAX_STOP_SEQUENCES non-empty strings of at most MAX_STOP_CHARS, like generation_control.stop_sequences
+    static List<String> stops(String body) {
+        List<String> stop = new ArrayList<>();
+        Matcher array = JSON_STOP.matcher(body);
+        if (!array.find()) return stop;
+        Matcher m = JSON_STRING.matcher(array.group(1));
+        while (m.find() && stop.size() < MAX_STOP_SEQUENCES) {
+            String s = unescape(m.group(1));
+            if (!s.isEmpty()) stop.add(s.length() > MAX_STOP_CHARS ? s.substring(0, MAX_STOP_CHARS) : s);
+        }
+        return stop;
+    }
+
+    // Writes and flushes right away, like the real TextIteratorStreamer - false when the client is gone
+    private static boolean send(OutputStream out, String text, StringBuilder reply) {
+        if (text.isEmpty()) return true;
+        try {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException clientGone) {
+            return false;
+        }
+        reply.append(text);
+        return true;
+    }
+
+    private static long jitter(long ms) {
+        return ms <= 0 ? 0 : (long) (ms * ThreadLocalRandom.current().nextDouble(0.8, 1.2)); // +-20% so requests don't move in lockstep
+    }
+}
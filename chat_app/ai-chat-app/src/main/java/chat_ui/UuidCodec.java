@@ -0,0 +1,57 @@
+package chat_ui;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/*
+ * The two forms of a user id. The app, the session tokens, the shard ring and brain_api all keep using the 36-character
+ * string; the database stores the same 128 bits as BINARY(16) (chat_users.user_key, chat_history.user_key).
+ * Nothing is renumbered - toBytes(s) is exactly MariaDB's UNHEX(REPLACE(s, '-', '')), so SQL backfills and Python's
+ * uuid.UUID(s).bytes produce the same key.
+ *
+ * New accounts get a version 7 UUID: the first 48 bits are the creation time in milliseconds, so new keys land at the
+ * right-hand end of the chat_users index instead of on a random page. Existing (version 4) ids keep their value.
+ */
+public final class UuidCodec {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private UuidCodec() {}
+
+    public static String newTimeOrdered() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+
+        long millis = System.currentTimeMillis();
+        for (int i = 0; i < 6; i++) {
+            bytes[i] = (byte) (millis >>> (40 - 8 * i)); // 48-bit big-endian timestamp
+        }
+        bytes[6] = (byte) ((bytes[6] & 0x0F) | 0x70); // Version 7
+        bytes[8] = (byte) ((bytes[8] & 0x3F) | 0x80); // IETF variant
+        return fromBytes(bytes);
+    }
+
+    // null for anything that is not a UUID (hand-made test ids) - those rows simply keep a NULL user_key
+    public static byte[] toBytes(String uuid) {
+        if (!isUuid(uuid)) return null;
+        UUID parsed = UUID.fromString(uuid);
+        return ByteBuffer.allocate(16).putLong(parsed.getMostSignificantBits()).putLong(parsed.getLeastSignificantBits()).array();
+    }
+
+    public static String fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length != 16) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+
+    // Strict 8-4-4-4-12 hex - UUID.fromString alone also accepts shortened groups like "1-2-3-4-5"
+    public static boolean isUuid(String value) {
+        if (value == null || value.length() != 36) return false;
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            boolean dash = (i == 8 || i == 13 || i == 18 || i == 23);
+            if (dash ? c != '-' : Character.digit(c, 16) < 0) return false;
+        }
+        return true;
+    }
+}
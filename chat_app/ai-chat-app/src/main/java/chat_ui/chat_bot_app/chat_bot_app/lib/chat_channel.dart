@@ -0,0 +1,95 @@
+import 'dart:async';
+import 'dart:convert';
+import 'dart:io';
+
+import 'package:http/http.dart' as http;
+
+/// Persistent chat connection to the Java ChatGateway (see ChatGateway.java for the frame format).
+///
+/// Only the new message goes up; the reply comes back as token frames on the same socket, together with
+/// presence and typing events from the user's other devices. dart:io offers permessage-deflate by default,
+/// so the gateway compresses everything it sends us. Not available on Flutter web (dart:io).
+class ChatChannel {
+  ChatChannel._(this.userId, this.userName, this.sessionToken, this._socket) {
+    _socket.listen(_onFrame, onDone: _onClosed, onError: (_) => _onClosed());
+  }
+
+  final String userId;
+  final String userName;
+  final String sessionToken;
+  final WebSocket _socket;
+
+  final _events = StreamController<Map<String, dynamic>>.broadcast();
+  final _replies = <String, StreamController<String>>{}; // Our own questions by frame id
+  int _nextId = 0;
+
+  /// Presence, typing and turns asked on other devices - everything that is not a reply to our own [ask].
+  Stream<Map<String, dynamic>> get events => _events.stream;
+
+  /// Logs in (the one password check) and opens the chat socket with the session token.
+  static Future<ChatChannel> login(String gatewayUrl, String email, String password) async {
+    final response = await http.post(
+      Uri.parse('$gatewayUrl/login'),
+      headers: {'Content-Type': 'application/json'},
+      body: jsonEncode({'email': email, 'password': password}),
+    );
+    final body = jsonDecode(response.body) as Map<String, dynamic>;
+    if (response.statusCode != 200) {
+      throw Exception(body['message'] ?? 'Login failed');
+    }
+
+    final token = body['session_token'] as String;
+    final socket = await WebSocket.connect(
+      '${gatewayUrl.replaceFirst(RegExp('^http'), 'ws')}/chat?token=${Uri.encodeQueryComponent(token)}',
+      compression: CompressionOptions.compressionDefault, // permessage-deflate
+    );
+    socket.pingInterval = const Duration(seconds: 30);
+    return ChatChannel._(body['user_uuid'] as String, body['user_name'] as String? ?? '', token, socket);
+  }
+
+  /// Sends one new message; the returned stream yields the reply as it is generated and closes when it is complete.
+  Stream<String> ask(String conversationId, String message, {bool firstTurn = false}) {
+    final id = '${DateTime.now().microsecondsSinceEpoch}-${_nextId++}';
+    final reply = StreamController<String>();
+    _replies[id] = reply;
+    _send({'type': 'ask', 'id': id, 'conversation': conversationId, 'message': message, 'first': firstTurn});
+    return reply.stream;
+  }
+
+  /// Call while the user types - throttle it, one event every few seconds is enough.
+  void typing(String conversationId, {bool typing = true}) {
+    _send({'type': 'typing', 'conversation': conversationId, 'typing': typing});
+  }
+
+  /// Revokes the session on the gateway; the gateway then closes the socket.
+  void logout() => _send({'type': 'logout'});
+
+  void _send(Map<String, dynamic> frame) => _socket.add(jsonEncode(frame));
+
+  void _onFrame(dynamic data) {
+    final frame = jsonDecode(data as String) as Map<String, dynamic>;
+    final reply = _replies[frame['id']];
+
+    switch (frame['type']) {
+      case 'token' when reply != null:
+        reply.add(frame['text'] as String);
+      case 'done' when reply != null:
+        _replies.remove(frame['id'])!.close();
+      case 'error' when reply != null:
+        reply.addError(Exception(frame['message']));
+        _replies.remove(frame['id'])!.close();
+      default:
+        _events.add(frame);
+    }
+  }
+
+  void _onClosed() {
+    for (final reply in _replies.values) {
+      reply.addError(Exception('Connection closed (${_socket.closeCode} ${_socket.closeReason})'));
+      reply.close();
+    }
+    _replies.clear();
+    _events.add({'type': 'closed', 'code': _socket.closeCode, 'message': _socket.closeReason});
+    _events.close();
+  }
+}
@@ -0,0 +1,65 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class DbRouterTest {
+
+    static DbRouter.Replica replica(String url, int weight, boolean replicating, Long lag) {
+        DbRouter.Replica replica = new DbRouter.Replica(url, weight);
+        replica.update(replicating, lag);
+        return replica;
+    }
+
+    @Test
+    void parsesUrlsAndWeights() {
+        List<DbRouter.Replica> replicas = DbRouter.parseReplicas("jdbc:mariadb://a:3307/db|3, jdbc:mariadb://b:3308/db ,");
+        assertEquals(2, replicas.size());
+        assertEquals("jdbc:mariadb://a:3307/db", replicas.get(0).url);
+        assertEquals(3, replicas.get(0).weight);
+        assertEquals("jdbc:mariadb://b:3308/db", replicas.get(1).url);
+        assertEquals(1, replicas.get(1).weight);
+        assertTrue(DbRouter.parseReplicas("").isEmpty());
+    }
+
+    @Test
+    void classifiesReplicaHealth() {
+        assertEquals(0, new DbRouter.Replica("unchecked", 1).effectiveWeight(), 0); // No reads before the first check
+        assertEquals(0, replica("not a replica", 1, false, null).effectiveWeight(), 0);
+        assertEquals(0, replica("replication stopped", 1, true, null).effectiveWeight(), 0);
+        assertEquals(0, replica("too far behind", 1, true, 6L).effectiveWeight(), 0); // db.replica.maxLagSeconds defaults to 5
+        assertEquals(4.0, replica("in sync", 4, true, 0L).effectiveWeight(), 1e-9);
+        assertEquals(1.0, replica("lagging", 4, true, 3L).effectiveWeight(), 1e-9); // weight / (1 + lag)
+    }
+
+    @Test
+    void noUsableReplicaMeansPrimary() {
+        List<DbRouter.Replica> replicas = List.of(replica("down", 1, false, null), replica("stopped", 1, true, null));
+        assertNull(DbRouter.pickReplica(replicas, Long.MAX_VALUE, 0.5));
+        assertNull(DbRouter.pickReplica(List.of(), Long.MAX_VALUE, 0.5));
+    }
+
+    @Test
+    void recentWriterStaysOnPrimaryUntilTheReplicaCaughtUp() {
+        List<DbRouter.Replica> replicas = List.of(replica("lag 2s", 1, true, 2L));
+        assertNull(DbRouter.pickReplica(replicas, 1000, 0.5)); // Wrote 1 s ago - the replica may not have it yet
+        assertNull(DbRouter.pickReplica(replicas, 4000, 0.5)); // 2 s lag + up to one 2 s check interval
+        assertSame(replicas.get(0), DbRouter.pickReplica(replicas, 4001, 0.5));
+    }
+
+    @Test
+    void picksInProportionToEffectiveWeight() {
+        DbRouter.Replica heavy = replica("heavy", 3, true, 0L);
+        DbRouter.Replica light = replica("light", 1, true, 0L);
+        DbRouter.Replica down = replica("down", 100, false, null);
+        List<DbRouter.Replica> replicas = List.of(down, heavy, light);
+
+        assertSame(heavy, DbRouter.pickReplica(replicas, Long.MAX_VALUE, 0.0));
+        assertSame(heavy, DbRouter.pickReplica(replicas, Long.MAX_VALUE, 0.74));
+        assertSame(light, DbRouter.pickReplica(replicas, Long.MAX_VALUE, 0.76));
+        assertSame(light, DbRouter.pickReplica(replicas, Long.MAX_VALUE, 0.999));
+    }
+}
@@ -0,0 +1,92 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LocalHistoryStoreTest {
+
+    static final String USER = "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b";
+
+    @TempDir
+    Path root;
+
+    static Database.HistoryRow row(long id, String conversation, String sender, String text) {
+        return new Database.HistoryRow(id, conversation, sender, text);
+    }
+
+    @Test
+    void reopenedLogHasTheSameConversations() {
+        LocalHistoryStore store = new LocalHistoryStore(USER, this.root);
+        store.append(row(1, "c1", USER, "hello"));
+        store.append(row(2, "c1", "DoctorBot", "hi, how can I help?"));
+        store.append(row(3, "c2", USER, "ünïcode ✓"));
+        store.append(row(2, "c1", "DoctorBot", "duplicate - ignored"));
+
+        LocalHistoryStore reopened = new LocalHistoryStore(USER, this.root);
+        assertEquals(USER + ": hello\n\nDoctorBot: hi, how can I help?\n\n", reopened.transcript("c1"));
+        assertEquals(USER + ": ünïcode ✓\n\n", reopened.transcript("c2"));
+        assertEquals("c2", reopened.latestConversationId());
+    }
+
+    @Test
+    void tornTailIsDroppedAndAppendsContinueAfterIt() throws Exception {
+        LocalHistoryStore store = new LocalHistoryStore(USER, this.root);
+        store.append(row(1, "c1", USER, "first"));
+        store.append(row(2, "c1", "DoctorBot", "second"));
+
+        Path log = this.root.resolve(USER + ".log");
+        long intact = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(intact - 3); // A crash in the middle of writing record 2
+        }
+
+        LocalHistoryStore recovered = new LocalHistoryStore(USER, this.root);
+        assertEquals(USER + ": first\n\n", recovered.transcript("c1"));
+        recovered.append(row(2, "c1", "DoctorBot", "second"));
+
+        assertEquals(intact, Files.size(log)); // The torn bytes were cut, not left in front of the new record
+        assertEquals(USER + ": first\n\nDoctorBot: second\n\n", new LocalHistoryStore(USER, this.root).transcript("c1"));
+    }
+
+    @Test
+    void writeThroughDoesNotMoveTheSyncMark() {
+        LocalHistoryStore store = new LocalHistoryStore(USER, this.root);
+        store.merge("s0", List.of(row(10, "c1", USER, "synced"), row(11, "c1", "DoctorBot", "synced too")));
+        store.append(row(50, "c1", USER, "write-through")); // Ids 12..49 may still be on their way from the server
+        assertEquals(11, store.highWaterMark());
+
+        LocalHistoryStore reopened = new LocalHistoryStore(USER, this.root);
+        assertEquals(11, reopened.highWaterMark());
+        assertTrue(reopened.transcript("c1").contains("write-through"));
+    }
+
+    @Test
+    void logWithoutMarkSyncsFromTheStart() throws Exception {
+        LocalHistoryStore store = new LocalHistoryStore(USER, this.root);
+        store.merge("s0", List.of(row(10, "c1", USER, "synced")));
+        Files.delete(this.root.resolve(USER + ".mark"));
+
+        assertEquals(0, new LocalHistoryStore(USER, this.root).highWaterMark());
+    }
+
+    @Test
+    void filesAreOwnerOnly() throws Exception {
+        if (!this.root.getFileSystem().supportedFileAttributeViews().contains("posix")) return;
+        LocalHistoryStore store = new LocalHistoryStore(USER, this.root);
+        store.merge("s0", List.of(row(1, "c1", USER, "private")));
+
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(this.root)));
+        for (String suffix : new String[] {".log", ".shard", ".mark"}) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(this.root.resolve(USER + suffix))), suffix);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class SemanticCacheTest {
+
+    static SemanticCache cache() {
+        return new SemanticCache(new SemanticCache.HashingEmbedder(256), 100, 0.90);
+    }
+
+    @Test
+    void rewordingWithTheSameWordsHits() {
+        SemanticCache cache = cache();
+        cache.put("I have had a dry cough for two weeks, should I be worried?", "answer");
+        assertEquals("answer", cache.lookup("Dry cough for two weeks - should I be worried?"));
+        assertEquals("answer", cache.lookup("dry coughs for two weeks, worried"));
+    }
+
+    @Test
+    void similarButDifferentQuestionMisses() {
+        SemanticCache cache = cache();
+        cache.put("Is coughing up yellow mucus a sign of infection?", "answer");
+        assertNull(cache.lookup("Is coughing up blood a sign of infection?"));
+        assertNull(cache.lookup("Is chest pain after climbing stairs normal?"));
+    }
+
+    @Test
+    void differentWordOrderHits() {
+        SemanticCache cache = cache();
+        cache.put("Is shortness of breath after climbing stairs normal?", "answer");
+        assertEquals("answer", cache.lookup("is it normal to have shortness of breath after climbing the stairs"));
+    }
+
+    @Test
+    void similarityAloneDoesNotServeADifferentSymptom() {
+        SemanticCache loose = new SemanticCache(new SemanticCache.HashingEmbedder(256), 100, 0.5); // Similar enough on its own
+        loose.put("Is coughing up yellow mucus a sign of infection?", "answer");
+        assertNull(loose.lookup("Is coughing up blood a sign of infection?"));
+        assertNull(loose.lookup("Is coughing up green mucus a sign of infection?"));
+        assertEquals("answer", loose.lookup("coughing up yellow mucus - sign of an infection?"));
+    }
+
+    @Test
+    void negationMustMatch() {
+        SemanticCache loose = new SemanticCache(new SemanticCache.HashingEmbedder(256), 100, 0.5);
+        loose.put("I have a cough and a fever, should I see a doctor?", "answer");
+        assertNull(loose.lookup("I have a cough but no fever, should I see a doctor?"));
+        assertNull(loose.lookup("I have a cough and I don't have a fever, should I see a doctor?"));
+    }
+
+    @Test
+    void safetyTermsAreStemsAndNegations() {
+        assertEquals("blood cough", SemanticCache.safetyTerms("Coughing up BLOOD?"));
+        assertEquals("fever not", SemanticCache.safetyTerms("I don\u2019t have a fever"));
+        assertEquals(SemanticCache.safetyTerms("wheezing at night"), SemanticCache.safetyTerms("What does it mean when I wheeze at night"));
+        assertEquals("", SemanticCache.safetyTerms("How long until my appointment?"));
+    }
+
+    @Test
+    void usersHaveTheirOwnCache() {
+        SemanticCache alice = SemanticCache.forUser("alice-" + System.nanoTime());
+        SemanticCache bob = SemanticCache.forUser("bob-" + System.nanoTime());
+        assertNotSame(alice, bob);
+
+        alice.put("What does wheezing at night mean?", "Given your asthma, ...");
+        assertEquals("Given your asthma, ...", alice.lookup("What does wheezing at night mean?"));
+        assertNull(bob.lookup("What does wheezing at night mean?"));
+    }
+
+    @Test
+    void oversizedAnswersAreNotCached() {
+        SemanticCache cache = cache();
+        cache.put("question", "x".repeat(SemanticCache.MAX_ANSWER_CHARS + 1));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,62 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Runs with -Dsession.secret=test-secret (surefire config in pom.xml). VECTOR is also checked by
+ * brain_api/tests/test_sessions.py, so both sides agree on the token format and signature.
+ */
+class SessionStoreTest {
+
+    static final String USER = "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b";
+    static final long ISSUED_AT = 1760000000L * 1000;
+    static final String VECTOR = "c2Vzc2lvbi1pZC1mb3ItdGVzdHM." + USER + ".1760000000.Ees6zT07zPiGXsWxeXffv250nmYIcsXbBYtZZiVB-u4";
+
+    @Test
+    void issuedTokenValidatesUntilRevoked() {
+        String token = SessionStore.issue(USER);
+        assertEquals(USER, SessionStore.validate(token));
+        assertEquals(USER, SessionStore.userOf(token));
+
+        assertTrue(SessionStore.revoke(token));
+        assertNull(SessionStore.validate(token));
+        assertFalse(SessionStore.revoke(token));
+    }
+
+    @Test
+    void revokeAllOnlyHitsThatUser() {
+        String first = SessionStore.issue(USER);
+        String second = SessionStore.issue(USER);
+        String other = SessionStore.issue("0190a1b2-0000-7000-8000-000000000000");
+
+        assertEquals(2, SessionStore.revokeAll(USER));
+        assertNull(SessionStore.validate(first));
+        assertNull(SessionStore.validate(second));
+        assertNotNull(SessionStore.validate(other));
+        SessionStore.revoke(other);
+    }
+
+    @Test
+    void sharedVectorIsAcceptedWithinItsLifetime() {
+        assertEquals(USER, SessionStore.userOf(VECTOR, ISSUED_AT + 1000));
+        assertNull(SessionStore.userOf(VECTOR, ISSUED_AT + SessionStore.MAX_LIFETIME.toMillis() + 1000));
+    }
+
+    @Test
+    void tamperedTokensAreRejected() {
+        long now = ISSUED_AT + 1000;
+        assertNull(SessionStore.userOf(VECTOR.replace(USER, "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5c"), now)); // Other user, same signature
+        assertNull(SessionStore.userOf(VECTOR.replace(".1760000000.", ".1760000001."), now));
+        assertNull(SessionStore.userOf(VECTOR.substring(0, VECTOR.length() - 1) + "v", now));
+        assertNull(SessionStore.userOf(VECTOR.substring(0, VECTOR.lastIndexOf('.')), now)); // No signature
+        assertNull(SessionStore.userOf("", now));
+        assertNull(SessionStore.userOf(null, now));
+    }
+
+    @Test
+    void authorizationHeaderIsBearer() {
+        assertEquals("Bearer abc", SessionStore.authorizationHeader("abc"));
+    }
+}
@@ -0,0 +1,58 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * The expected values are shared with brain_api/tests/test_shards.py - if one side changes its hashing or its override
+ * rules, both tests have to change, and the turns brain_api saves still land where the app reads them.
+ */
+class ShardRingTest {
+
+    static final String SPEC = "s0=jdbc:mariadb://h:1/db,s1=jdbc:mariadb://h:2/db|2,s2=jdbc:mariadb://h:3/db";
+
+    @Test
+    void hashMatchesShardsPy() {
+        assertEquals(-3162216497309240828L, ShardRing.hash(""));
+        assertEquals(4065547985915017922L, ShardRing.hash("primary"));
+        assertEquals(852509149274686930L, ShardRing.hash("s0#0"));
+        assertEquals(1419265261327824104L, ShardRing.hash("0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b"));
+        assertEquals(-3668093054441986943L, ShardRing.hash("ünïcode"));
+    }
+
+    @Test
+    void usersLandOnTheSameShardAsInShardsPy() {
+        ShardRing ring = ShardRing.parse(SPEC);
+        Map<String, String> expected = Map.of(
+            "0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b", "s2",
+            "00000000-0000-0000-0000-000000000000", "s1",
+            "ffffffff-ffff-ffff-ffff-ffffffffffff", "s1",
+            "user-1", "s1",
+            "user-2", "s0",
+            "user-3", "s2",
+            "user-4", "s2",
+            "user-5", "s0");
+        expected.forEach((user, shard) -> assertEquals(shard, ring.shardFor(user).name(), user));
+    }
+
+    @Test
+    void overridesResolveLikeShardsPy() {
+        ShardRing ring = ShardRing.parse(SPEC);
+        Map<String, String> overrides = Map.of("user-1", "s0", "user-2", "primary", "user-3", "gone");
+
+        assertEquals("s0", DbRouter.shardFor(ring, overrides, "user-1").name());
+        assertSame(ShardRing.PRIMARY, DbRouter.shardFor(ring, overrides, "user-2")); // Pinned back to the primary database
+        assertEquals("s2", DbRouter.shardFor(ring, overrides, "user-3").name()); // Unknown shard - the ring decides
+        assertEquals("s2", DbRouter.shardFor(ring, overrides, "user-4").name()); // Not pinned
+    }
+
+    @Test
+    void unshardedRingIsThePrimary() {
+        ShardRing ring = ShardRing.parse("");
+        assertTrue(ring.isEmpty());
+        assertSame(ShardRing.PRIMARY, ring.shardFor("user-1"));
+    }
+}
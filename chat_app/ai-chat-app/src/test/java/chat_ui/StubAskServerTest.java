@@ -0,0 +1,68 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class StubAskServerTest {
+
+    @Test
+    void unescapeUndoesJsonEscape() {
+        for (String text : new String[] {"plain", "a\\nb", "C:\\new\\table", "say \"hi\"\nthen\tgo", "\\", "end\\", "\\\"", ""}) {
+            assertEquals(text, StubAskServer.unescape(Database.jsonEscape(text)), text);
+        }
+    }
+
+    @Test
+    void escapedBackslashBeforeNStaysABackslash() {
+        assertEquals("a\\nb", StubAskServer.unescape("a\\\\nb"));
+        assertEquals("a\nb", StubAskServer.unescape("a\\nb"));
+    }
+
+    @Test
+    void unicodeEscapes() {
+        assertEquals("é✓", StubAskServer.unescape("\\u00e9\\u2713"));
+        assertEquals("uZZ", StubAskServer.unescape("\\uZZ")); // Malformed - the backslash goes, the rest stays
+    }
+
+    @Test
+    void stopSequencesFromTheRequest() {
+        assertEquals(List.of("\nUser:", "###"), StubAskServer.stops("{\"message\": \"hi\", \"stop\": [\"\\nUser:\", \"###\"]}"));
+        assertEquals(List.of("a]b", "c"), StubAskServer.stops("{\"stop\": [\"a]b\", \"\", \"c\"], \"length\": \"short\"}")); // Empty ones dropped
+        assertEquals(List.of("1", "2", "3", "4"), StubAskServer.stops("{\"stop\": [\"1\", \"2\", \"3\", \"4\", \"5\"]}"));
+        assertEquals(40, StubAskServer.stops("{\"stop\": [\"" + "x".repeat(50) + "\"]}").get(0).length());
+        assertTrue(StubAskServer.stops("{\"message\": \"no stop here\"}").isEmpty());
+    }
+
+    @Test
+    void stopSplitAcrossWordsIsNeverSent() {
+        StubAskServer.StopFilter stops = new StubAskServer.StopFilter(List.of("airway"));
+        assertEquals("Based on", stops.feed("Based on"));
+        assertEquals(" a mild ", stops.feed(" a mild air")); // "air" may become "airway" - held back
+        assertEquals("", stops.feed("way inflammation."));
+        assertTrue(stops.hit);
+        assertEquals("", stops.feed(" more"));
+        assertEquals("", stops.flush());
+    }
+
+    @Test
+    void heldBackTextIsFlushedWhenNoStopCame() {
+        StubAskServer.StopFilter stops = new StubAskServer.StopFilter(List.of("END"));
+        assertEquals("See a doctor ", stops.feed("See a doctor EN"));
+        assertEquals("", stops.feed(""));
+        assertFalse(stops.hit);
+        assertEquals("EN", stops.flush());
+
+        StubAskServer.StopFilter none = new StubAskServer.StopFilter(List.of());
+        assertEquals("word", none.feed("word"));
+        assertEquals("", none.flush());
+    }
+
+    @Test
+    void earliestStopWins() {
+        assertEquals(2, StubAskServer.firstStop("xxAyyB", List.of("B", "A")));
+        assertEquals(-1, StubAskServer.firstStop("nothing", List.of("B")));
+    }
+}
@@ -0,0 +1,63 @@
+package chat_ui;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+class UuidCodecTest {
+
+    @Test
+    void bytesAreUnhexOfTheString() {
+        byte[] key = UuidCodec.toBytes("0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b");
+        byte[] unhex = new byte[16]; // What UNHEX(REPLACE(id, '-', '')) and Python's uuid.UUID(id).bytes give
+        String hex = "0190a1b2c3d47e5f8a9b0c1d2e3f4a5b";
+        for (int i = 0; i < 16; i++) unhex[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        assertArrayEquals(unhex, key);
+    }
+
+    @Test
+    void roundTrip() {
+        for (int i = 0; i < 100; i++) {
+            String v4 = UUID.randomUUID().toString();
+            assertEquals(v4, UuidCodec.fromBytes(UuidCodec.toBytes(v4)));
+            String v7 = UuidCodec.newTimeOrdered();
+            assertEquals(v7, UuidCodec.fromBytes(UuidCodec.toBytes(v7)));
+        }
+        assertEquals("0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5b", UuidCodec.fromBytes(UuidCodec.toBytes("0190A1B2-C3D4-7E5F-8A9B-0C1D2E3F4A5B")));
+    }
+
+    @Test
+    void newIdsAreVersion7AndOrderedByTime() throws Exception {
+        String earlier = UuidCodec.newTimeOrdered();
+        Thread.sleep(2); // Same millisecond = random order, by design
+        String later = UuidCodec.newTimeOrdered();
+
+        UUID parsed = UUID.fromString(later);
+        assertEquals(7, parsed.version());
+        assertEquals(2, parsed.variant()); // IETF
+        assertTrue(Arrays.compareUnsigned(UuidCodec.toBytes(earlier), UuidCodec.toBytes(later)) < 0, earlier + " !< " + later);
+        assertTrue(earlier.compareTo(later) < 0); // Lower-case hex sorts the same way as the bytes
+
+        long millis = parsed.getMostSignificantBits() >>> 16;
+        assertTrue(Math.abs(System.currentTimeMillis() - millis) < 60_000);
+    }
+
+    @Test
+    void onlyCanonicalUuidsHaveBytes() {
+        assertNull(UuidCodec.toBytes("1-2-3-4-5")); // UUID.fromString would accept this
+        assertNull(UuidCodec.toBytes("load-test-user-00001"));
+        assertNull(UuidCodec.toBytes("0190a1b2-c3d4-7e5f-8a9b-0c1d2e3f4a5g"));
+        assertNull(UuidCodec.toBytes(null));
+        assertNull(UuidCodec.fromBytes(new byte[15]));
+        assertNull(UuidCodec.fromBytes(null));
+    }
+
+    @Test
+    void nonUuidUserKeyIsNullOutsideBinaryOnly() throws Exception {
+        assertEquals(Database.KeyPhase.STRING, Database.KEYS); // Default -Ddb.keys
+        assertNull(Database.userKey("load-test-user-00001")); // user_id still identifies the row - binary-only throws instead
+    }
+}